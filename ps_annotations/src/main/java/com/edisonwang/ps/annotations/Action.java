@@ -20,4 +20,21 @@ public @interface Action {
 
     String group() default "";
 
+    /**
+     * If above 0, the service starts at most this many requests of the action per second.
+     */
+    double ratePerSecond() default 0;
+
+    int rateBurst() default 1;
+
+    /**
+     * If above 0, requests that would wait longer than this for the rate limit are rejected.
+     */
+    long rateMaxWaitMs() default 0;
+
+    /**
+     * The RequestLane of requests that do not choose one, 0 is the default lane.
+     */
+    int lane() default 0;
+
 }
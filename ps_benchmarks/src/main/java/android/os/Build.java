@@ -0,0 +1,25 @@
+package android.os;
+
+/**
+ * Stand in for the framework Build, whose fields are read from native system properties.
+ *
+ * @author edi
+ */
+public class Build {
+
+    public static final String FINGERPRINT = "benchmark";
+
+    public static class VERSION {
+        public static final int SDK_INT = 23;
+    }
+
+    public static class VERSION_CODES {
+        public static final int GINGERBREAD = 9;
+        public static final int HONEYCOMB = 11;
+        public static final int HONEYCOMB_MR1 = 12;
+        public static final int JELLY_BEAN_MR1 = 17;
+        public static final int KITKAT = 19;
+        public static final int LOLLIPOP = 21;
+        public static final int M = 23;
+    }
+}
@@ -0,0 +1,231 @@
+package android.os;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pure Java stand in for the framework Bundle.
+ *
+ * It is backed by a HashMap, as android-all's ArrayMap uses System.arraycopy overloads only Android has,
+ * and it unparcels eagerly, so a read is paid for where readBundle is called.
+ *
+ * @author edi
+ */
+public final class Bundle implements Parcelable, Cloneable {
+
+    public static final Bundle EMPTY = new Bundle();
+
+    public static final Parcelable.Creator<Bundle> CREATOR = new Parcelable.Creator<Bundle>() {
+        @Override
+        public Bundle createFromParcel(Parcel in) {
+            return in.readBundle();
+        }
+
+        @Override
+        public Bundle[] newArray(int size) {
+            return new Bundle[size];
+        }
+    };
+
+    private final HashMap<String, Object> mMap;
+    private ClassLoader mClassLoader;
+
+    public Bundle() {
+        mMap = new HashMap<>();
+    }
+
+    public Bundle(ClassLoader loader) {
+        this();
+        mClassLoader = loader;
+    }
+
+    public Bundle(int capacity) {
+        mMap = new HashMap<>(capacity);
+    }
+
+    public Bundle(Bundle b) {
+        mMap = new HashMap<>(b.mMap);
+        mClassLoader = b.mClassLoader;
+    }
+
+    public void setClassLoader(ClassLoader loader) {
+        mClassLoader = loader;
+    }
+
+    public ClassLoader getClassLoader() {
+        return mClassLoader;
+    }
+
+    @Override
+    public Object clone() {
+        return new Bundle(this);
+    }
+
+    public int size() {
+        return mMap.size();
+    }
+
+    public boolean isEmpty() {
+        return mMap.isEmpty();
+    }
+
+    public void clear() {
+        mMap.clear();
+    }
+
+    public boolean containsKey(String key) {
+        return mMap.containsKey(key);
+    }
+
+    public Object get(String key) {
+        return mMap.get(key);
+    }
+
+    public void remove(String key) {
+        mMap.remove(key);
+    }
+
+    public void putAll(Bundle bundle) {
+        mMap.putAll(bundle.mMap);
+    }
+
+    public Set<String> keySet() {
+        return mMap.keySet();
+    }
+
+    public void putBoolean(String key, boolean value) {
+        mMap.put(key, value);
+    }
+
+    public void putByte(String key, byte value) {
+        mMap.put(key, value);
+    }
+
+    public void putInt(String key, int value) {
+        mMap.put(key, value);
+    }
+
+    public void putLong(String key, long value) {
+        mMap.put(key, value);
+    }
+
+    public void putFloat(String key, float value) {
+        mMap.put(key, value);
+    }
+
+    public void putDouble(String key, double value) {
+        mMap.put(key, value);
+    }
+
+    public void putString(String key, String value) {
+        mMap.put(key, value);
+    }
+
+    public void putParcelable(String key, Parcelable value) {
+        mMap.put(key, value);
+    }
+
+    public void putSerializable(String key, Serializable value) {
+        mMap.put(key, value);
+    }
+
+    public void putBundle(String key, Bundle value) {
+        mMap.put(key, value);
+    }
+
+    public boolean getBoolean(String key) {
+        return getBoolean(key, false);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        final Object o = mMap.get(key);
+        return o instanceof Boolean ? (Boolean) o : defaultValue;
+    }
+
+    public byte getByte(String key) {
+        final Object o = mMap.get(key);
+        return o instanceof Byte ? (Byte) o : 0;
+    }
+
+    public int getInt(String key) {
+        return getInt(key, 0);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        final Object o = mMap.get(key);
+        return o instanceof Integer ? (Integer) o : defaultValue;
+    }
+
+    public long getLong(String key) {
+        return getLong(key, 0L);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        final Object o = mMap.get(key);
+        return o instanceof Long ? (Long) o : defaultValue;
+    }
+
+    public float getFloat(String key) {
+        final Object o = mMap.get(key);
+        return o instanceof Float ? (Float) o : 0f;
+    }
+
+    public double getDouble(String key) {
+        final Object o = mMap.get(key);
+        return o instanceof Double ? (Double) o : 0d;
+    }
+
+    public String getString(String key) {
+        final Object o = mMap.get(key);
+        return o instanceof String ? (String) o : null;
+    }
+
+    public String getString(String key, String defaultValue) {
+        final String s = getString(key);
+        return s == null ? defaultValue : s;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> T getParcelable(String key) {
+        final Object o = mMap.get(key);
+        return o instanceof Parcelable ? (T) o : null;
+    }
+
+    public Serializable getSerializable(String key) {
+        final Object o = mMap.get(key);
+        return o instanceof Serializable ? (Serializable) o : null;
+    }
+
+    public Bundle getBundle(String key) {
+        final Object o = mMap.get(key);
+        return o instanceof Bundle ? (Bundle) o : null;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mMap.size());
+        for (Map.Entry<String, Object> entry : mMap.entrySet()) {
+            dest.writeString(entry.getKey());
+            dest.writeValue(entry.getValue());
+        }
+    }
+
+    void readFromParcel(Parcel in, int size) {
+        for (int i = 0; i < size; i++) {
+            final String key = in.readString();
+            mMap.put(key, in.readValue(mClassLoader));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Bundle[" + mMap.toString() + "]";
+    }
+}
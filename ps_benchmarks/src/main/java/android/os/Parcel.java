@@ -0,0 +1,423 @@
+package android.os;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Pure Java stand in for the framework Parcel, which is native on the JVM.
+ *
+ * Values are written to a byte array with the same layout rules the framework uses:
+ * 4 byte aligned primitives, UTF-16 strings, a type tag before each value,
+ * the class name before each Parcelable and java serialization for Serializables.
+ * Binders are not supported.
+ *
+ * @author edi
+ */
+public final class Parcel {
+
+    private static final int VAL_NULL = -1;
+    private static final int VAL_STRING = 0;
+    private static final int VAL_INTEGER = 1;
+    private static final int VAL_BUNDLE = 3;
+    private static final int VAL_PARCELABLE = 4;
+    private static final int VAL_LONG = 6;
+    private static final int VAL_FLOAT = 7;
+    private static final int VAL_DOUBLE = 8;
+    private static final int VAL_BOOLEAN = 9;
+    private static final int VAL_LIST = 11;
+    private static final int VAL_BYTE = 20;
+    private static final int VAL_SERIALIZABLE = 21;
+
+    private static final HashMap<String, Parcelable.Creator<?>> sCreators = new HashMap<>();
+
+    private byte[] mData = new byte[256];
+    private int mSize;
+    private int mPosition;
+
+    private Parcel() {
+    }
+
+    public static Parcel obtain() {
+        return new Parcel();
+    }
+
+    public void recycle() {
+        mSize = 0;
+        mPosition = 0;
+    }
+
+    public int dataSize() {
+        return mSize;
+    }
+
+    public int dataPosition() {
+        return mPosition;
+    }
+
+    public void setDataPosition(int position) {
+        mPosition = position;
+    }
+
+    public byte[] marshall() {
+        final byte[] data = new byte[mSize];
+        System.arraycopy(mData, 0, data, 0, mSize);
+        return data;
+    }
+
+    public void unmarshall(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(data, offset, mData, 0, length);
+        mSize = length;
+        mPosition = 0;
+    }
+
+    public void writeInt(int val) {
+        ensureCapacity(mPosition + 4);
+        mData[mPosition++] = (byte) (val >>> 24);
+        mData[mPosition++] = (byte) (val >>> 16);
+        mData[mPosition++] = (byte) (val >>> 8);
+        mData[mPosition++] = (byte) val;
+        mSize = Math.max(mSize, mPosition);
+    }
+
+    public int readInt() {
+        if (mPosition + 4 > mSize) {
+            return 0;
+        }
+        return ((mData[mPosition++] & 0xFF) << 24) | ((mData[mPosition++] & 0xFF) << 16)
+                | ((mData[mPosition++] & 0xFF) << 8) | (mData[mPosition++] & 0xFF);
+    }
+
+    public void writeLong(long val) {
+        writeInt((int) (val >>> 32));
+        writeInt((int) val);
+    }
+
+    public long readLong() {
+        return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    public void writeFloat(float val) {
+        writeInt(Float.floatToIntBits(val));
+    }
+
+    public float readFloat() {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public void writeDouble(double val) {
+        writeLong(Double.doubleToLongBits(val));
+    }
+
+    public double readDouble() {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public void writeByte(byte val) {
+        writeInt(val);
+    }
+
+    public byte readByte() {
+        return (byte) readInt();
+    }
+
+    public void writeString(String val) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+        final int length = val.length();
+        writeInt(length);
+        ensureCapacity(mPosition + align(length * 2));
+        for (int i = 0; i < length; i++) {
+            final char c = val.charAt(i);
+            mData[mPosition++] = (byte) (c >>> 8);
+            mData[mPosition++] = (byte) c;
+        }
+        mPosition = align(mPosition);
+        mSize = Math.max(mSize, mPosition);
+    }
+
+    public String readString() {
+        final int length = readInt();
+        if (length < 0) {
+            return null;
+        }
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (((mData[mPosition++] & 0xFF) << 8) | (mData[mPosition++] & 0xFF));
+        }
+        mPosition = align(mPosition);
+        return new String(chars);
+    }
+
+    public void writeByteArray(byte[] b) {
+        if (b == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(b.length);
+        ensureCapacity(mPosition + align(b.length));
+        System.arraycopy(b, 0, mData, mPosition, b.length);
+        mPosition = align(mPosition + b.length);
+        mSize = Math.max(mSize, mPosition);
+    }
+
+    public byte[] createByteArray() {
+        final int length = readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] b = new byte[length];
+        System.arraycopy(mData, mPosition, b, 0, length);
+        mPosition = align(mPosition + length);
+        return b;
+    }
+
+    public void writeStrongBinder(IBinder val) {
+        if (val != null) {
+            throw new UnsupportedOperationException("Binders can not be written outside of Android.");
+        }
+        writeInt(0);
+    }
+
+    public IBinder readStrongBinder() {
+        readInt();
+        return null;
+    }
+
+    public void writeSerializable(Serializable s) {
+        if (s == null) {
+            writeString(null);
+            return;
+        }
+        writeString(s.getClass().getName());
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            final ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(s);
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Parcelable encountered IOException writing serializable object (name = "
+                    + s.getClass().getName() + ")", e);
+        }
+        writeByteArray(bytes.toByteArray());
+    }
+
+    public Serializable readSerializable() {
+        return readSerializable(null);
+    }
+
+    private Serializable readSerializable(final ClassLoader loader) {
+        final String name = readString();
+        if (name == null) {
+            return null;
+        }
+        final byte[] bytes = createByteArray();
+        try {
+            final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes)) {
+                @Override
+                protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                    if (loader != null) {
+                        return Class.forName(desc.getName(), false, loader);
+                    }
+                    return super.resolveClass(desc);
+                }
+            };
+            return (Serializable) in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new RuntimeException("Parcelable encountered exception reading a Serializable object (name = "
+                    + name + ")", e);
+        }
+    }
+
+    public void writeBundle(Bundle val) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+        val.writeToParcel(this, 0);
+    }
+
+    public Bundle readBundle() {
+        return readBundle(null);
+    }
+
+    public Bundle readBundle(ClassLoader loader) {
+        final int length = readInt();
+        if (length < 0) {
+            return null;
+        }
+        final Bundle bundle = new Bundle(loader);
+        bundle.readFromParcel(this, length);
+        return bundle;
+    }
+
+    public void writeParcelable(Parcelable p, int flags) {
+        if (p == null) {
+            writeString(null);
+            return;
+        }
+        writeString(p.getClass().getName());
+        p.writeToParcel(this, flags);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> T readParcelable(ClassLoader loader) {
+        final String name = readString();
+        if (name == null) {
+            return null;
+        }
+        final Parcelable.Creator<?> creator = creator(name, loader);
+        if (creator instanceof Parcelable.ClassLoaderCreator) {
+            return (T) ((Parcelable.ClassLoaderCreator<?>) creator).createFromParcel(this, loader);
+        }
+        return (T) creator.createFromParcel(this);
+    }
+
+    public void writeList(List val) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+        final int size = val.size();
+        writeInt(size);
+        for (int i = 0; i < size; i++) {
+            writeValue(val.get(i));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void readList(List outVal, ClassLoader loader) {
+        final int size = readInt();
+        for (int i = 0; i < size; i++) {
+            outVal.add(readValue(loader));
+        }
+    }
+
+    public ArrayList readArrayList(ClassLoader loader) {
+        final int size = readInt();
+        if (size < 0) {
+            return null;
+        }
+        final ArrayList<Object> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(readValue(loader));
+        }
+        return list;
+    }
+
+    public void writeValue(Object v) {
+        if (v == null) {
+            writeInt(VAL_NULL);
+        } else if (v instanceof String) {
+            writeInt(VAL_STRING);
+            writeString((String) v);
+        } else if (v instanceof Integer) {
+            writeInt(VAL_INTEGER);
+            writeInt((Integer) v);
+        } else if (v instanceof Bundle) {
+            writeInt(VAL_BUNDLE);
+            writeBundle((Bundle) v);
+        } else if (v instanceof Parcelable) {
+            writeInt(VAL_PARCELABLE);
+            writeParcelable((Parcelable) v, 0);
+        } else if (v instanceof Long) {
+            writeInt(VAL_LONG);
+            writeLong((Long) v);
+        } else if (v instanceof Float) {
+            writeInt(VAL_FLOAT);
+            writeFloat((Float) v);
+        } else if (v instanceof Double) {
+            writeInt(VAL_DOUBLE);
+            writeDouble((Double) v);
+        } else if (v instanceof Boolean) {
+            writeInt(VAL_BOOLEAN);
+            writeInt((Boolean) v ? 1 : 0);
+        } else if (v instanceof List) {
+            writeInt(VAL_LIST);
+            writeList((List) v);
+        } else if (v instanceof Byte) {
+            writeInt(VAL_BYTE);
+            writeInt((Byte) v);
+        } else if (v instanceof Serializable) {
+            writeInt(VAL_SERIALIZABLE);
+            writeSerializable((Serializable) v);
+        } else {
+            throw new RuntimeException("Parcel: unable to marshal value " + v);
+        }
+    }
+
+    public Object readValue(ClassLoader loader) {
+        final int type = readInt();
+        switch (type) {
+            case VAL_NULL:
+                return null;
+            case VAL_STRING:
+                return readString();
+            case VAL_INTEGER:
+                return readInt();
+            case VAL_BUNDLE:
+                return readBundle(loader);
+            case VAL_PARCELABLE:
+                return readParcelable(loader);
+            case VAL_LONG:
+                return readLong();
+            case VAL_FLOAT:
+                return readFloat();
+            case VAL_DOUBLE:
+                return readDouble();
+            case VAL_BOOLEAN:
+                return readInt() == 1;
+            case VAL_LIST:
+                return readArrayList(loader);
+            case VAL_BYTE:
+                return readByte();
+            case VAL_SERIALIZABLE:
+                return readSerializable(loader);
+            default:
+                throw new RuntimeException("Parcel: unmarshalling unknown type code " + type
+                        + " at offset " + (mPosition - 4));
+        }
+    }
+
+    private static Parcelable.Creator<?> creator(String name, ClassLoader loader) {
+        synchronized (sCreators) {
+            Parcelable.Creator<?> creator = sCreators.get(name);
+            if (creator == null) {
+                try {
+                    final Class<?> c = Class.forName(name, false,
+                            loader != null ? loader : Parcel.class.getClassLoader());
+                    final Field field = c.getField("CREATOR");
+                    creator = (Parcelable.Creator<?>) field.get(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new RuntimeException("Parcelable protocol requires a Parcelable.Creator object called "
+                            + "CREATOR on class " + name, e);
+                }
+                sCreators.put(name, creator);
+            }
+            return creator;
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > mData.length) {
+            final byte[] data = new byte[Math.max(size, mData.length * 2)];
+            System.arraycopy(mData, 0, data, 0, mSize);
+            mData = data;
+        }
+    }
+
+    private static int align(int position) {
+        return (position + 3) & ~3;
+    }
+}
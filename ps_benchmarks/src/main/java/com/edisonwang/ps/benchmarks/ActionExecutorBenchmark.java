@@ -0,0 +1,66 @@
+package com.edisonwang.ps.benchmarks;
+
+import com.edisonwang.ps.lib.ActionExecutor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Submits a batch of empty tasks spread over a number of tags and waits for all of them,
+ * from two submitting threads since every submission takes the executor's lock.
+ *
+ * @author edi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(2)
+public class ActionExecutorBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({"1", "4", "16"})
+    public int tags;
+
+    @Param({"1", "4"})
+    public int limit;
+
+    private ActionExecutor mExecutor;
+    private String[] mTags;
+
+    @Setup
+    public void setUp() {
+        mExecutor = new ActionExecutor();
+        mTags = new String[tags];
+        for (int i = 0; i < tags; i++) {
+            mTags[i] = "tag" + i;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void executeBatch() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(BATCH);
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < BATCH; i++) {
+            mExecutor.execute(task, limit, mTags[i % tags], i % 3);
+        }
+        done.await();
+    }
+}
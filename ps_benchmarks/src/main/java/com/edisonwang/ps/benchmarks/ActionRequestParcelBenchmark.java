@@ -0,0 +1,74 @@
+package com.edisonwang.ps.benchmarks;
+
+import android.os.Parcel;
+
+import com.edisonwang.ps.lib.ActionRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes and reads back request trees, a depth of d has 2^(d+1) - 1 requests.
+ * Registered keys are sent as an id, the others as a serialized enum.
+ *
+ * @author edi
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ActionRequestParcelBenchmark {
+
+    @Param({"0", "2", "4"})
+    public int depth;
+
+    @Param({BenchmarkActions.KEY_REGISTERED, BenchmarkActions.KEY_SERIALIZED})
+    public String key;
+
+    private ActionRequest mRequest;
+    private byte[] mBytes;
+
+    @Setup
+    public void setUp() {
+        mRequest = BenchmarkActions.tree(BenchmarkActions.key(key), depth);
+        final Parcel parcel = Parcel.obtain();
+        mRequest.writeToParcel(parcel, 0);
+        mBytes = parcel.marshall();
+        parcel.recycle();
+    }
+
+    @Benchmark
+    public byte[] write() {
+        final Parcel parcel = Parcel.obtain();
+        mRequest.writeToParcel(parcel, 0);
+        final byte[] bytes = parcel.marshall();
+        parcel.recycle();
+        return bytes;
+    }
+
+    @Benchmark
+    public ActionRequest read() {
+        final Parcel parcel = Parcel.obtain();
+        parcel.unmarshall(mBytes, 0, mBytes.length);
+        final ActionRequest request = ActionRequest.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+        return request;
+    }
+
+    @Benchmark
+    public ActionRequest roundTrip() {
+        final Parcel parcel = Parcel.obtain();
+        mRequest.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        final ActionRequest request = ActionRequest.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+        return request;
+    }
+}
@@ -0,0 +1,187 @@
+package com.edisonwang.ps.benchmarks;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Parcel;
+
+import com.edisonwang.ps.lib.Action;
+import com.edisonwang.ps.lib.ActionKey;
+import com.edisonwang.ps.lib.ActionRequest;
+import com.edisonwang.ps.lib.ActionRequestHelper;
+import com.edisonwang.ps.lib.ActionResult;
+import com.edisonwang.ps.lib.FullAction;
+import com.edisonwang.ps.lib.GeneratedActionKey;
+import com.edisonwang.ps.lib.RateLimit;
+import com.edisonwang.ps.lib.RequestLane;
+import com.edisonwang.ps.lib.RequestEnv;
+
+/**
+ * Actions, keys and requests shared by the benchmarks.
+ *
+ * @author edi
+ */
+public final class BenchmarkActions {
+
+    public static final String KEY_SERIALIZED = "serialized";
+    public static final String KEY_REGISTERED = "registered";
+
+    private BenchmarkActions() {
+    }
+
+    public static ActionKey key(String kind) {
+        return KEY_REGISTERED.equals(kind) ? RegisteredKey.NOOP : SerializedKey.NOOP;
+    }
+
+    /**
+     * @return a request whose dependency and chained request are each a tree of depth - 1.
+     */
+    public static ActionRequest tree(ActionKey key, int depth) {
+        return helper(key, depth, 0).buildRequest();
+    }
+
+    private static ActionRequestHelper helper(ActionKey key, int depth, int index) {
+        final RequestHelper helper = new RequestHelper(key, index);
+        if (depth > 0) {
+            helper.dependsOn(helper(key, depth - 1, index * 2 + 1));
+            helper.then(helper(key, depth - 1, index * 2 + 2));
+        }
+        return helper;
+    }
+
+    /**
+     * @return a bundle of mixed values, the last of which is a nested bundle.
+     */
+    public static Bundle args(int size, int seed) {
+        final Bundle bundle = new Bundle();
+        for (int i = 0; i < size - 1; i++) {
+            switch (i % 4) {
+                case 0:
+                    bundle.putString("key" + i, "value" + seed + "_" + i);
+                    break;
+                case 1:
+                    bundle.putInt("key" + i, seed * 31 + i);
+                    break;
+                case 2:
+                    bundle.putLong("key" + i, seed * 131L + i);
+                    break;
+                default:
+                    bundle.putBoolean("key" + i, (seed + i) % 2 == 0);
+                    break;
+            }
+        }
+        final Bundle nested = new Bundle();
+        nested.putString("nested", "value" + seed);
+        nested.putInt("nestedId", seed);
+        bundle.putBundle("key" + (size - 1), nested);
+        return bundle;
+    }
+
+    public enum SerializedKey implements ActionKey {
+        NOOP;
+
+        @Override
+        public Action value() {
+            return ValueHolder.VALUE;
+        }
+    }
+
+    /**
+     * Mirrors the key the processor generates for an action registered in the PsActionRegistry.
+     */
+    public enum RegisteredKey implements GeneratedActionKey {
+        NOOP;
+
+        @Override
+        public Action value() {
+            return ValueHolder.VALUE;
+        }
+
+        @Override
+        public int actionId() {
+            return 0;
+        }
+
+        @Override
+        public Class<? extends Action> actionType() {
+            return NoopAction.class;
+        }
+
+        @Override
+        public boolean isFullAction() {
+            return true;
+        }
+
+        @Override
+        public RateLimit rateLimit() {
+            return null;
+        }
+
+        @Override
+        public int lane() {
+            return RequestLane.DEFAULT;
+        }
+    }
+
+    private static class ValueHolder {
+        static final NoopAction VALUE = new NoopAction();
+    }
+
+    public static class NoopAction extends FullAction {
+
+        public static final int CACHE_SIZE = 256;
+
+        @Override
+        protected ActionResult process(Context context, ActionRequest request, RequestEnv env) {
+            return new NoopResult();
+        }
+
+        @Override
+        protected ActionResult onError(Context context, ActionRequest request, RequestEnv env, Throwable e) {
+            return new NoopResult();
+        }
+
+        @Override
+        protected CachePolicy getCachePolicy() {
+            return new CachePolicy(true, CACHE_SIZE);
+        }
+    }
+
+    public static class NoopResult extends ActionResult {
+
+        public static final Creator<NoopResult> CREATOR = new Creator<NoopResult>() {
+            @Override
+            public NoopResult createFromParcel(Parcel in) {
+                return new NoopResult();
+            }
+
+            @Override
+            public NoopResult[] newArray(int size) {
+                return new NoopResult[size];
+            }
+        };
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+        }
+    }
+
+    private static class RequestHelper extends ActionRequestHelper {
+        private final ActionKey mKey;
+
+        RequestHelper(ActionKey key, int index) {
+            mKey = key;
+            mVariableHolder.putExtra("index", index);
+            mVariableHolder.putExtra("name", "request" + index);
+        }
+
+        @Override
+        protected ActionKey getActionKey() {
+            return mKey;
+        }
+    }
+}
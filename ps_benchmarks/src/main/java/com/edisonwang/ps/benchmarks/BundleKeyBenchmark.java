@@ -0,0 +1,56 @@
+package com.edisonwang.ps.benchmarks;
+
+import android.os.Bundle;
+
+import com.edisonwang.ps.lib.BundleKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BundleKey is built from a request's arguments on every cache lookup, so its hash is never reused.
+ *
+ * @author edi
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BundleKeyBenchmark {
+
+    @Param({"4", "16", "64"})
+    public int size;
+
+    private Bundle mOne;
+    private Bundle mSame;
+    private Bundle mOther;
+
+    @Setup
+    public void setUp() {
+        mOne = BenchmarkActions.args(size, 1);
+        mSame = BenchmarkActions.args(size, 1);
+        mOther = BenchmarkActions.args(size, 2);
+    }
+
+    @Benchmark
+    public int hashCodeOfNewKey() {
+        return new BundleKey(mOne).hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsSameArgs() {
+        return new BundleKey(mOne).equals(new BundleKey(mSame));
+    }
+
+    @Benchmark
+    public boolean equalsOtherArgs() {
+        return new BundleKey(mOne).equals(new BundleKey(mOther));
+    }
+}
@@ -0,0 +1,69 @@
+package com.edisonwang.ps.benchmarks;
+
+import android.os.Bundle;
+
+import com.edisonwang.ps.lib.ActionRequest;
+import com.edisonwang.ps.lib.ActionResult;
+import com.edisonwang.ps.lib.FullAction;
+import com.edisonwang.ps.lib.LruMemCacheFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up and fills one action's cache from several worker threads at once.
+ * With more distinct requests than the cache holds, part of the lookups miss and evict.
+ *
+ * @author edi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+public class LruMemCacheBenchmark {
+
+    @Param({"64", "1024"})
+    public int distinctRequests;
+
+    private LruMemCacheFactory.LruMemCache mCache;
+    private ActionRequest[] mRequests;
+    private final ActionResult mResult = new BenchmarkActions.NoopResult();
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void setUp() {
+        final BenchmarkActions.NoopAction action = new BenchmarkActions.NoopAction();
+        mCache = new LruMemCacheFactory.LruMemCache(action,
+                new FullAction.CachePolicy(true, BenchmarkActions.NoopAction.CACHE_SIZE));
+        mRequests = new ActionRequest[distinctRequests];
+        for (int i = 0; i < distinctRequests; i++) {
+            mRequests[i] = new ActionRequest(BenchmarkActions.key(BenchmarkActions.KEY_REGISTERED));
+            final Bundle args = BenchmarkActions.args(8, i);
+            mRequests[i].addArgs(args);
+        }
+    }
+
+    @Benchmark
+    public ActionResult getOrPut(Cursor cursor) {
+        final ActionRequest request = mRequests[cursor.next++ % distinctRequests];
+        ActionResult result = mCache.get(request);
+        if (result == null) {
+            mCache.put(request, mResult);
+            result = mResult;
+        }
+        return result;
+    }
+}
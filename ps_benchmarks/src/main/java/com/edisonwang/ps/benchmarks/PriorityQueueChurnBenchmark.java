@@ -0,0 +1,61 @@
+package com.edisonwang.ps.benchmarks;
+
+import com.edisonwang.ps.lib.PrioritizedRunnable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One offer and one poll against a limited queue holding a steady backlog, as a busy LimitedExecutor sees it.
+ *
+ * @author edi
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PriorityQueueChurnBenchmark {
+
+    private static final int PRIORITIES = 1024;
+
+    @Param({"16", "256", "4096"})
+    public int backlog;
+
+    private final Runnable mTask = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private PriorityBlockingQueue<Runnable> mQueue;
+    private PrioritizedRunnable[] mRunnables;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        mRunnables = new PrioritizedRunnable[PRIORITIES];
+        for (int i = 0; i < PRIORITIES; i++) {
+            mRunnables[i] = new PrioritizedRunnable(random.nextInt(10), mTask);
+        }
+        mQueue = new PriorityBlockingQueue<>(2, new PrioritizedRunnable.PrioritizedRunnableComparator());
+        for (int i = 0; i < backlog; i++) {
+            mQueue.offer(mRunnables[i % PRIORITIES]);
+        }
+    }
+
+    @Benchmark
+    public Runnable offerThenPoll() {
+        mQueue.offer(mRunnables[mNext++ & (PRIORITIES - 1)]);
+        return mQueue.poll();
+    }
+}
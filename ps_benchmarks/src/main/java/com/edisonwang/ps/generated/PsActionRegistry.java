@@ -0,0 +1,27 @@
+package com.edisonwang.ps.generated;
+
+import com.edisonwang.ps.benchmarks.BenchmarkActions;
+import com.edisonwang.ps.lib.ActionKey;
+import com.edisonwang.ps.lib.ActionRegistry;
+
+/**
+ * What the processor generates for an app, reduced to the benchmark's one registered key.
+ *
+ * @author edi
+ */
+public final class PsActionRegistry extends ActionRegistry {
+
+    public PsActionRegistry() {
+        super(1);
+    }
+
+    @Override
+    protected ActionKey create(int id) {
+        switch (id) {
+            case 0:
+                return BenchmarkActions.RegisteredKey.NOOP;
+            default:
+                return null;
+        }
+    }
+}
@@ -15,15 +15,77 @@ public class ActionExecutor {
     public static final String DEFAULT = "default";
     private final ExecutorService mFullParallelExecutor = Executors.newCachedThreadPool();
     private final HashMap<Integer, HashMap<String, LimitedExecutor>> mLimitedExecutors = new HashMap<>();
+    private final FlightRecorder mFlightRecorder;
+    private final ServiceMetrics mMetrics;
+    private final AdaptiveLimit.Factory mAdaptiveLimits;
+    private final FairPool mFairPool;
+
+    public ActionExecutor() {
+        this(null);
+    }
+
+    /**
+     * @param flightRecorder if set, queue depths are recorded on every submission.
+     */
+    public ActionExecutor(FlightRecorder flightRecorder) {
+        this(flightRecorder, null, null);
+    }
+
+    /**
+     * @param metrics        if set, each queue's current limit is reported to it.
+     * @param adaptiveLimits if set, asked once for every new queue whether its limit should adapt.
+     */
+    public ActionExecutor(FlightRecorder flightRecorder, ServiceMetrics metrics, AdaptiveLimit.Factory adaptiveLimits) {
+        this(flightRecorder, metrics, adaptiveLimits, null);
+    }
+
+    /**
+     * @param fairPool if set, all limited queues share its threads instead of having their own,
+     *                 and their limits do not adapt.
+     */
+    public ActionExecutor(FlightRecorder flightRecorder, ServiceMetrics metrics, AdaptiveLimit.Factory adaptiveLimits,
+                          FairPool fairPool) {
+        mFlightRecorder = flightRecorder;
+        mMetrics = metrics;
+        mAdaptiveLimits = adaptiveLimits;
+        mFairPool = fairPool;
+    }
 
     public void executeOnNewThread(Runnable runnable) {
         mFullParallelExecutor.execute(runnable);
     }
 
     public void execute(Runnable runnable, int queueLimit, String queueTag, int queuePriority) {
+        execute(runnable, queueLimit, queueTag, queuePriority, false, 0);
+    }
+
+    /**
+     * @param hasDeadline if true, the runnable runs before later deadlines of the same priority.
+     */
+    public void execute(Runnable runnable, int queueLimit, String queueTag, int queuePriority,
+                        boolean hasDeadline, long deadlineNs) {
+        execute(runnable, queueLimit, queueTag, queuePriority, RequestLane.DEFAULT, hasDeadline, deadlineNs);
+    }
+
+    /**
+     * @param lane the RequestLane, the lanes of a queue share its limit and threads, earlier lanes are taken first.
+     */
+    public void execute(Runnable runnable, int queueLimit, String queueTag, int queuePriority, int lane,
+                        boolean hasDeadline, long deadlineNs) {
         //A queue is identified by a type.
         //With in a type, you can have multiple queues (except full parallel queues)
         //Within a queue, you can have multiple tags
+        if (mFairPool != null) {
+            final int depth = mFairPool.execute(new PrioritizedRunnable(lane, queuePriority, hasDeadline, deadlineNs, runnable),
+                    queueLimit, queueTag);
+            if (mMetrics != null) {
+                mMetrics.queue(queueTag).setLimit(queueLimit);
+            }
+            if (mFlightRecorder != null) {
+                mFlightRecorder.record(FlightRecorder.QUEUE_DEPTH, mFlightRecorder.nameId(queueTag), 0, depth);
+            }
+            return;
+        }
         synchronized (mLimitedExecutors) {
             HashMap<String, LimitedExecutor> limitedQueue = mLimitedExecutors.get(queueLimit);
             if (limitedQueue == null) {
@@ -32,10 +94,15 @@ public class ActionExecutor {
             }
             LimitedExecutor executor = limitedQueue.get(queueTag);
             if (executor == null) {
-                executor = new LimitedExecutor(queueLimit);
+                executor = new LimitedExecutor(queueLimit,
+                        mAdaptiveLimits != null ? mAdaptiveLimits.create(queueTag, queueLimit) : null,
+                        mMetrics != null ? mMetrics.queue(queueTag) : null);
                 limitedQueue.put(queueTag, executor);
             }
-            executor.execute(new PrioritizedRunnable(queuePriority, runnable));
+            executor.execute(new PrioritizedRunnable(lane, queuePriority, hasDeadline, deadlineNs, runnable));
+            if (mFlightRecorder != null) {
+                mFlightRecorder.record(FlightRecorder.QUEUE_DEPTH, mFlightRecorder.nameId(queueTag), 0, executor.queue.size());
+            }
         }
     }
 
@@ -44,9 +111,63 @@ public class ActionExecutor {
         private final PriorityBlockingQueue<Runnable> queue;
 
         public LimitedExecutor(int limit) {
+            this(limit, null, null);
+        }
+
+        /**
+         * @param adaptive if set, the number of threads follows it, queued runnables stay queued across resizes.
+         */
+        LimitedExecutor(int limit, final AdaptiveLimit adaptive, final ServiceMetrics.QueueStats stats) {
             queue = new PriorityBlockingQueue<>(2, new PrioritizedRunnable.PrioritizedRunnableComparator());
-            service = new ThreadPoolExecutor(limit, limit,
-                    0L, TimeUnit.MILLISECONDS, queue);
+            if (adaptive == null) {
+                service = new ThreadPoolExecutor(limit, limit,
+                        0L, TimeUnit.MILLISECONDS, queue);
+            } else {
+                limit = adaptive.start(limit);
+                service = new ThreadPoolExecutor(limit, limit,
+                        0L, TimeUnit.MILLISECONDS, queue) {
+                    private final ThreadLocal<long[]> mStart = new ThreadLocal<long[]>() {
+                        @Override
+                        protected long[] initialValue() {
+                            return new long[1];
+                        }
+                    };
+
+                    @Override
+                    protected void beforeExecute(Thread t, Runnable r) {
+                        mStart.get()[0] = System.nanoTime();
+                    }
+
+                    @Override
+                    protected void afterExecute(Runnable r, Throwable t) {
+                        adaptive.onSample(System.nanoTime() - mStart.get()[0], !queue.isEmpty());
+                        resize(this, adaptive, stats);
+                    }
+                };
+            }
+            if (stats != null) {
+                stats.setLimit(limit);
+            }
+        }
+
+        private static void resize(ThreadPoolExecutor service, AdaptiveLimit adaptive, ServiceMetrics.QueueStats stats) {
+            synchronized (service) {
+                final int limit = adaptive.getLimit();
+                if (limit == service.getCorePoolSize()) {
+                    return;
+                }
+                //The core size can never be above the maximum size.
+                if (limit > service.getMaximumPoolSize()) {
+                    service.setMaximumPoolSize(limit);
+                    service.setCorePoolSize(limit);
+                } else {
+                    service.setCorePoolSize(limit);
+                    service.setMaximumPoolSize(limit);
+                }
+                if (stats != null) {
+                    stats.setLimit(limit);
+                }
+            }
         }
 
         public void execute(PrioritizedRunnable runnable) {
@@ -0,0 +1,104 @@
+package com.edisonwang.ps.lib;
+
+import android.util.Log;
+
+/**
+ * Int indexed lookup of every generated ActionKey.
+ *
+ * Requests whose key is registered are parceled as an id instead of a serialized enum,
+ * and only the keys that are actually looked up get loaded.
+ *
+ * @author edi
+ */
+public abstract class ActionRegistry {
+
+    /**
+     * The registry the annotation processor generates, loaded once per process.
+     */
+    public static final String GENERATED_CLASS_NAME = "com.edisonwang.ps.generated.PsActionRegistry";
+
+    public static final int NO_ID = -1;
+
+    private static final String TAG = "ActionRegistry";
+    private static final int[] sLock = {};
+    private static volatile boolean sLoaded;
+    private static ActionRegistry sInstance;
+
+    private final ActionKey[] mKeys;
+
+    protected ActionRegistry(int size) {
+        mKeys = new ActionKey[size];
+    }
+
+    /**
+     * @return the generated registry, or null if none was generated for this app.
+     */
+    public static ActionRegistry get() {
+        if (!sLoaded) {
+            synchronized (sLock) {
+                if (!sLoaded) {
+                    try {
+                        sInstance = (ActionRegistry) Class.forName(GENERATED_CLASS_NAME).newInstance();
+                    } catch (ClassNotFoundException e) {
+                        Log.i(TAG, "No generated action registry, keys will be serialized.");
+                    } catch (Throwable e) {
+                        Log.e(TAG, "Unable to load " + GENERATED_CLASS_NAME, e);
+                    }
+                    sLoaded = true;
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the id this key can be sent with, or NO_ID if it has to be serialized.
+     */
+    public static int idOf(ActionKey key) {
+        if (!(key instanceof GeneratedActionKey)) {
+            return NO_ID;
+        }
+        final int id = ((GeneratedActionKey) key).actionId();
+        final ActionRegistry registry = get();
+        if (id == NO_ID || registry == null || registry.key(id) != key) {
+            return NO_ID;
+        }
+        return id;
+    }
+
+    /**
+     * @return the key registered under this id.
+     */
+    public static ActionKey keyOf(int id) {
+        final ActionRegistry registry = get();
+        final ActionKey key = registry != null ? registry.key(id) : null;
+        if (key == null) {
+            throw new IllegalStateException("Action id " + id + " is not registered in this process.");
+        }
+        return key;
+    }
+
+    public int size() {
+        return mKeys.length;
+    }
+
+    /**
+     * Resolves the key on first use. Racing threads resolve the same enum constant.
+     */
+    public ActionKey key(int id) {
+        if (id < 0 || id >= mKeys.length) {
+            return null;
+        }
+        ActionKey key = mKeys[id];
+        if (key == null) {
+            key = create(id);
+            mKeys[id] = key;
+        }
+        return key;
+    }
+
+    /**
+     * @return the key for this id, referencing only the enum that owns it.
+     */
+    protected abstract ActionKey create(int id);
+}
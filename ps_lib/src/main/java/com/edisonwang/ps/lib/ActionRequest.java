@@ -3,13 +3,30 @@ package com.edisonwang.ps.lib;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author edi
  */
 public class ActionRequest implements Parcelable {
+
+    private static final String TAG = "ActionRequest";
+
+    private static final int STAGE_DEPENDENCIES = 0;
+    private static final int STAGE_REQUIREMENTS = 1;
+    private static final int STAGE_ACTION = 2;
+    private static final int STAGE_RESULT = 3;
+    private static final int STAGE_CHAINED = 4;
+
+    private static final int ASYNC_RUNNING = 0;
+    private static final int ASYNC_DONE = 1;
+    private static final int ASYNC_SUSPENDED = 2;
+
     public static final Creator<ActionRequest> CREATOR = new Creator<ActionRequest>() {
         @Override
         public ActionRequest createFromParcel(Parcel in) {
@@ -27,6 +44,7 @@ public class ActionRequest implements Parcelable {
     private final boolean mIsFullAction;
     private boolean mActionCacheAllowed = false;
     private boolean mTerminateOnFailure = true;
+    private String mSupersessionKey;
     private final ActionKey mActionKey;
 
     Bundle mArgs;
@@ -38,7 +56,7 @@ public class ActionRequest implements Parcelable {
                          boolean cacheAllowed,
                          boolean terminateOnFailure) {
         mActionKey = actionKey;
-        mIsFullAction = mActionKey.value() instanceof FullAction;
+        mIsFullAction = isFullAction(mActionKey);
         mActionCacheAllowed = cacheAllowed;
         mTerminateOnFailure = terminateOnFailure;
         mArgs = args;
@@ -59,15 +77,20 @@ public class ActionRequest implements Parcelable {
 
     public ActionRequest(ActionKey actionKey) {
         mActionKey = actionKey;
-        mIsFullAction = mActionKey.value() instanceof FullAction;
+        mIsFullAction = isFullAction(mActionKey);
         mArgs = new Bundle();
     }
 
     protected ActionRequest(Parcel in) {
         mActionCacheAllowed = in.readInt() == 1;
         mTerminateOnFailure = in.readInt() == 1;
-        mActionKey = (ActionKey) in.readSerializable();
-        mIsFullAction = mActionKey.value() instanceof FullAction;
+        final int actionId = in.readInt();
+        if (actionId != ActionRegistry.NO_ID) {
+            mActionKey = ActionRegistry.keyOf(actionId);
+        } else {
+            mActionKey = (ActionKey) in.readSerializable();
+        }
+        mIsFullAction = isFullAction(mActionKey);
         in.readList(mDependencies, getClassLoader());
         in.readList(mNext, getClassLoader());
         in.readList(mRequirementFactories, getClassLoader());
@@ -75,12 +98,70 @@ public class ActionRequest implements Parcelable {
         if (mArgs == null) {
             mArgs = new Bundle();
         }
+        mSupersessionKey = in.readString();
+    }
+
+    /**
+     * Generated keys know this at compile time, so decoding a request never constructs its action.
+     */
+    private static boolean isFullAction(ActionKey key) {
+        if (key instanceof GeneratedActionKey) {
+            return ((GeneratedActionKey) key).isFullAction();
+        }
+        return key.value() instanceof FullAction;
     }
 
     public boolean isFullAction() {
         return mIsFullAction;
     }
 
+    /**
+     * @return true if this request has no dependencies, requirements or chained requests.
+     */
+    public boolean isStandalone() {
+        return mDependencies.isEmpty() && mNext.isEmpty() && mRequirementFactories.isEmpty();
+    }
+
+    Action action() {
+        return mActionKey.value();
+    }
+
+    /**
+     * @return the rate limit declared on the action's @Action annotation, or null.
+     */
+    RateLimit declaredRateLimit() {
+        return mActionKey instanceof GeneratedActionKey ? ((GeneratedActionKey) mActionKey).rateLimit() : null;
+    }
+
+    /**
+     * @return the RequestLane declared on the action's @Action annotation.
+     */
+    int declaredLane() {
+        return mActionKey instanceof GeneratedActionKey ? ((GeneratedActionKey) mActionKey).lane() : RequestLane.DEFAULT;
+    }
+
+    /**
+     * Puts the extras the service routes this request by next to it, see EXTRA_REQUEST_ACTION_TYPE.
+     * A lane or rate limit already in the bundle is kept.
+     */
+    void describeTo(Bundle bundle) {
+        final Class<? extends Action> type = type();
+        bundle.putString(EventServiceImpl.EXTRA_REQUEST_ACTION_TYPE, type.getName());
+        if (mSupersessionKey != null) {
+            bundle.putString(EventServiceImpl.EXTRA_REQUEST_SUPERSESSION_KEY, mSupersessionKey);
+        }
+        if (isStandalone() && BatchAction.class.isAssignableFrom(type)) {
+            bundle.putBoolean(EventServiceImpl.EXTRA_REQUEST_BATCHABLE, true);
+        }
+        if (!bundle.containsKey(EventServiceImpl.EXTRA_REQUEST_LANE)) {
+            bundle.putInt(EventServiceImpl.EXTRA_REQUEST_LANE, declaredLane());
+        }
+        final RateLimit rateLimit = declaredRateLimit();
+        if (rateLimit != null && !bundle.containsKey(EventServiceImpl.EXTRA_REQUEST_RATE_LIMIT)) {
+            bundle.putParcelable(EventServiceImpl.EXTRA_REQUEST_RATE_LIMIT, rateLimit);
+        }
+    }
+
     public ActionRequest actionCacheAllowed(boolean cacheAllowed) {
         mActionCacheAllowed = cacheAllowed;
         return this;
@@ -95,6 +176,19 @@ public class ActionRequest implements Parcelable {
         return mTerminateOnFailure;
     }
 
+    /**
+     * @param key when the service takes a newer request with the same key, this one is dropped with a
+     *            RequestRejectedResult if it has not started, or cancelled through its CancellationToken if it has.
+     */
+    public ActionRequest supersessionKey(String key) {
+        mSupersessionKey = key;
+        return this;
+    }
+
+    public String supersessionKey() {
+        return mSupersessionKey;
+    }
+
     public boolean actionCacheAllowed() {
         return mActionCacheAllowed;
     }
@@ -121,51 +215,80 @@ public class ActionRequest implements Parcelable {
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeInt(mActionCacheAllowed ? 1 : 0);
         dest.writeInt(mTerminateOnFailure ? 1 : 0);
-        dest.writeSerializable(mActionKey);
+        final int actionId = ActionRegistry.idOf(mActionKey);
+        dest.writeInt(actionId);
+        if (actionId == ActionRegistry.NO_ID) {
+            dest.writeSerializable(mActionKey);
+        }
         dest.writeList(mDependencies);
         dest.writeList(mNext);
         dest.writeList(mRequirementFactories);
         dest.writeBundle(mArgs != null ? mArgs : new Bundle());
+        dest.writeString(mSupersessionKey);
     }
 
+    /**
+     * Processes dependencies, requirements, this request's action and chained requests, waits on this thread
+     * for any AsyncAction in the graph.
+     */
     public void process(final ResultDeliver resultDeliver,
                         final RequestEnv env,
                         final boolean isOriginalRequest) {
-        //Handle dependencies.
-        for (ActionRequest actionRequest : mDependencies) {
-            actionRequest.process(resultDeliver, env, false);
-            if (env.getResults().hasFailed() && actionRequest.terminateOnFailure()) {
-                onCompletion(resultDeliver, null, isOriginalRequest);
-                return;
+        final CountDownLatch done = new CountDownLatch(1);
+        if (processAsync(resultDeliver, env, isOriginalRequest, null, new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
             }
+        })) {
+            return;
         }
-        //Handle requirements.
-        for (Requirement requirement : mRequirementFactories) {
-            if (!requirement.get().isSatisfied(env, this)) {
-                onCompletion(resultDeliver, null, isOriginalRequest);
-                return;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
         }
-        //Process current request.
-        final Action action = mActionKey.value();
-        final ActionResult result = action.processRequest(env.getContext(), this, env);
-        if (result != null) {
-            resultDeliver.deliverResult(result, false);
-            env.getResults().add(this, result);
-            if (env.getResults().hasFailed() && terminateOnFailure()) {
-                onCompletion(resultDeliver, result, isOriginalRequest);
-                return;
-            }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
-        //Handle chained events.
-        for (ActionRequest actionRequest : mNext) {
-            actionRequest.process(resultDeliver, env, false);
-            if (env.getResults().hasFailed() && actionRequest.terminateOnFailure()) {
-                onCompletion(resultDeliver, result, isOriginalRequest);
-                return;
-            }
+    }
+
+    /**
+     * Like process(), but returns as soon as an AsyncAction is in flight instead of waiting for it.
+     *
+     * @param resumeExecutor runs the rest of the graph once an AsyncAction completes,
+     *                       null to run it on the thread that completed it.
+     * @param onDone         run once the graph is done, only if this returned false.
+     * @return true if the graph was done before this returned.
+     */
+    public boolean processAsync(ResultDeliver resultDeliver, RequestEnv env, boolean isOriginalRequest,
+                                Executor resumeExecutor, Runnable onDone) {
+        return new Walk(resultDeliver, env, isOriginalRequest, resumeExecutor, onDone, null).advance();
+    }
+
+    private static ServiceMetrics.ActionStats statsOf(Action action, RequestEnv env) {
+        final ServiceMetrics metrics = env instanceof ActionRequestEnv ? ((ActionRequestEnv) env).getMetrics() : null;
+        return metrics != null ? metrics.action(action.getClass().getName()) : null;
+    }
+
+    private ActionResult processRequest(Action action, RequestEnv env) {
+        final ServiceMetrics.ActionStats stats = statsOf(action, env);
+        if (stats == null) {
+            return action.processRequest(env.getContext(), this, env);
+        }
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final ActionResult result = action.processRequest(env.getContext(), this, env);
+            failed = result != null && !result.isSuccess();
+            return result;
+        } finally {
+            stats.onProcessed(System.nanoTime() - start, failed);
         }
-        onCompletion(resultDeliver, result, isOriginalRequest);
     }
 
     private void onCompletion(ResultDeliver resultDeliver, final ActionResult result, boolean isOriginalRequest) {
@@ -187,6 +310,9 @@ public class ActionRequest implements Parcelable {
     }
 
     public Class<? extends Action> type() {
+        if (mActionKey instanceof GeneratedActionKey) {
+            return ((GeneratedActionKey) mActionKey).actionType();
+        }
         return mActionKey.value().getClass();
     }
 
@@ -198,4 +324,180 @@ public class ActionRequest implements Parcelable {
     public ClassLoader getClassLoader() {
         return type().getClassLoader();
     }
+    /**
+     * One pass over a request's graph that can stop at an AsyncAction and be resumed when its result arrives.
+     * Only one thread advances a walk at a time.
+     */
+    private class Walk {
+        private final ResultDeliver mDeliver;
+        private final RequestEnv mEnv;
+        private final boolean mIsOriginalRequest;
+        private final Executor mResumeExecutor;
+        private final Runnable mOnDone;
+        private final Walk mParent;
+        private final AtomicInteger mAsyncState = new AtomicInteger();
+        private int mStage = STAGE_DEPENDENCIES;
+        private int mIndex;
+        private ActionRequest mAwaiting;
+        private ActionResult mResult;
+
+        Walk(ResultDeliver deliver, RequestEnv env, boolean isOriginalRequest, Executor resumeExecutor,
+             Runnable onDone, Walk parent) {
+            mDeliver = deliver;
+            mEnv = env;
+            mIsOriginalRequest = isOriginalRequest;
+            mResumeExecutor = resumeExecutor;
+            mOnDone = onDone;
+            mParent = parent;
+        }
+
+        /**
+         * @return true if the walk is done, false if it waits on an AsyncAction.
+         */
+        boolean advance() {
+            final CancellationToken token = ActionRequestEnv.cancellationToken(mEnv);
+            while (true) {
+                switch (mStage) {
+                    case STAGE_DEPENDENCIES:
+                        if (awaitedFailed()) {
+                            return finish(null);
+                        }
+                        if (mIndex == mDependencies.size()) {
+                            mStage = STAGE_REQUIREMENTS;
+                            break;
+                        }
+                        if (token.isCancelled()) {
+                            return finish(null);
+                        }
+                        if (!descend(mDependencies.get(mIndex++))) {
+                            return false;
+                        }
+                        break;
+                    case STAGE_REQUIREMENTS:
+                        for (Requirement requirement : mRequirementFactories) {
+                            if (token.isCancelled() || !requirement.get().isSatisfied(mEnv, ActionRequest.this)) {
+                                return finish(null);
+                            }
+                        }
+                        if (token.isCancelled()) {
+                            return finish(null);
+                        }
+                        mStage = STAGE_ACTION;
+                        break;
+                    case STAGE_ACTION:
+                        mStage = STAGE_RESULT;
+                        final Action action = mActionKey.value();
+                        if (action instanceof AsyncAction) {
+                            if (!startAsync((AsyncAction) action)) {
+                                return false;
+                            }
+                        } else {
+                            mResult = processRequest(action, mEnv);
+                        }
+                        break;
+                    case STAGE_RESULT:
+                        if (mResult != null) {
+                            mDeliver.deliverResult(mResult, false);
+                            mEnv.getResults().add(ActionRequest.this, mResult);
+                            if (mEnv.getResults().hasFailed() && terminateOnFailure()) {
+                                return finish(mResult);
+                            }
+                        }
+                        mStage = STAGE_CHAINED;
+                        mIndex = 0;
+                        break;
+                    default:
+                        if (awaitedFailed()) {
+                            return finish(mResult);
+                        }
+                        if (mIndex == mNext.size() || token.isCancelled()) {
+                            return finish(mResult);
+                        }
+                        if (!descend(mNext.get(mIndex++))) {
+                            return false;
+                        }
+                        break;
+                }
+            }
+        }
+
+        private boolean descend(ActionRequest request) {
+            mAwaiting = request;
+            return request.new Walk(mDeliver, mEnv, false, mResumeExecutor, null, this).advance();
+        }
+
+        private boolean awaitedFailed() {
+            final ActionRequest awaiting = mAwaiting;
+            mAwaiting = null;
+            return awaiting != null && mEnv.getResults().hasFailed() && awaiting.terminateOnFailure();
+        }
+
+        /**
+         * @return true if the action completed before this returned.
+         */
+        private boolean startAsync(AsyncAction action) {
+            final ServiceMetrics.ActionStats stats = statsOf(action, mEnv);
+            final long start = System.nanoTime();
+            mAsyncState.set(ASYNC_RUNNING);
+            action.start(mEnv.getContext(), ActionRequest.this, mEnv, new AsyncAction.ResultCallback() {
+                @Override
+                public void onResult(ActionResult result) {
+                    if (stats != null) {
+                        stats.onProcessed(System.nanoTime() - start, result != null && !result.isSuccess());
+                    }
+                    mResult = result;
+                    if (!mAsyncState.compareAndSet(ASYNC_RUNNING, ASYNC_DONE)) {
+                        resumeLater();
+                    }
+                }
+            });
+            return !mAsyncState.compareAndSet(ASYNC_RUNNING, ASYNC_SUSPENDED);
+        }
+
+        private void resumeLater() {
+            if (mResumeExecutor == null) {
+                resume();
+                return;
+            }
+            mResumeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    resume();
+                }
+            });
+        }
+
+        private void resume() {
+            final boolean done;
+            try {
+                done = advance();
+            } catch (RuntimeException e) {
+                //Nobody up the stack would see this, end the whole request instead of leaving it hanging.
+                Log.e(TAG, "Request failed after an async action: " + ActionRequest.this, e);
+                Walk root = this;
+                while (root.mParent != null) {
+                    root = root.mParent;
+                }
+                if (root.mIsOriginalRequest) {
+                    root.mDeliver.deliverResult(null, true);
+                }
+                if (root.mOnDone != null) {
+                    root.mOnDone.run();
+                }
+                return;
+            }
+            if (done) {
+                if (mParent != null) {
+                    mParent.resume();
+                } else if (mOnDone != null) {
+                    mOnDone.run();
+                }
+            }
+        }
+
+        private boolean finish(ActionResult result) {
+            onCompletion(mDeliver, result, mIsOriginalRequest);
+            return true;
+        }
+    }
 }
@@ -3,6 +3,8 @@ package com.edisonwang.ps.lib;
 import android.content.Context;
 import android.os.Bundle;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * @author edi
  */
@@ -12,12 +14,28 @@ public class ActionRequestEnv implements RequestEnv {
     private final ActionCacheFactory mActionCacheFactory;
     private final ActionResults mResults;
     private final EventServiceImpl mServiceImpl;
+    private final ServiceMetrics mMetrics;
+    private final boolean mHasDeadline;
+    private final long mDeadlineNs;
+    private final CancellationToken mCancellationToken;
 
     public ActionRequestEnv(Bundle bundle, ActionCacheFactory actionCacheFactory, EventServiceImpl service) {
+        this(bundle, actionCacheFactory, service, null, new CancellationToken());
+    }
+
+    /**
+     * @param metrics if set, every action processed in this request is counted in it.
+     */
+    public ActionRequestEnv(Bundle bundle, ActionCacheFactory actionCacheFactory, EventServiceImpl service,
+                            ServiceMetrics metrics, CancellationToken cancellationToken) {
         mBundle = bundle;
         mActionCacheFactory = actionCacheFactory;
         mResults = new ActionResults();
         mServiceImpl = service;
+        mMetrics = metrics;
+        mCancellationToken = cancellationToken;
+        mHasDeadline = bundle.containsKey(EventServiceImpl.EXTRA_REQUEST_DEADLINE_NS);
+        mDeadlineNs = bundle.getLong(EventServiceImpl.EXTRA_REQUEST_DEADLINE_NS);
     }
 
     @Override
@@ -44,4 +62,41 @@ public class ActionRequestEnv implements RequestEnv {
     public ActionCacheFactory getActionCacheFactory() {
         return mActionCacheFactory;
     }
+
+    /**
+     * @return milliseconds left before the env's deadline, Long.MAX_VALUE for envs that are not ActionRequestEnvs.
+     */
+    public static long remainingMs(RequestEnv env) {
+        return env instanceof ActionRequestEnv ? ((ActionRequestEnv) env).getRemainingMs() : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the env's token, or one that is never cancelled for envs that are not ActionRequestEnvs.
+     */
+    public static CancellationToken cancellationToken(RequestEnv env) {
+        return env instanceof ActionRequestEnv ? ((ActionRequestEnv) env).getCancellationToken()
+                : new CancellationToken();
+    }
+
+    /**
+     * @return milliseconds left before the request's deadline, negative once it passed,
+     * Long.MAX_VALUE if it has none.
+     */
+    public long getRemainingMs() {
+        if (!mHasDeadline) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(mDeadlineNs - System.nanoTime());
+    }
+
+    /**
+     * @return the token that is cancelled when the request is, for long actions to poll or listen to.
+     */
+    public CancellationToken getCancellationToken() {
+        return mCancellationToken;
+    }
+
+    ServiceMetrics getMetrics() {
+        return mMetrics;
+    }
 }
@@ -19,6 +19,7 @@ public abstract class ActionRequestHelper {
     private Bundle mValues;
     private boolean mCacheAllowed;
     private boolean mTerminateOnFailure = true;
+    private String mSupersessionKey;
 
     /**
      * @param values the arguments for this request.
@@ -123,6 +124,15 @@ public abstract class ActionRequestHelper {
         return this;
     }
 
+    /**
+     * @param key a newer request with the same key replaces this one in the service, see ActionRequest.supersessionKey().
+     * @return self
+     */
+    public ActionRequestHelper supersessionKey(String key) {
+        mSupersessionKey = key;
+        return this;
+    }
+
     /**
      * @return a brand new request using arguments and settings from this builder.
      */
@@ -134,6 +144,6 @@ public abstract class ActionRequestHelper {
                 mNext,
                 mRequirements,
                 mCacheAllowed,
-                mTerminateOnFailure);
+                mTerminateOnFailure).supersessionKey(mSupersessionKey);
     }
 }
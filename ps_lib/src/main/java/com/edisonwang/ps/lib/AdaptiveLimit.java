@@ -0,0 +1,98 @@
+package com.edisonwang.ps.lib;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts the number of threads of one limited queue between min and max, see EventService.createAdaptiveLimit().
+ *
+ * Every windowSize tasks it compares their mean run time with the lowest mean seen lately. If it went above
+ * tolerance times that, the queue is taken as overloaded and its limit is cut by a quarter, otherwise it grows
+ * by one if tasks were waiting for a thread. The lowest mean drifts up to twice itself over BASELINE_DRIFT_MS,
+ * so a network that got slower for good is not mistaken for overload forever.
+ *
+ * @author edi
+ */
+public class AdaptiveLimit {
+
+    static final long BASELINE_DRIFT_MS = 60000;
+
+    public final int min;
+    public final int max;
+
+    /**
+     * A mean run time above this many times the lowest one is taken as overload.
+     */
+    public final float tolerance;
+
+    /**
+     * Tasks per decision.
+     */
+    public final int windowSize;
+
+    private int mLimit;
+    private long mBaselineNs = Long.MAX_VALUE;
+    private long mLastWindowNs;
+    private long mWindowSumNs;
+    private int mWindowCount;
+    private boolean mWindowSaturated;
+
+    public AdaptiveLimit(int min, int max) {
+        this(min, max, 2f, 20);
+    }
+
+    public AdaptiveLimit(int min, int max, float tolerance, int windowSize) {
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        this.tolerance = tolerance;
+        this.windowSize = Math.max(1, windowSize);
+    }
+
+    /**
+     * @param initial the limit the queue was requested with.
+     * @return the limit to start with.
+     */
+    synchronized int start(int initial) {
+        mLimit = Math.min(max, Math.max(min, initial));
+        return mLimit;
+    }
+
+    /**
+     * @param runNanos  how long a task of the queue ran.
+     * @param saturated if tasks were waiting for a thread when it finished.
+     */
+    synchronized void onSample(long runNanos, boolean saturated) {
+        mWindowSumNs += runNanos;
+        mWindowSaturated |= saturated;
+        if (++mWindowCount < windowSize) {
+            return;
+        }
+        final long meanNs = mWindowSumNs / mWindowCount;
+        final long now = System.nanoTime();
+        if (mBaselineNs == Long.MAX_VALUE) {
+            mBaselineNs = meanNs;
+        } else {
+            final double drift = (double) TimeUnit.NANOSECONDS.toMillis(now - mLastWindowNs) / BASELINE_DRIFT_MS;
+            mBaselineNs = Math.min(meanNs, mBaselineNs + (long) (mBaselineNs * Math.min(1, drift)));
+        }
+        mLastWindowNs = now;
+        if (meanNs > mBaselineNs * tolerance) {
+            mLimit = Math.max(min, mLimit - Math.max(1, mLimit / 4));
+        } else if (mWindowSaturated) {
+            mLimit = Math.min(max, mLimit + 1);
+        }
+        mWindowSumNs = 0;
+        mWindowCount = 0;
+        mWindowSaturated = false;
+    }
+
+    synchronized int getLimit() {
+        return mLimit;
+    }
+
+    public interface Factory {
+        /**
+         * @return a new AdaptiveLimit for the queue, or null to keep its limit fixed.
+         */
+        AdaptiveLimit create(String queueTag, int queueLimit);
+    }
+}
@@ -0,0 +1,92 @@
+package com.edisonwang.ps.lib;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts requests admitted but not started, and decides from them and the heap whether to take a new one.
+ *
+ * Decisions read a few atomics and never take a lock shared with other requests.
+ *
+ * @author edi
+ */
+class AdmissionControl {
+
+    static final String RESERVED_QUEUE = "ps-reserved";
+
+    static final int ADMIT = 0;
+    static final int ADMIT_RESERVED = 1;
+    static final int SHED = 2;
+
+    private final AdmissionPolicy mPolicy;
+    private final AtomicInteger mQueued = new AtomicInteger();
+    private final ConcurrentHashMap<String, AtomicInteger> mQueueDepths = new ConcurrentHashMap<>();
+    private final Runtime mRuntime = Runtime.getRuntime();
+
+    AdmissionControl(AdmissionPolicy policy) {
+        mPolicy = policy;
+    }
+
+    AdmissionPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * @param lane the request's RequestLane, only interactive requests are taken while overloaded.
+     * @return ADMIT, ADMIT_RESERVED for an interactive request while overloaded, or SHED.
+     * Admitted requests must be passed to onStarted() or onDropped() once.
+     */
+    int admit(String queue, int lane) {
+        final AtomicInteger depth = depth(queue);
+        final boolean overloaded = overloaded(depth.get());
+        if (!overloaded) {
+            mQueued.incrementAndGet();
+            depth.incrementAndGet();
+            return ADMIT;
+        }
+        if (lane == RequestLane.INTERACTIVE) {
+            mQueued.incrementAndGet();
+            depth.incrementAndGet();
+            return ADMIT_RESERVED;
+        }
+        return SHED;
+    }
+
+    void onStarted(String queue) {
+        mQueued.decrementAndGet();
+        depth(queue).decrementAndGet();
+    }
+
+    /**
+     * Called for admitted requests that will never start, e.g. rejected by their rate limit.
+     */
+    void onDropped(String queue) {
+        onStarted(queue);
+    }
+
+    private boolean overloaded(int queueDepth) {
+        if (mPolicy.maxQueued > 0 && mQueued.get() >= mPolicy.maxQueued) {
+            return true;
+        }
+        if (mPolicy.maxQueueDepth > 0 && queueDepth >= mPolicy.maxQueueDepth) {
+            return true;
+        }
+        if (mPolicy.heapWatermark > 0) {
+            final long used = mRuntime.totalMemory() - mRuntime.freeMemory();
+            return used > mRuntime.maxMemory() * mPolicy.heapWatermark;
+        }
+        return false;
+    }
+
+    private AtomicInteger depth(String queue) {
+        AtomicInteger depth = mQueueDepths.get(queue);
+        if (depth == null) {
+            final AtomicInteger created = new AtomicInteger();
+            depth = mQueueDepths.putIfAbsent(queue, created);
+            if (depth == null) {
+                depth = created;
+            }
+        }
+        return depth;
+    }
+}
@@ -0,0 +1,38 @@
+package com.edisonwang.ps.lib;
+
+/**
+ * When the service stops taking work that is not interactive, see EventService.getAdmissionPolicy().
+ *
+ * While any watermark is crossed, requests outside RequestLane.INTERACTIVE are shed with a RequestRejectedResult,
+ * or deferred once by deferMs first. Interactive requests are always taken, and while the service is overloaded
+ * they skip their queue's backlog and run on a reserved queue of reservedThreads.
+ *
+ * @author edi
+ */
+public class AdmissionPolicy {
+
+    /**
+     * Requests admitted but not yet started, across all queues, 0 for no limit.
+     */
+    public int maxQueued = 256;
+
+    /**
+     * Requests admitted but not yet started in one queue, 0 for no limit.
+     */
+    public int maxQueueDepth = 64;
+
+    /**
+     * Share of the maximum heap in use above which the service is overloaded, 0 to ignore the heap.
+     */
+    public float heapWatermark = 0.85f;
+
+    /**
+     * Threads of the reserved queue interactive requests use while the service is overloaded.
+     */
+    public int reservedThreads = 1;
+
+    /**
+     * If above 0, a request that would be shed is retried once after this long instead.
+     */
+    public long deferMs;
+}
@@ -0,0 +1,104 @@
+package com.edisonwang.ps.lib;
+
+import android.content.Context;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An action that starts its work and returns without waiting for it, e.g. on a non-blocking IO client.
+ *
+ * The service thread that started it is released while the work is in flight. Once the Completion is
+ * called, the rest of the request's graph is resumed on the request's queue. Where a result is needed
+ * right away, e.g. from processRequest(), the calling thread waits for it.
+ *
+ * @author edi
+ */
+public abstract class AsyncAction implements Action {
+
+    /**
+     * Starts the work, call completion.complete() or completion.fail() exactly once, from any thread.
+     * Further calls are ignored.
+     */
+    protected abstract void processAsync(Context context, ActionRequest request, RequestEnv env,
+                                         Completion completion) throws Throwable;
+
+    /**
+     * Called if processAsync threw or the completion failed.
+     *
+     * @return the error that will be sent as a result.
+     */
+    protected abstract ActionResult onError(Context context, ActionRequest request, RequestEnv env, Throwable e);
+
+    @Override
+    public final ActionResult processRequest(Context context, ActionRequest request, RequestEnv env) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ActionResult[] result = new ActionResult[1];
+        start(context, request, env, new ResultCallback() {
+            @Override
+            public void onResult(ActionResult r) {
+                result[0] = r;
+                latch.countDown();
+            }
+        });
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return result[0];
+    }
+
+    final void start(Context context, ActionRequest request, RequestEnv env, ResultCallback callback) {
+        final Completion completion = new Completion(this, context, request, env, callback);
+        try {
+            processAsync(context, request, env, completion);
+        } catch (Throwable e) {
+            completion.fail(e);
+        }
+    }
+
+    interface ResultCallback {
+        void onResult(ActionResult result);
+    }
+
+    public static final class Completion {
+        private final AtomicBoolean mDone = new AtomicBoolean();
+        private final AsyncAction mAction;
+        private final Context mContext;
+        private final ActionRequest mRequest;
+        private final RequestEnv mEnv;
+        private final ResultCallback mCallback;
+
+        Completion(AsyncAction action, Context context, ActionRequest request, RequestEnv env,
+                   ResultCallback callback) {
+            mAction = action;
+            mContext = context;
+            mRequest = request;
+            mEnv = env;
+            mCallback = callback;
+        }
+
+        /**
+         * @param result the result of the request, can be null.
+         */
+        public void complete(ActionResult result) {
+            if (mDone.compareAndSet(false, true)) {
+                mCallback.onResult(result);
+            }
+        }
+
+        public void fail(Throwable e) {
+            if (mDone.compareAndSet(false, true)) {
+                mCallback.onResult(mAction.onError(mContext, mRequest, mEnv, e));
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.edisonwang.ps.lib;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An action that processes many requests in one call, e.g. against a batch endpoint.
+ *
+ * Requests without dependencies, requirements or chained actions that are sent to the same limited queue
+ * are drained together when a thread picks one of them up, and each requester gets its own result.
+ * Requests on new threads, or with a graph around them, are processed as a batch of one.
+ *
+ * @author edi
+ */
+public abstract class BatchAction implements Action {
+
+    /**
+     * @return the most requests processed in one call.
+     */
+    public int getMaxBatchSize() {
+        return 16;
+    }
+
+    /**
+     * @return how long the thread that picked up a request waits for more to arrive while the batch is not full,
+     * it holds a thread of the queue while it waits.
+     */
+    public long getMaxBatchDelayMs() {
+        return 0;
+    }
+
+    /**
+     * @param env the environment of the first request, its CancellationToken is cancelled once every request
+     *            of the batch is.
+     * @return one result per request in the same order, null entries deliver no result.
+     */
+    protected abstract List<ActionResult> processBatch(Context context, List<ActionRequest> requests, RequestEnv env)
+            throws Throwable;
+
+    /**
+     * Called for every request of a batch that threw.
+     *
+     * @return the error that will be sent as the request's result.
+     */
+    protected abstract ActionResult onError(Context context, ActionRequest request, RequestEnv env, Throwable e);
+
+    @Override
+    public final ActionResult processRequest(Context context, ActionRequest request, RequestEnv env) {
+        return processBatchRequest(context, Collections.singletonList(request), env).get(0);
+    }
+
+    public final List<ActionResult> processBatchRequest(Context context, List<ActionRequest> requests, RequestEnv env) {
+        try {
+            final List<ActionResult> results = processBatch(context, requests, env);
+            if (results == null || results.size() != requests.size()) {
+                throw new IllegalStateException(getClass().getName() + " returned "
+                        + (results == null ? "no" : results.size()) + " results for " + requests.size() + " requests.");
+            }
+            return results;
+        } catch (Throwable e) {
+            final ArrayList<ActionResult> errors = new ArrayList<>(requests.size());
+            for (ActionRequest request : requests) {
+                errors.add(onError(context, request, env, e));
+            }
+            return errors;
+        }
+    }
+}
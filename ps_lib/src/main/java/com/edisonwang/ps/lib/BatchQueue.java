@@ -0,0 +1,51 @@
+package com.edisonwang.ps.lib;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tasks of one BatchAction type waiting in one limited queue.
+ *
+ * Every task is also in the executor's queue. The first one a thread picks up drains the others,
+ * which then find themselves gone from here and do nothing when their turn comes.
+ *
+ * @author edi
+ */
+class BatchQueue<T> {
+
+    private final ArrayDeque<T> mPending = new ArrayDeque<>();
+
+    synchronized void add(T task) {
+        mPending.add(task);
+        notifyAll();
+    }
+
+    /**
+     * @return the task followed by up to maxSize - 1 pending tasks in arrival order,
+     * or null if the task was already drained into another batch.
+     */
+    synchronized ArrayList<T> drain(T task, int maxSize, long maxDelayMs) {
+        if (!mPending.remove(task)) {
+            return null;
+        }
+        final ArrayList<T> batch = new ArrayList<>(Math.min(maxSize, mPending.size() + 1));
+        batch.add(task);
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+        while (true) {
+            while (batch.size() < maxSize && !mPending.isEmpty()) {
+                batch.add(mPending.poll());
+            }
+            final long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (batch.size() >= maxSize || remainingMs <= 0) {
+                return batch;
+            }
+            try {
+                wait(remainingMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return batch;
+            }
+        }
+    }
+}
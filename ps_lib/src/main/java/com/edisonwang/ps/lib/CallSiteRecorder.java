@@ -0,0 +1,93 @@
+package com.edisonwang.ps.lib;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers where sampled requests were made, on the requesting side only.
+ *
+ * A call site is the first few frames outside of this library joined in one line. Equal call sites share
+ * one string, and at most MAX_PENDING requests are remembered, the oldest are forgotten first.
+ *
+ * @author edi
+ */
+class CallSiteRecorder {
+
+    static final int MAX_PENDING = 256;
+    private static final int MAX_INTERNED = 1024;
+    private static final String LIB_PACKAGE = CallSiteRecorder.class.getPackage().getName() + ".";
+
+    private final int mSampleRate;
+    private final HashSet<Class<? extends Action>> mActionTypes;
+    private final int mFrames;
+    private final AtomicInteger mCounter = new AtomicInteger();
+    private final ConcurrentHashMap<String, String> mInterned = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, String> mPending = new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_PENDING;
+        }
+    };
+
+    CallSiteRecorder(PennStation.PennStationOptions options) {
+        mSampleRate = options.requestStackSampleRate;
+        mActionTypes = new HashSet<>(options.requestStackActions);
+        mFrames = Math.max(1, options.requestStackFrames);
+    }
+
+    /**
+     * @return the call site of a request of this type if it is sampled, otherwise null.
+     */
+    String capture(Class<? extends Action> type) {
+        if (!mActionTypes.contains(type)
+                && (mSampleRate <= 0 || mCounter.getAndIncrement() % mSampleRate != 0)) {
+            return null;
+        }
+        final StackTraceElement[] stack = new Throwable().getStackTrace();
+        final StringBuilder sb = new StringBuilder();
+        int frames = 0;
+        for (int i = 0; i < stack.length && frames < mFrames; i++) {
+            if (stack[i].getClassName().startsWith(LIB_PACKAGE)) {
+                continue;
+            }
+            if (frames++ > 0) {
+                sb.append(" < ");
+            }
+            sb.append(stack[i]);
+        }
+        return intern(sb.toString());
+    }
+
+    private String intern(String callSite) {
+        final String interned = mInterned.get(callSite);
+        if (interned != null) {
+            return interned;
+        }
+        if (mInterned.size() < MAX_INTERNED) {
+            final String previous = mInterned.putIfAbsent(callSite, callSite);
+            return previous != null ? previous : callSite;
+        }
+        return callSite;
+    }
+
+    void put(String requestId, String callSite) {
+        synchronized (mPending) {
+            mPending.put(requestId, callSite);
+        }
+    }
+
+    String get(String requestId) {
+        synchronized (mPending) {
+            return mPending.get(requestId);
+        }
+    }
+
+    String remove(String requestId) {
+        synchronized (mPending) {
+            return mPending.remove(requestId);
+        }
+    }
+}
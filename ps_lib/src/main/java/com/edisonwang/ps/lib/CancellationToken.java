@@ -0,0 +1,130 @@
+package com.edisonwang.ps.lib;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Tells a running request that it was cancelled through PennStation.cancelAction(),
+ * see ActionRequestEnv.cancellationToken().
+ *
+ * ActionRequest.process() stops between dependencies, requirements and chained actions once it is cancelled,
+ * long actions can poll isCancelled(), register a callback or opt in to being interrupted.
+ *
+ * @author edi
+ */
+public class CancellationToken {
+
+    private final int[] mLock = {};
+    private volatile boolean mCancelled;
+    private ArrayList<Runnable> mCallbacks;
+    private Thread mInterruptible;
+    //The thread cancel() interrupted, its flag is cleared once the request leaves it.
+    private Thread mInterrupted;
+    private boolean mFinished;
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public void throwIfCancelled() {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Runs the callback on the service's main thread when the request is cancelled, right away if it already was.
+     * Callbacks should only signal the action, e.g. abort a connection.
+     */
+    public void register(Runnable callback) {
+        synchronized (mLock) {
+            if (!mCancelled) {
+                if (mCallbacks == null) {
+                    mCallbacks = new ArrayList<>(2);
+                }
+                mCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    public void unregister(Runnable callback) {
+        synchronized (mLock) {
+            if (mCallbacks != null) {
+                mCallbacks.remove(callback);
+            }
+        }
+    }
+
+    /**
+     * @param interrupt if true, the calling thread is interrupted when the request is cancelled,
+     *                  until this is called again with false, the request ends or it continues on another thread.
+     */
+    public void interruptOnCancel(boolean interrupt) {
+        synchronized (mLock) {
+            if (mFinished) {
+                return;
+            }
+            mInterruptible = interrupt ? Thread.currentThread() : null;
+            if (interrupt && mCancelled) {
+                mInterrupted = Thread.currentThread();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    void cancel() {
+        final ArrayList<Runnable> callbacks;
+        synchronized (mLock) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            if (mInterruptible != null) {
+                //Under the lock so the thread cannot have finished the request and moved on.
+                mInterrupted = mInterruptible;
+                mInterruptible.interrupt();
+            }
+            callbacks = mCallbacks;
+            mCallbacks = null;
+        }
+        if (callbacks != null) {
+            for (Runnable callback : callbacks) {
+                callback.run();
+            }
+        }
+    }
+
+    /**
+     * Called on the thread a request leaves to wait on an AsyncAction, which then runs other tasks.
+     * Stops interrupting it and clears an interrupt that was meant for the request.
+     */
+    void detach() {
+        synchronized (mLock) {
+            if (mInterruptible == Thread.currentThread()) {
+                mInterruptible = null;
+            }
+            clearInterrupt();
+        }
+    }
+
+    /**
+     * Called on the request's thread once it is done, so a late interrupt does not leak to the next task.
+     */
+    void finish() {
+        synchronized (mLock) {
+            mFinished = true;
+            mInterruptible = null;
+            mCallbacks = null;
+            clearInterrupt();
+        }
+    }
+
+    private void clearInterrupt() {
+        if (mInterrupted == Thread.currentThread()) {
+            mInterrupted = null;
+            Thread.interrupted();
+        }
+    }
+}
@@ -12,23 +12,54 @@ import android.os.Messenger;
 import android.os.Process;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author edi
  */
-public class DefaultServiceImpl<T extends EventService> implements EventServiceImpl {
+public class DefaultServiceImpl<T extends EventService> implements EventServiceImpl, EventServiceImpl.Diagnostics {
+
+    private static final long SLOW_ACTION_CHECK_INTERVAL_MS = 500;
+    private static final int MAX_IDEMPOTENCY_KEYS = 1024;
 
     private final Handler mMainHandler = new Handler(Looper.getMainLooper());
     private final T mService;
     private final int[] mTaskLock = new int[0];
     private final Bundle mBundle = new Bundle();
     private final HashMap<String, ExecutionRunnable> mSubmittedTasks = new HashMap<>();
+    //The latest task of each supersession key, guarded by mTaskLock.
+    private final HashMap<String, ExecutionRunnable> mSupersession = new HashMap<>();
+    //Idempotency keys of the latest durable requests taken, guarded by mTaskLock.
+    private final LinkedHashMap<String, Idempotent> mIdempotencyKeys = new LinkedHashMap<String, Idempotent>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Idempotent> eldest) {
+            //One still running keeps its key, duplicates wait on it.
+            return size() > MAX_IDEMPOTENCY_KEYS && eldest.getValue().mDone;
+        }
+    };
     private final Messenger mMessenger = new Messenger(new EventServiceHandler<>(new WeakReference<EventServiceImpl>(this)));
+    private final AtomicInteger mTaskSerial = new AtomicInteger();
+    //Only touched on the main thread, where requests are submitted.
+    private final HashMap<String, BatchQueue<ExecutionRunnable>> mBatchQueues = new HashMap<>();
+    private final SerialLanes<ExecutionRunnable> mLanes = new SerialLanes<>();
+    //Only touched on the main thread.
+    private final HashMap<String, RateGate> mRateGates = new HashMap<>();
+    private FlightRecorder mFlightRecorder;
+    private ServiceMetrics mMetrics;
+    private SlowActionWatchdog mWatchdog;
+    private ActionCacheFactory mActionCacheFactory;
     private ActionExecutor mExecutor;
+    private AdmissionControl mAdmission;
     private LinkedHashMap<Integer, Boolean> mStartIds;
 
     public DefaultServiceImpl(T service) {
@@ -36,8 +67,35 @@ public class DefaultServiceImpl<T extends EventService> implements EventServiceI
     }
 
     public void onCreate() {
-        mExecutor = new ActionExecutor();
+        mFlightRecorder = new FlightRecorder(mService.getFlightRecorderCapacity());
+        mMetrics = new ServiceMetrics();
+        mWatchdog = new SlowActionWatchdog(SLOW_ACTION_CHECK_INTERVAL_MS, mService.getSlowActionPolicy(), mFlightRecorder);
+        mActionCacheFactory = mMetrics.meter(mService.getActionCacheFactory());
+        final int sharedPoolSize = mService.getSharedPoolSize();
+        final FairPool fairPool = sharedPoolSize <= 0 ? null : new FairPool(sharedPoolSize, new FairPool.Policy() {
+            @Override
+            public int getWeight(String queueTag) {
+                return mService.getQueueWeight(queueTag);
+            }
+
+            @Override
+            public double getRateLimit(String queueTag) {
+                return mService.getQueueRateLimit(queueTag);
+            }
+        });
+        mExecutor = new ActionExecutor(mFlightRecorder, mMetrics, new AdaptiveLimit.Factory() {
+            @Override
+            public AdaptiveLimit create(String queueTag, int queueLimit) {
+                return mService.createAdaptiveLimit(queueTag, queueLimit);
+            }
+        }, fairPool);
         mStartIds = new LinkedHashMap<>(50, 50);
+        final AdmissionPolicy admissionPolicy = mService.getAdmissionPolicy();
+        mAdmission = admissionPolicy != null ? new AdmissionControl(admissionPolicy) : null;
+        final ActionKey[] preloadActions = mService.getPreloadActions();
+        if (preloadActions != null && preloadActions.length > 0) {
+            mExecutor.executeOnNewThread(new PreloadRunnable(preloadActions));
+        }
     }
 
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -96,35 +154,357 @@ public class DefaultServiceImpl<T extends EventService> implements EventServiceI
     public void cancelRequest(Message msg) {
         Bundle data = msg.getData();
         String reqId = data.getString(EventServiceConnection.EXTRA_REQUEST_ID);
+        mMetrics.onCancelRequested();
+        final ExecutionRunnable runningTask;
+        String admissionQueue = null;
         synchronized (mTaskLock) {
-            ExecutionRunnable runningTask = mSubmittedTasks.remove(reqId);
+            runningTask = mSubmittedTasks.remove(reqId);
             if (runningTask != null) {
                 Log.i(TAG, "Request cancelled." + reqId);
                 runningTask.setCanceled(true);
+                admissionQueue = runningTask.releaseAdmission();
+                mFlightRecorder.record(FlightRecorder.CANCEL, runningTask.mNameId, runningTask.mSerial, 0);
             }
         }
+        if (admissionQueue != null) {
+            mAdmission.onDropped(admissionQueue);
+        }
+        if (runningTask != null) {
+            //Outside of the lock, it runs the action's callbacks.
+            runningTask.mCancellationToken.cancel();
+        }
+    }
+
+    /**
+     * Makes the task the latest of its supersession key. The previous one is only marked, it is skipped
+     * when dequeued instead of being searched for in its queue, or cancelled if it is running. A queued
+     * one gives its admission slot back right away, the tombstone does not count against the queue depth.
+     */
+    private void supersede(ExecutionRunnable task) {
+        final ExecutionRunnable previous;
+        String admissionQueue = null;
+        synchronized (mTaskLock) {
+            previous = mSupersession.put(task.mSupersessionKey, task);
+            if (previous != null) {
+                previous.mSuperseded = true;
+                previous.mCanceled = true;
+                admissionQueue = previous.releaseAdmission();
+                if (previous.mRequestId != null) {
+                    mSubmittedTasks.remove(previous.mRequestId);
+                }
+                mFlightRecorder.record(FlightRecorder.CANCEL, previous.mNameId, previous.mSerial, 0);
+            }
+        }
+        if (admissionQueue != null) {
+            mAdmission.onDropped(admissionQueue);
+        }
+        if (previous != null) {
+            Log.d(TAG, "Task " + previous.mRequestId + " was superseded by " + task.mRequestId + ".");
+            mMetrics.onSuperseded();
+            previous.mCancellationToken.cancel();
+        }
+    }
+
+    public FlightRecorder getFlightRecorder() {
+        return mFlightRecorder;
+    }
+
+    public ServiceMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    public void queryMetrics(Message msg) {
+        final Messenger replyTo = msg.replyTo;
+        if (replyTo == null) {
+            Log.e(TAG, "No messenger to send the metrics to.");
+            return;
+        }
+        final Message reply = Message.obtain();
+        reply.what = QUERY_METRICS;
+        reply.getData().putParcelable(EXTRA_SERVICE_METRICS, mMetrics.snapshot());
+        try {
+            replyTo.send(reply);
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending service metrics.", e);
+        }
+    }
+
+    @Override
+    public void dumpFlightRecorder(Message msg) {
+        final String path = msg.getData().getString(EXTRA_DUMP_PATH);
+        if (path == null) {
+            Log.e(TAG, "No path to dump the flight recorder to.");
+            return;
+        }
+        mExecutor.executeOnNewThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mFlightRecorder.dump(new File(path));
+                    Log.i(TAG, "Flight recorder written to " + path);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to write flight recorder to " + path, e);
+                }
+            }
+        });
     }
 
     public void performRequest(Message msg) {
         performRequest(new ExecutionRunnable(0, msg.getData(), null, msg.replyTo));
     }
 
-    private void performRequest(ExecutionRunnable task) {
+    private void performRequest(final ExecutionRunnable task) {
         final Bundle data = task.getBundle();
         data.setClassLoader(mService.getClassLoader());
+        if (!data.containsKey(EXTRA_REQUEST_ACTION_TYPE)) {
+            //Not sent through EventServiceConnection, e.g. started with an intent.
+            final ActionRequest request = data.getParcelable(EXTRA_SERVICE_REQUEST);
+            if (request != null) {
+                request.describeTo(data);
+            }
+        }
+        task.mActionType = data.getString(EXTRA_REQUEST_ACTION_TYPE);
         if (task.mRequestId != null) {
             synchronized (mTaskLock) {
                 mSubmittedTasks.put(task.mRequestId, task);
             }
         }
         if (data.getBoolean(EventServiceImpl.EXTRA_REQUEST_QUEUE_NEW_THREAD, true)) {
-            mExecutor.executeOnNewThread(task);
+            mFlightRecorder.record(FlightRecorder.SUBMIT, 0, task.mSerial, 0);
+            task.mParallel = true;
+            task.mQueueStats = mMetrics.queue(LatencyTracker.QUEUE_PARALLEL);
         } else {
             final int queueLimit = data.getInt(EventServiceImpl.EXTRA_REQUEST_QUEUE_LIMIT, 2);
             final String tag = data.getString(EventServiceImpl.EXTRA_REQUEST_QUEUE_TAG);
             final String queueTag = tag != null ? tag : ActionExecutor.DEFAULT;
             final int queuePriority = data.getInt(EventServiceImpl.EXTRA_REQUEST_QUEUE_PRIORITY, 0);
-            mExecutor.execute(task, queueLimit, queueTag, queuePriority);
+            mFlightRecorder.record(FlightRecorder.SUBMIT, mFlightRecorder.nameId(queueTag), task.mSerial, queuePriority);
+            task.mQueueLimit = queueLimit;
+            task.mQueueTag = queueTag;
+            task.mQueuePriority = queuePriority;
+            task.mQueueStats = mMetrics.queue(queueTag);
+        }
+        final int lane = data.getInt(EventServiceImpl.EXTRA_REQUEST_LANE, RequestLane.UNSPECIFIED);
+        task.mLane = lane != RequestLane.UNSPECIFIED ? lane : RequestLane.DEFAULT;
+        task.mThreadPriority = mService.getLaneThreadPriority(task.mLane);
+        final String idempotencyKey = data.getString(EventServiceImpl.EXTRA_REQUEST_IDEMPOTENCY_KEY);
+        if (idempotencyKey != null && task.mActionType != null && !takeIdempotencyKey(task, idempotencyKey)) {
+            return;
+        }
+        task.mSupersessionKey = task.mActionType != null ? data.getString(EXTRA_REQUEST_SUPERSESSION_KEY) : null;
+        if (task.mSupersessionKey != null) {
+            supersede(task);
+        }
+        if (mAdmission != null && task.mActionType != null) {
+            if (!admit(task, false)) {
+                return;
+            }
+        } else {
+            task.mQueueStats.onSubmitted();
+        }
+        admitted(task);
+    }
+
+    /**
+     * @return false if another task took the key, this one is answered with its result, now or once it completes.
+     */
+    private boolean takeIdempotencyKey(ExecutionRunnable task, String key) {
+        final Idempotent original;
+        synchronized (mTaskLock) {
+            original = mIdempotencyKeys.get(key);
+            if (original == null) {
+                mIdempotencyKeys.put(key, new Idempotent(task));
+                task.mIdempotencyKey = key;
+                return true;
+            }
+            if (!original.mDone) {
+                if (original.mDuplicates == null) {
+                    original.mDuplicates = new ArrayList<>(1);
+                }
+                original.mDuplicates.add(task);
+                return false;
+            }
+        }
+        Log.d(TAG, "Task " + task.mRequestId + " was answered with the result of its idempotency key.");
+        task.answerDuplicate(original.mResult);
+        return false;
+    }
+
+    /**
+     * @param deferred if the task was already deferred once.
+     * @return false if the task was shed, or deferred to be admitted later.
+     */
+    private boolean admit(final ExecutionRunnable task, boolean deferred) {
+        final String queue = task.mParallel ? LatencyTracker.QUEUE_PARALLEL : task.mQueueTag;
+        final int decision = mAdmission.admit(queue, task.mLane);
+        if (decision == AdmissionControl.SHED) {
+            final long deferMs = mAdmission.getPolicy().deferMs;
+            if (deferMs > 0 && !deferred) {
+                mMainHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (admit(task, true)) {
+                            admitted(task);
+                        }
+                    }
+                }, deferMs);
+            } else {
+                task.mQueueStats.onSubmitted();
+                task.reject(RequestRejectedResult.REASON_SHED, 0);
+            }
+            return false;
+        }
+        synchronized (mTaskLock) {
+            task.mAdmissionQueue = queue;
+        }
+        //Moving an ordered request off its queue would reorder its lane.
+        if (decision == AdmissionControl.ADMIT_RESERVED && task.mOrderingKey == null) {
+            task.mParallel = false;
+            task.mQueueTag = AdmissionControl.RESERVED_QUEUE;
+            task.mQueueLimit = Math.max(1, mAdmission.getPolicy().reservedThreads);
+            task.mQueueStats = mMetrics.queue(AdmissionControl.RESERVED_QUEUE);
+        }
+        task.mQueueStats.onSubmitted();
+        return true;
+    }
+
+    private void admitted(final ExecutionRunnable task) {
+        final long waitNs = reserveRate(task);
+        if (waitNs < 0) {
+            return;
+        }
+        if (waitNs > 0) {
+            //Waits on the main thread's queue instead of on a pool thread.
+            task.mQueueStats.onRateDelayed();
+            mMainHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    task.mQueueStats.onRateReleased();
+                    dispatch(task);
+                }
+            }, TimeUnit.NANOSECONDS.toMillis(waitNs + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+            return;
+        }
+        dispatch(task);
+    }
+
+    /**
+     * @return nanoseconds the task has to wait for its rate limits, or -1 if it was rejected.
+     */
+    private long reserveRate(ExecutionRunnable task) {
+        if (task.mActionType == null) {
+            return 0;
+        }
+        final Bundle data = task.getBundle();
+        final RateLimit actionLimit = data.getParcelable(EXTRA_REQUEST_RATE_LIMIT);
+        final RateLimit queueLimit = task.mParallel ? null : (RateLimit) data.getParcelable(EXTRA_REQUEST_QUEUE_RATE_LIMIT);
+        if (actionLimit == null && queueLimit == null) {
+            return 0;
+        }
+        final long now = System.nanoTime();
+        final RateGate actionGate = actionLimit != null
+                ? rateGate("action/" + task.mActionType, actionLimit) : null;
+        final RateGate queueGate = queueLimit != null ? rateGate("queue/" + task.mQueueTag, queueLimit) : null;
+        final long actionWaitNs = actionGate != null ? actionGate.waitNs(now) : 0;
+        final long queueWaitNs = queueGate != null ? queueGate.waitNs(now) : 0;
+        if ((actionGate != null && actionGate.exceedsMaxWait(actionWaitNs))
+                || (queueGate != null && queueGate.exceedsMaxWait(queueWaitNs))) {
+            task.reject(RequestRejectedResult.REASON_RATE_LIMITED,
+                    TimeUnit.NANOSECONDS.toMillis(Math.max(actionWaitNs, queueWaitNs)));
+            return -1;
+        }
+        return Math.max(actionGate != null ? actionGate.mBucket.reserve(now) : 0,
+                queueGate != null ? queueGate.mBucket.reserve(now) : 0);
+    }
+
+    private RateGate rateGate(String key, RateLimit limit) {
+        RateGate gate = mRateGates.get(key);
+        if (gate == null || !gate.mLimit.equals(limit)) {
+            gate = new RateGate(limit);
+            mRateGates.put(key, gate);
+        }
+        return gate;
+    }
+
+    /**
+     * Hands the task to its batch queue, lane or executor.
+     */
+    private void dispatch(ExecutionRunnable task) {
+        //Batches would reorder an ordered lane.
+        if (!task.mParallel && task.mOrderingKey == null && task.mActionType != null
+                && task.getBundle().getBoolean(EXTRA_REQUEST_BATCHABLE)) {
+            task.mBatchQueue = batchQueue(task.mQueueLimit + "/" + task.mQueueTag + "/" + task.mLane + "/"
+                    + task.mActionType);
+            task.mBatchQueue.add(task);
+        }
+        if (task.mOrderingKey != null) {
+            task.mLaneKey = (task.mParallel ? LatencyTracker.QUEUE_PARALLEL : task.mQueueLimit + "/" + task.mQueueTag)
+                    + "/" + task.mOrderingKey;
+            if (!mLanes.enter(task.mLaneKey, task)) {
+                return;
+            }
+        }
+        task.submit();
+    }
+
+    private BatchQueue<ExecutionRunnable> batchQueue(String key) {
+        BatchQueue<ExecutionRunnable> queue = mBatchQueues.get(key);
+        if (queue == null) {
+            queue = new BatchQueue<>();
+            mBatchQueues.put(key, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * The task that took an idempotency key, then its final result.
+     */
+    private class Idempotent {
+        private final ExecutionRunnable mOwner;
+        private boolean mDone;
+        private ActionResult mResult;
+        private ArrayList<ExecutionRunnable> mDuplicates;
+
+        Idempotent(ExecutionRunnable owner) {
+            mOwner = owner;
+        }
+    }
+
+    private static class RateGate {
+        private final RateLimit mLimit;
+        private final TokenBucket mBucket;
+
+        RateGate(RateLimit limit) {
+            mLimit = limit;
+            mBucket = new TokenBucket(limit.ratePerSecond, limit.burst);
+        }
+
+        long waitNs(long now) {
+            return mBucket.nanosUntilAvailable(now);
+        }
+
+        boolean exceedsMaxWait(long waitNs) {
+            return mLimit.maxWaitMs > 0 && waitNs > TimeUnit.MILLISECONDS.toNanos(mLimit.maxWaitMs);
+        }
+    }
+
+    private static class PreloadRunnable implements Runnable {
+        private final ActionKey[] mKeys;
+
+        public PreloadRunnable(ActionKey[] keys) {
+            mKeys = keys;
+        }
+
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            for (ActionKey key : mKeys) {
+                try {
+                    key.value();
+                } catch (Throwable e) {
+                    Log.e(TAG, "Unable to preload " + key, e);
+                }
+            }
         }
     }
 
@@ -143,6 +523,9 @@ public class DefaultServiceImpl<T extends EventService> implements EventServiceI
 
         public void run() {
             if (mResponder != null) {
+                if (RequestTrace.isTraced(mBundle)) {
+                    RequestTrace.stamp(mBundle, RequestTrace.EXTRA_POSTED_NS);
+                }
                 mResponder.onServiceResponse(mBundle);
             }
             if (mStartId > 0 && mCompleteSignal) {
@@ -169,6 +552,9 @@ public class DefaultServiceImpl<T extends EventService> implements EventServiceI
                 Message msg = new Message();
                 Bundle b = msg.getData();
                 b.putAll(mBundle);
+                if (RequestTrace.isTraced(b)) {
+                    RequestTrace.stamp(b, RequestTrace.EXTRA_POSTED_NS);
+                }
                 try {
                     mResponder.send(msg);
                 } catch (Exception e) {
@@ -196,6 +582,13 @@ public class DefaultServiceImpl<T extends EventService> implements EventServiceI
                 }
 
                 bundle.putBoolean(EXTRA_SERVICE_COMPLETE_SIGNAL, completeSignal);
+                if (completeSignal && mIdempotencyKey != null) {
+                    completeIdempotencyKey(result);
+                }
+                mFlightRecorder.record(FlightRecorder.DELIVER, mNameId, mSerial, completeSignal ? 1 : 0);
+                if (completeSignal && mTraced) {
+                    RequestTrace.stamp(bundle, RequestTrace.EXTRA_END_NS);
+                }
 
                 final Runnable responderRunnable;
                 if (mResponder != null) {
@@ -211,7 +604,38 @@ public class DefaultServiceImpl<T extends EventService> implements EventServiceI
                 }
             }
         };
+        private final boolean mTraced;
+        private final CancellationToken mCancellationToken = new CancellationToken();
+        private final boolean mHasDeadline;
+        private final long mDeadlineNs;
+        private final int mSerial = mTaskSerial.incrementAndGet();
+        private int mNameId;
         private boolean mCanceled;
+        private ServiceMetrics.QueueStats mQueueStats;
+        private String mActionType;
+        //Read from the bundle by the thread that runs the task, see request().
+        private ActionRequest mRequest;
+        private BatchQueue<ExecutionRunnable> mBatchQueue;
+        private boolean mParallel;
+        private int mQueueLimit;
+        private String mQueueTag;
+        private int mQueuePriority;
+        private int mLane = RequestLane.DEFAULT;
+        private int mThreadPriority = Process.THREAD_PRIORITY_BACKGROUND;
+        //Set once the request's graph waits on an AsyncAction, it then stays submitted until the graph is done.
+        private volatile boolean mInFlight;
+        //Guarded by mTaskLock once admitted, whoever takes it releases the admission slot.
+        private String mAdmissionQueue;
+        private String mSupersessionKey;
+        private String mIdempotencyKey;
+        //Set once the task passed prepare(), a key whose task never ran is released with its result.
+        private volatile boolean mRan;
+        //Guarded by mTaskLock, like mCanceled.
+        private boolean mSuperseded;
+        //Set when its own turn found it drained into another task's batch, that task ends it once the batch is done.
+        private boolean mBatched;
+        private final String mOrderingKey;
+        private String mLaneKey;
 
         // Optionally either responder or messenger will be used to send response back to ui
         public ExecutionRunnable(int startId, Bundle bundle,
@@ -219,31 +643,424 @@ public class DefaultServiceImpl<T extends EventService> implements EventServiceI
             mStartId = startId;
             bundle.setClassLoader(ActionRequest.class.getClassLoader());
             mRequestId = bundle.getString(EventServiceConnection.EXTRA_REQUEST_ID);
+            mTraced = RequestTrace.isTraced(bundle);
+            mHasDeadline = bundle.containsKey(EXTRA_REQUEST_DEADLINE_NS);
+            mDeadlineNs = bundle.getLong(EXTRA_REQUEST_DEADLINE_NS);
+            mOrderingKey = bundle.getString(EXTRA_REQUEST_ORDERING_KEY);
+            if (mTraced) {
+                RequestTrace.stamp(bundle, RequestTrace.EXTRA_RECEIVED_NS);
+            }
             mBundle = bundle;
             mResponder = responder;
             mMessenger = messenger;
         }
 
         public void run() {
-            if (canceled()) {
-                Log.d(TAG, "Task " + mRequestId + " was not executed.");
+            mQueueStats.onDequeued();
+            if (mAdmission != null) {
+                final String admissionQueue = releaseAdmission();
+                if (admissionQueue != null) {
+                    mAdmission.onStarted(admissionQueue);
+                }
+            }
+            try {
+                execute();
+            } finally {
+                mQueueStats.onFinished();
+                if (!mInFlight && !mBatched) {
+                    onTaskDone();
+                }
+            }
+        }
+
+        /**
+         * @return the queue it was admitted to, once, or null if its slot was already released.
+         */
+        private String releaseAdmission() {
+            synchronized (mTaskLock) {
+                final String queue = mAdmissionQueue;
+                mAdmissionQueue = null;
+                return queue;
+            }
+        }
+
+        /**
+         * Called once per task when its graph is done, or it was dropped.
+         */
+        private void onTaskDone() {
+            if (mRequestId != null || mSupersessionKey != null) {
+                synchronized (mTaskLock) {
+                    if (mRequestId != null) {
+                        mSubmittedTasks.remove(mRequestId);
+                    }
+                    if (mSupersessionKey != null && mSupersession.get(mSupersessionKey) == this) {
+                        mSupersession.remove(mSupersessionKey);
+                    }
+                }
+            }
+            if (mLaneKey != null) {
+                final ExecutionRunnable next = mLanes.exit(mLaneKey);
+                if (next != null) {
+                    next.submit();
+                }
+            }
+        }
+
+        private void submit() {
+            submit(this);
+        }
+
+        /**
+         * Submits a runnable to this task's queue.
+         */
+        private void submit(Runnable runnable) {
+            if (mParallel) {
+                mExecutor.executeOnNewThread(runnable);
+            } else {
+                mExecutor.execute(runnable, mQueueLimit, mQueueTag, mQueuePriority, mLane, mHasDeadline, mDeadlineNs);
+            }
+        }
+
+        /**
+         * Only called on the thread that runs the task, or the one that drained it into its batch.
+         */
+        private ActionRequest request() {
+            if (mRequest == null && mActionType != null) {
+                mRequest = mBundle.getParcelable(EXTRA_SERVICE_REQUEST);
+            }
+            return mRequest;
+        }
+
+        private void execute() {
+            Process.setThreadPriority(mThreadPriority);
+            final ActionRequest event = request();
+            if (mBatchQueue != null && event != null) {
+                final BatchAction action = (BatchAction) event.action();
+                final ArrayList<ExecutionRunnable> batch = mBatchQueue.drain(this,
+                        Math.max(1, action.getMaxBatchSize()), action.getMaxBatchDelayMs());
+                if (batch == null) {
+                    Log.d(TAG, "Task " + mRequestId + " was executed in a batch.");
+                    mBatched = true;
+                    return;
+                }
+                if (batch.size() > 1) {
+                    executeBatch(action, batch);
+                    return;
+                }
+            }
+            if (!prepare()) {
                 return;
             }
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-            ActionRequest event = mBundle.getParcelable(EXTRA_SERVICE_REQUEST);
+            mRan = true;
             if (event != null) {
-                ActionRequestEnv env = new ActionRequestEnv(mBundle, mService.getActionCacheFactory(), DefaultServiceImpl.this);
-                event.process(mResultDeliver, env, true);
+                if (mTraced) {
+                    RequestTrace.stamp(mBundle, RequestTrace.EXTRA_START_NS);
+                }
+                final Class<? extends Action> type = event.type();
+                mNameId = mFlightRecorder.nameId(type.getName());
+                mFlightRecorder.record(FlightRecorder.START, mNameId, mSerial, 0);
+                ActionRequestEnv env = new ActionRequestEnv(mBundle, mActionCacheFactory, DefaultServiceImpl.this, mMetrics,
+                        mCancellationToken);
+                mWatchdog.watch(this, type.getName(), mRequestId, mSerial, mService.getSlowActionThresholdMs(type),
+                        mResultDeliver);
+                boolean done = true;
+                try {
+                    done = event.processAsync(mResultDeliver, env, true, new ResumeExecutor(type), new Runnable() {
+                        @Override
+                        public void run() {
+                            onGraphDone();
+                        }
+                    });
+                } finally {
+                    if (done) {
+                        mCancellationToken.finish();
+                    } else {
+                        //The graph resumes on another thread, this one goes back to the queue.
+                        mCancellationToken.detach();
+                        mInFlight = true;
+                    }
+                    mWatchdog.unwatch(this);
+                    mFlightRecorder.record(FlightRecorder.FINISH, mNameId, mSerial, 0);
+                }
+                if (done) {
+                    Log.d(TAG, "Task " + mRequestId + " was completed.");
+                } else {
+                    Log.d(TAG, "Task " + mRequestId + " is waiting on an async action.");
+                }
             } else {
                 Log.w(TAG, "Nothing was done in " + mRequestId);
             }
-            //TODO
-            if (mRequestId != null) {
-                synchronized (mTaskLock) {
-                    Log.d(TAG, "Task " + mRequestId + " was completed.");
-                    mSubmittedTasks.remove(mRequestId);
+        }
+
+        /**
+         * Called on the thread that finished the graph after it waited on an AsyncAction.
+         */
+        private void onGraphDone() {
+            mCancellationToken.finish();
+            onTaskDone();
+            Log.d(TAG, "Task " + mRequestId + " was completed.");
+        }
+
+        /**
+         * @return false if the task was cancelled or its deadline passed, and it should not run.
+         */
+        private boolean prepare() {
+            if (canceled()) {
+                Log.d(TAG, "Task " + mRequestId + " was not executed.");
+                mMetrics.onCancelledBeforeStart();
+                if (mSuperseded && mActionType != null) {
+                    final RequestRejectedResult result = new RequestRejectedResult(mActionType, mRequestId,
+                            RequestRejectedResult.REASON_SUPERSEDED, 0);
+                    mResultDeliver.deliverResult(result, false);
+                    mResultDeliver.deliverResult(result, true);
+                } else if (mIdempotencyKey != null) {
+                    abandonIdempotencyKey();
+                }
+                return false;
+            }
+            if (mTraced) {
+                RequestTrace.stamp(mBundle, RequestTrace.EXTRA_DEQUEUED_NS);
+            }
+            if (mActionType != null && mHasDeadline) {
+                final long overdueNs = System.nanoTime() - mDeadlineNs;
+                if (overdueNs >= 0) {
+                    expire(TimeUnit.NANOSECONDS.toMillis(overdueNs));
+                    return false;
                 }
             }
+            return true;
+        }
+
+        /**
+         * Runs the tasks drained with this one in one BatchAction call, on the environment of the first
+         * that is still live, and delivers each result to its own requester.
+         */
+        private void executeBatch(BatchAction action, ArrayList<ExecutionRunnable> batch) {
+            try {
+                processBatch(action, batch);
+            } finally {
+                //Their own turns in the queue found them drained, they stay submitted until their result is out.
+                for (ExecutionRunnable task : batch) {
+                    if (task != this) {
+                        task.onTaskDone();
+                    }
+                }
+            }
+        }
+
+        private void processBatch(BatchAction action, ArrayList<ExecutionRunnable> batch) {
+            final ArrayList<ExecutionRunnable> tasks = new ArrayList<>(batch.size());
+            final ArrayList<ActionRequest> requests = new ArrayList<>(batch.size());
+            for (ExecutionRunnable task : batch) {
+                if (task.prepare()) {
+                    task.mRan = true;
+                    tasks.add(task);
+                    requests.add(task.request());
+                }
+            }
+            if (tasks.isEmpty()) {
+                return;
+            }
+            final String type = action.getClass().getName();
+            mNameId = mFlightRecorder.nameId(type);
+            for (ExecutionRunnable task : tasks) {
+                task.mNameId = mNameId;
+                if (task.mTraced) {
+                    RequestTrace.stamp(task.mBundle, RequestTrace.EXTRA_START_NS);
+                }
+            }
+            final ExecutionRunnable first = tasks.get(0);
+            mFlightRecorder.record(FlightRecorder.START, mNameId, mSerial, tasks.size());
+            //The batch is cancelled once all of its requests are, a request cancelled alone gets no result.
+            final CancellationToken token = new CancellationToken();
+            final int[] live = {tasks.size()};
+            final Runnable onCancelled = new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (live) {
+                        if (--live[0] > 0) {
+                            return;
+                        }
+                    }
+                    token.cancel();
+                }
+            };
+            for (ExecutionRunnable task : tasks) {
+                task.mCancellationToken.register(onCancelled);
+            }
+            final ActionRequestEnv env = new ActionRequestEnv(first.mBundle, mActionCacheFactory,
+                    DefaultServiceImpl.this, mMetrics, token);
+            mWatchdog.watch(this, type, mRequestId, mSerial, mService.getSlowActionThresholdMs(action.getClass()),
+                    mResultDeliver);
+            final long start = System.nanoTime();
+            List<ActionResult> results = null;
+            try {
+                results = action.processBatchRequest(mService, requests, env);
+            } catch (RuntimeException e) {
+                //Thrown by onError(), every requester still gets its completion below.
+                Log.e(TAG, "Batch of " + tasks.size() + " " + type + " failed.", e);
+            } finally {
+                token.finish();
+                for (ExecutionRunnable task : tasks) {
+                    task.mCancellationToken.finish();
+                }
+                mWatchdog.unwatch(this);
+                mFlightRecorder.record(FlightRecorder.FINISH, mNameId, mSerial, tasks.size());
+            }
+            if (results == null || results.size() != tasks.size()) {
+                if (results != null) {
+                    Log.e(TAG, type + " returned " + results.size() + " results for " + tasks.size() + " requests.");
+                }
+                for (ExecutionRunnable task : tasks) {
+                    task.mResultDeliver.deliverResult(null, true);
+                }
+                mMetrics.action(type).onProcessed(System.nanoTime() - start, true);
+                return;
+            }
+            boolean failed = false;
+            for (int i = 0; i < tasks.size(); i++) {
+                final ExecutionRunnable task = tasks.get(i);
+                final ActionResult result = task.mCancellationToken.isCancelled() ? null : results.get(i);
+                if (result != null) {
+                    failed |= !result.isSuccess();
+                    task.mResultDeliver.deliverResult(result, false);
+                }
+                task.mResultDeliver.deliverResult(result, true);
+            }
+            mMetrics.action(type).onProcessed(System.nanoTime() - start, failed);
+            Log.d(TAG, "Batch of " + tasks.size() + " " + type + " was completed.");
+        }
+
+        private void expire(long overdueMs) {
+            final String type = mActionType;
+            Log.d(TAG, "Task " + mRequestId + " was dropped " + overdueMs + "ms past its deadline.");
+            mMetrics.onExpired();
+            mFlightRecorder.record(FlightRecorder.EXPIRE, mFlightRecorder.nameId(type), mSerial, overdueMs);
+            final RequestTimeoutResult result = new RequestTimeoutResult(type, mRequestId, overdueMs);
+            mResultDeliver.deliverResult(result, false);
+            mResultDeliver.deliverResult(result, true);
+        }
+
+        /**
+         * Runs the rest of a graph after an AsyncAction completed on the task's own queue, so resumed work
+         * still counts against the queue's limit. Each resumed part is watched and recorded on its own.
+         */
+        private class ResumeExecutor implements Executor {
+            private final Class<? extends Action> mType;
+
+            ResumeExecutor(Class<? extends Action> type) {
+                mType = type;
+            }
+
+            @Override
+            public void execute(final Runnable command) {
+                final Runnable resumed = new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(mThreadPriority);
+                        mFlightRecorder.record(FlightRecorder.START, mNameId, mSerial, 0);
+                        mWatchdog.watch(this, mType.getName(), mRequestId, mSerial,
+                                mService.getSlowActionThresholdMs(mType), mResultDeliver);
+                        try {
+                            command.run();
+                        } finally {
+                            mCancellationToken.detach();
+                            mWatchdog.unwatch(this);
+                            mFlightRecorder.record(FlightRecorder.FINISH, mNameId, mSerial, 0);
+                        }
+                    }
+                };
+                submit(resumed);
+            }
+        }
+
+        /**
+         * Answers the task without running it, before it reached the executor.
+         */
+        private void reject(int reason, long waitMs) {
+            final String type = mActionType;
+            Log.d(TAG, "Task " + mRequestId + " was rejected, reason " + reason + ".");
+            if (reason == RequestRejectedResult.REASON_SHED) {
+                mMetrics.onShed();
+            } else {
+                mMetrics.onRejected();
+            }
+            final String admissionQueue = releaseAdmission();
+            if (admissionQueue != null) {
+                mAdmission.onDropped(admissionQueue);
+            }
+            mQueueStats.onDequeued();
+            mQueueStats.onFinished();
+            final RequestRejectedResult result = new RequestRejectedResult(type, mRequestId, reason, waitMs);
+            mResultDeliver.deliverResult(result, false);
+            mResultDeliver.deliverResult(result, true);
+            onTaskDone();
+        }
+
+        /**
+         * Answers a duplicate of a durable request with the result of the task that took its key.
+         */
+        private void answerDuplicate(ActionResult result) {
+            mQueueStats.onSubmitted();
+            mQueueStats.onDequeued();
+            mQueueStats.onFinished();
+            if (result != null) {
+                mResultDeliver.deliverResult(result, false);
+            }
+            mResultDeliver.deliverResult(result, true);
+            onTaskDone();
+        }
+
+        /**
+         * Keeps the final result for later duplicates and answers the waiting ones. A key whose task never ran,
+         * e.g. it was rejected, is released so the request can be sent again.
+         */
+        private void completeIdempotencyKey(ActionResult result) {
+            final ArrayList<ExecutionRunnable> duplicates;
+            synchronized (mTaskLock) {
+                final Idempotent idempotent = mIdempotencyKeys.get(mIdempotencyKey);
+                if (idempotent == null || idempotent.mOwner != this || idempotent.mDone) {
+                    return;
+                }
+                if (mRan) {
+                    idempotent.mDone = true;
+                    idempotent.mResult = result;
+                } else {
+                    mIdempotencyKeys.remove(mIdempotencyKey);
+                }
+                duplicates = idempotent.mDuplicates;
+                idempotent.mDuplicates = null;
+            }
+            if (duplicates != null) {
+                for (ExecutionRunnable duplicate : duplicates) {
+                    duplicate.answerDuplicate(result);
+                }
+            }
+        }
+
+        /**
+         * Releases the key of a task cancelled before it ran, a waiting duplicate is submitted in its place.
+         */
+        private void abandonIdempotencyKey() {
+            final ArrayList<ExecutionRunnable> duplicates;
+            synchronized (mTaskLock) {
+                final Idempotent idempotent = mIdempotencyKeys.get(mIdempotencyKey);
+                if (idempotent == null || idempotent.mOwner != this || idempotent.mDone) {
+                    return;
+                }
+                mIdempotencyKeys.remove(mIdempotencyKey);
+                duplicates = idempotent.mDuplicates;
+            }
+            if (duplicates != null) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (ExecutionRunnable duplicate : duplicates) {
+                            performRequest(duplicate);
+                        }
+                    }
+                });
+            }
         }
 
         public boolean canceled() {
@@ -5,9 +5,9 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.util.Log;
 
 import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
 
 import de.greenrobot.event.EventBus;
 
@@ -18,15 +18,47 @@ public class EventManager {
 
     private final EventServiceConnection mServiceConnection;
     private final EventBus mBus;
-    private final boolean mLogRequestStacks;
+    private final CallSiteRecorder mCallSites;
     private final Handler mHandler;
+    private final RequestScheduler mScheduler;
+    private final RequestGates mGates;
+    private final LatencyTracker mLatencyTracker;
+    private final long mLatencyReportIntervalMs;
+    private long mLastLatencyReportMs;
 
     EventManager(Context context, PennStation.PennStationOptions options) {
         mBus = new EventBus();
         final HandlerThread thread = new HandlerThread("EventManager");
         thread.start();
         mHandler = new Handler(thread.getLooper());
-        mLogRequestStacks = options.logRequestStacks;
+        mScheduler = new RequestScheduler(mHandler, new RequestScheduler.Sender() {
+            @Override
+            public void send(ActionRequest request, RequestOptions options,
+                             WeakReference<Requester.RequestListener> listener) {
+                requestAction(request, 0, options, listener);
+            }
+        });
+        mGates = new RequestGates(new RequestGates.Sender() {
+            @Override
+            public void send(ActionRequest request, RequestOptions options,
+                             WeakReference<Requester.RequestListener> listener) {
+                requestAction(request, 0, options, listener);
+            }
+
+            @Override
+            public long schedule(ActionRequest request, RequestOptions options,
+                                 WeakReference<Requester.RequestListener> listener, long delayMs) {
+                return mScheduler.schedule(request, options, listener, delayMs, 0, Requester.SCHEDULE_FIXED_RATE);
+            }
+
+            @Override
+            public boolean cancelSchedule(long scheduleId) {
+                return mScheduler.cancel(scheduleId);
+            }
+        });
+        mCallSites = options.logRequestStacks ? new CallSiteRecorder(options) : null;
+        mLatencyTracker = options.traceLatency ? new LatencyTracker() : null;
+        mLatencyReportIntervalMs = options.latencyReportIntervalMs;
         mServiceConnection = new EventServiceConnection(context, new EventServiceResponseHandler(), options);
         context.bindService(new Intent(context, options.eventServiceClass), mServiceConnection,
                 Context.BIND_AUTO_CREATE);
@@ -34,6 +66,35 @@ public class EventManager {
 
     public void cancel(String reqId) {
         mServiceConnection.cancel(reqId);
+        if (mCallSites != null) {
+            mCallSites.remove(reqId);
+        }
+    }
+
+    /**
+     * Asks the service to write its flight recorder as a Chrome trace (chrome://tracing).
+     *
+     * @param path absolute path the service process can write to, e.g. under getFilesDir().
+     * @return false if the service is not connected yet.
+     */
+    public boolean dumpServiceFlightRecorder(String path) {
+        return mServiceConnection.dumpFlightRecorder(path);
+    }
+
+    /**
+     * Asks the service for its queue and action metrics, posted back as a sticky ServiceMetricsEvent.
+     *
+     * @return false if the service is not connected yet.
+     */
+    public boolean requestServiceMetrics() {
+        return mServiceConnection.queryMetrics();
+    }
+
+    /**
+     * @return where a pending request was made, or null if it was not sampled or already completed.
+     */
+    public String getRequestCallSite(String requestId) {
+        return mCallSites != null ? mCallSites.get(requestId) : null;
     }
 
     public void postLocalStickyEvent(Object object) {
@@ -60,41 +121,140 @@ public class EventManager {
         return mBus.getStickyEvent(eventType);
     }
 
+    /**
+     * @return the request latency histograms, or null if PennStationOptions.traceLatency is off.
+     */
+    public LatencyTracker getLatencyTracker() {
+        return mLatencyTracker;
+    }
+
+    private void recordLatency(Bundle b, ResponseInfo info) {
+        if (info.mTrace == null || info.mRequest == null) {
+            return;
+        }
+        final String queue;
+        if (b.getBoolean(EventServiceImpl.EXTRA_REQUEST_QUEUE_NEW_THREAD, true)) {
+            queue = LatencyTracker.QUEUE_PARALLEL;
+        } else {
+            final String tag = b.getString(EventServiceImpl.EXTRA_REQUEST_QUEUE_TAG);
+            queue = tag != null ? tag : ActionExecutor.DEFAULT;
+        }
+        mLatencyTracker.record(info.mRequest.type().getName(), queue, info.mTrace);
+        final long now = System.currentTimeMillis();
+        if (now - mLastLatencyReportMs >= mLatencyReportIntervalMs) {
+            mLastLatencyReportMs = now;
+            postLocalStickyEvent(mLatencyTracker.snapshot());
+        }
+    }
+
     public String requestAction(ActionRequestHelper helper) {
         return requestAction(helper.buildRequest());
     }
 
     public String requestAction(ActionRequest request) {
-        return mServiceConnection.queueAndExecute(createServiceBundle(request));
+        final String callSite = captureCallSite(request);
+        return trackCallSite(mServiceConnection.queueAndExecute(createServiceBundle(request)), callSite);
     }
 
     public String requestAction(ActionRequest request, LimitedQueueInfo queueInfo) {
-        return mServiceConnection.queueAndExecute(createServiceBundle(request), queueInfo, null);
+        final String callSite = captureCallSite(request);
+        return trackCallSite(mServiceConnection.queueAndExecute(createServiceBundle(request), queueInfo, null),
+                callSite);
     }
 
     private Bundle createServiceBundle(ActionRequest request) {
         Bundle bundle = new Bundle();
         bundle.putParcelable(EventServiceImpl.EXTRA_SERVICE_REQUEST, request);
-        if (mLogRequestStacks) {
-            bundle.putString(EventServiceImpl.EXTRA_STACKTRACE_STRING,
-                    Log.getStackTraceString(new Exception()));
+        return bundle;
+    }
+
+    private Bundle createServiceBundle(ActionRequest request, RequestOptions options) {
+        Bundle bundle = createServiceBundle(request);
+        if (options.timeoutMs > 0) {
+            bundle.putLong(EventServiceImpl.EXTRA_REQUEST_DEADLINE_NS,
+                    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.timeoutMs));
+        }
+        if (options.orderingKey != null) {
+            bundle.putString(EventServiceImpl.EXTRA_REQUEST_ORDERING_KEY, options.orderingKey);
+        }
+        if (options.lane != RequestLane.UNSPECIFIED) {
+            bundle.putInt(EventServiceImpl.EXTRA_REQUEST_LANE, options.lane);
+        }
+        if (options.idempotencyKey != null) {
+            bundle.putString(EventServiceImpl.EXTRA_REQUEST_IDEMPOTENCY_KEY, options.idempotencyKey);
         }
         return bundle;
     }
 
+    private String captureCallSite(ActionRequest request) {
+        return mCallSites != null ? mCallSites.capture(request.type()) : null;
+    }
+
+    private String trackCallSite(String requestId, String callSite) {
+        if (callSite != null) {
+            mCallSites.put(requestId, callSite);
+        }
+        return requestId;
+    }
+
     protected void requestAction(final ActionRequest request,
                                  final LimitedQueueInfo queueInfo,
                                  long delay,
                                  final WeakReference<Requester.RequestListener> listener) {
+        requestAction(request, delay, RequestOptions.of(queueInfo), listener);
+    }
+
+    protected void requestAction(ActionRequest request, long delay, RequestOptions options,
+                                 WeakReference<Requester.RequestListener> listener) {
         if (delay > 0) {
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    requestAction(request, queueInfo, 0, listener);
-                }
-            }, delay);
+            mScheduler.schedule(request, options, listener, delay, 0, Requester.SCHEDULE_FIXED_RATE);
+            return;
         }
-        mServiceConnection.queueAndExecute(createServiceBundle(request), queueInfo, listener);
+        final String callSite = captureCallSite(request);
+        trackCallSite(mServiceConnection.queueAndExecute(createServiceBundle(request, options), options.queueInfo,
+                listener), callSite);
+    }
+
+    /**
+     * Sends the request after delayMs, then every periodMs if above 0, until cancelSchedule().
+     *
+     * @param mode one of the Requester.SCHEDULE_ constants.
+     * @return the schedule id.
+     */
+    public long scheduleAction(ActionRequest request, LimitedQueueInfo queueInfo, long delayMs, long periodMs, int mode,
+                               WeakReference<Requester.RequestListener> listener) {
+        return scheduleAction(request, delayMs, periodMs, mode, RequestOptions.of(queueInfo), listener);
+    }
+
+    protected long scheduleAction(ActionRequest request, long delayMs, long periodMs, int mode, RequestOptions options,
+                                  WeakReference<Requester.RequestListener> listener) {
+        return mScheduler.schedule(request, options, listener, delayMs, periodMs, mode);
+    }
+
+    /**
+     * Debounces or throttles the request with earlier ones of the same action type and key, before anything is sent.
+     * Requests dropped or replaced by a later one get onCancelled().
+     *
+     * @param mode one of the Requester.GATE_ constants.
+     * @param key  null to gate all requests of the action type together.
+     */
+    public void requestActionGated(ActionRequest request, LimitedQueueInfo queueInfo, int mode, long windowMs,
+                                   String key, WeakReference<Requester.RequestListener> listener) {
+        requestActionGated(request, mode, windowMs, key, RequestOptions.of(queueInfo), listener);
+    }
+
+    protected void requestActionGated(ActionRequest request, int mode, long windowMs, String key,
+                                      RequestOptions options, WeakReference<Requester.RequestListener> listener) {
+        mGates.request(mode, windowMs, key, request, options, listener);
+    }
+
+    /**
+     * Stops a schedule, requests it already sent are not cancelled.
+     *
+     * @return false if the schedule was unknown or already done.
+     */
+    public boolean cancelSchedule(long scheduleId) {
+        return mScheduler.cancel(scheduleId);
     }
 
     public class EventServiceResponseHandler implements EventServiceImpl.EventServiceResponseHandler {
@@ -104,6 +264,11 @@ public class EventManager {
             final String reqId = b.getString(EventServiceConnection.EXTRA_REQUEST_ID);
 
             if (reqId == null) {
+                final ServiceMetricsEvent metrics = b.getParcelable(EventServiceImpl.EXTRA_SERVICE_METRICS);
+                if (metrics != null) {
+                    postLocalStickyEvent(metrics);
+                    return;
+                }
                 //The service requestAction was not made by an app controller.
                 return;
             }
@@ -112,21 +277,38 @@ public class EventManager {
 
             ActionResult result = b.getParcelable(EventServiceImpl.EXTRA_SERVICE_RESULT);
 
+            final String callSite;
+            if (mCallSites == null) {
+                callSite = null;
+            } else if (completeSignal) {
+                callSite = mCallSites.remove(reqId);
+            } else {
+                callSite = mCallSites.get(reqId);
+            }
+
             if (result != null) {
-                result.setResponseInfo(new ResponseInfo(b));
-                if (completeSignal) {
-                    Requester.RequestListener listener = mServiceConnection.onComplete(reqId);
-                    if (listener != null) {
-                        listener.onCompleted(reqId, result);
-                    }
+                result.setResponseInfo(new ResponseInfo(b, callSite));
+            }
+
+            if (completeSignal && mLatencyTracker != null) {
+                recordLatency(b, result != null ? result.getResponseInfo() : new ResponseInfo(b, callSite));
+            }
+
+            if (completeSignal) {
+                //A graph that was cancelled or stopped early completes without a result, it is still done.
+                Requester.RequestListener listener = mServiceConnection.onComplete(reqId);
+                if (listener != null && result != null) {
+                    listener.onCompleted(reqId, result);
+                } else if (listener instanceof RequestScheduler.CompletionListener) {
+                    ((RequestScheduler.CompletionListener) listener).onCompletedWithoutResult(reqId);
+                }
+            } else if (result != null) {
+                if (result.postSticky()) {
+                    postLocalStickyEvent(result);
                 } else {
-                    if (result.postSticky()) {
-                        postLocalStickyEvent(result);
-                    } else {
-                        postLocalEvent(result);
-                    }
-                    result.onSent(this);
+                    postLocalEvent(result);
                 }
+                result.onSent(this);
             }
         }
     }
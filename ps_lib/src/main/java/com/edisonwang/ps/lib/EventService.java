@@ -4,6 +4,7 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Process;
 
 /**
  * You can always extend this class and log the actions as needed.
@@ -40,4 +41,90 @@ public class EventService extends Service {
     public ActionCacheFactory getActionCacheFactory() {
         return mActionCacheFactory;
     }
+
+    /**
+     * Actions are constructed on first use, override this to construct the hot ones
+     * on a background thread right after the service is created.
+     *
+     * @return keys of the actions to construct ahead of time, or null.
+     */
+    protected ActionKey[] getPreloadActions() {
+        return null;
+    }
+
+    /**
+     * @return how many executor events the flight recorder keeps, 4 longs each.
+     */
+    protected int getFlightRecorderCapacity() {
+        return 4096;
+    }
+
+    /**
+     * @param action the type of the request's action, the threshold covers its dependencies and chained actions.
+     * @return how long a request may run before it is reported as a SlowActionEvent, 0, the default, to never
+     * report it.
+     */
+    protected long getSlowActionThresholdMs(Class<? extends Action> action) {
+        return 0;
+    }
+
+    /**
+     * @return SlowActionWatchdog.POLICY_REPORT, or POLICY_INTERRUPT to also interrupt slow actions.
+     */
+    protected int getSlowActionPolicy() {
+        return SlowActionWatchdog.POLICY_REPORT;
+    }
+
+    /**
+     * Called once for every new limited queue.
+     *
+     * @return an AdaptiveLimit to size the queue from its run times, or null to keep the requested limit.
+     */
+    protected AdaptiveLimit createAdaptiveLimit(String queueTag, int queueLimit) {
+        return null;
+    }
+
+    /**
+     * @return threads of one FairPool that all limited queues share, so the total stays bounded however many tags
+     * there are, or 0 to give every queue its own threads.
+     */
+    protected int getSharedPoolSize() {
+        return 0;
+    }
+
+    /**
+     * @return the tag's share of the shared pool's thread time relative to other tags, see getSharedPoolSize().
+     */
+    protected int getQueueWeight(String queueTag) {
+        return 1;
+    }
+
+    /**
+     * @param lane a RequestLane.
+     * @return the android.os.Process thread priority, i.e. the nice value, requests of the lane run at.
+     */
+    protected int getLaneThreadPriority(int lane) {
+        switch (lane) {
+            case RequestLane.INTERACTIVE:
+                return Process.THREAD_PRIORITY_DEFAULT;
+            case RequestLane.BULK:
+                return Process.THREAD_PRIORITY_LOWEST;
+            default:
+                return Process.THREAD_PRIORITY_BACKGROUND;
+        }
+    }
+
+    /**
+     * @return most tasks per second each queue of the tag may start in the shared pool, 0 for no cap.
+     */
+    protected double getQueueRateLimit(String queueTag) {
+        return 0;
+    }
+
+    /**
+     * @return when to shed requests that are not interactive under load, or null to take every request.
+     */
+    protected AdmissionPolicy getAdmissionPolicy() {
+        return null;
+    }
 }
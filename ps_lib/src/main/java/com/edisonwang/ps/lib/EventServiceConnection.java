@@ -1,18 +1,29 @@
 package com.edisonwang.ps.lib;
 
+import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Process;
 import android.util.Log;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author edi
@@ -21,17 +32,33 @@ class EventServiceConnection implements ServiceConnection {
 
     public static final String EXTRA_REQUEST_ID = "connection_request_id";
     public static final String EXTRA_REQUEST_TIME_MS = "connection_request_time";
-    private final HashMap<String, Bundle> mPendingQueue = new HashMap<>();
-    private final HashMap<String, Bundle> mRequestQueue = new HashMap<>();
+    private static final int REPLAY_BATCH = 32;
+    private final PendingRequests mPendingQueue;
+    private final LinkedHashMap<String, Bundle> mRequestQueue = new LinkedHashMap<>();
     private final HashMap<String, WeakReference<Requester.RequestListener>> mListeners;
     private final int[] mLock = {};
     private final Context mContext;
     private final EventServiceImpl.EventServiceResponseHandler mResponseHandler;
     private final int mPendingWarningThreshold;
     private final LimitedQueueInfo mDefaultQueueInfo;
+    private final boolean mTraceLatency;
+    private final HashMap<Class<? extends Action>, RateLimit> mRateLimits;
+    private final HashMap<String, RateLimit> mQueueRateLimits;
+    private final RequestJournal mJournal;
+    //Durable requests not completed yet, and the ones of them still waiting for the journal.
+    private final HashSet<String> mDurable = new HashSet<>();
+    private final HashSet<String> mJournaling = new HashSet<>();
+    private final Handler mReplayHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mReplay = new Runnable() {
+        @Override
+        public void run() {
+            replayBatch();
+        }
+    };
     private Messenger mService;
     private Messenger mResponder;
     private boolean mPendingThresholdWarned;
+    private boolean mReplaying;
 
     public EventServiceConnection(Context context,
                                   EventServiceImpl.EventServiceResponseHandler handler,
@@ -41,24 +68,131 @@ class EventServiceConnection implements ServiceConnection {
         mListeners = new HashMap<>();
         mPendingWarningThreshold = options.pendingWarningThreshold;
         mDefaultQueueInfo = options.defaultUseLimitedQueueInfo;
+        mTraceLatency = options.traceLatency;
+        mRateLimits = new HashMap<>(options.rateLimits);
+        mQueueRateLimits = new HashMap<>(options.queueRateLimits);
+        mPendingQueue = new PendingRequests(new File(context.getCacheDir(),
+                processFileName(context, "pennstation-pending")), options.pendingMemoryLimit, context.getClassLoader());
+        if (options.journalName != null) {
+            mJournal = new RequestJournal(new File(context.getFilesDir(),
+                    processFileName(context, options.journalName)));
+            //Read on the journal's thread, this runs in Application.onCreate().
+            mJournal.open(context.getClassLoader(), new RequestJournal.Opener() {
+                @Override
+                public String stamp() {
+                    return journalStamp(mContext);
+                }
+
+                @Override
+                public void onLoaded(LinkedHashMap<String, Bundle> requests) {
+                    onJournalLoaded(requests);
+                }
+            });
+        } else {
+            mJournal = null;
+        }
+    }
+
+    /**
+     * Queues the requests of a previous process ahead of the ones waiting, their listeners went away with it.
+     */
+    private void onJournalLoaded(LinkedHashMap<String, Bundle> requests) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        synchronized (mLock) {
+            mDurable.addAll(requests.keySet());
+            mPendingQueue.requeue(new ArrayList<>(requests.keySet()), new ArrayList<>(requests.values()));
+            if (mService != null && !mReplaying) {
+                mReplaying = true;
+                mReplayHandler.post(mReplay);
+            }
+        }
+    }
+
+    /**
+     * Every process that calls PennStation.init() has its own connection, including the service's process,
+     * so each of them keeps its own files.
+     *
+     * @return name in the application's main process, name-suffix in its other processes.
+     */
+    static String processFileName(Context context, String name) {
+        final String process = processName(context);
+        String main = context.getApplicationInfo().processName;
+        if (main == null) {
+            main = context.getPackageName();
+        }
+        if (process == null || process.equals(main)) {
+            return name;
+        }
+        final int colon = process.indexOf(':');
+        return name + "-" + (colon >= 0 ? process.substring(colon + 1) : process);
+    }
+
+    private static String processName(Context context) {
+        final ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        final List<ActivityManager.RunningAppProcessInfo> processes = manager != null
+                ? manager.getRunningAppProcesses() : null;
+        if (processes != null) {
+            final int pid = Process.myPid();
+            for (ActivityManager.RunningAppProcessInfo process : processes) {
+                if (process.pid == pid) {
+                    return process.processName;
+                }
+            }
+        }
+        return null;
+    }
+
+    static String journalStamp(Context context) {
+        int versionCode = 0;
+        try {
+            versionCode = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            //Only the platform is checked.
+        }
+        return Build.FINGERPRINT + "/" + versionCode;
     }
 
     public String queueAndExecute(Bundle bundle) {
         return queueAndExecute(bundle, mDefaultQueueInfo, null);
     }
 
-    public String queueAndExecute(Bundle bundle, LimitedQueueInfo queueInfo, WeakReference<Requester.RequestListener> lisRef) {
+    public String queueAndExecute(final Bundle bundle, LimitedQueueInfo queueInfo, WeakReference<Requester.RequestListener> lisRef) {
         if (queueInfo != null) {
             bundle.putBoolean(EventServiceImpl.EXTRA_REQUEST_QUEUE_NEW_THREAD, false);
             bundle.putInt(EventServiceImpl.EXTRA_REQUEST_QUEUE_PRIORITY, queueInfo.priority);
             bundle.putString(EventServiceImpl.EXTRA_REQUEST_QUEUE_TAG, queueInfo.tag);
             bundle.putInt(EventServiceImpl.EXTRA_REQUEST_QUEUE_LIMIT, queueInfo.limit);
+            if (queueInfo.lane != RequestLane.UNSPECIFIED && !bundle.containsKey(EventServiceImpl.EXTRA_REQUEST_LANE)) {
+                bundle.putInt(EventServiceImpl.EXTRA_REQUEST_LANE, queueInfo.lane);
+            }
+            if (queueInfo.timeoutMs > 0 && !bundle.containsKey(EventServiceImpl.EXTRA_REQUEST_DEADLINE_NS)) {
+                bundle.putLong(EventServiceImpl.EXTRA_REQUEST_DEADLINE_NS,
+                        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queueInfo.timeoutMs));
+            }
+            final RateLimit queueRateLimit = mQueueRateLimits.get(queueInfo.tag != null ? queueInfo.tag
+                    : ActionExecutor.DEFAULT);
+            if (queueRateLimit != null) {
+                bundle.putParcelable(EventServiceImpl.EXTRA_REQUEST_QUEUE_RATE_LIMIT, queueRateLimit);
+            }
         } else {
             bundle.putBoolean(EventServiceImpl.EXTRA_REQUEST_QUEUE_NEW_THREAD, true);
         }
+        final ActionRequest request = bundle.getParcelable(EventServiceImpl.EXTRA_SERVICE_REQUEST);
+        if (request != null) {
+            final RateLimit rateLimit = mRateLimits.get(request.type());
+            if (rateLimit != null) {
+                bundle.putParcelable(EventServiceImpl.EXTRA_REQUEST_RATE_LIMIT, rateLimit);
+            }
+            request.describeTo(bundle);
+        }
         final String reqId = generateRequestId();
         bundle.putString(EXTRA_REQUEST_ID, reqId);
         bundle.putLong(EXTRA_REQUEST_TIME_MS, System.currentTimeMillis());
+        if (mTraceLatency) {
+            RequestTrace.stamp(bundle, RequestTrace.EXTRA_ENQUEUE_NS);
+        }
         final Requester.RequestListener listener;
         if (lisRef != null) {
             listener = lisRef.get();
@@ -66,30 +200,54 @@ class EventServiceConnection implements ServiceConnection {
                 listener.onRequested(bundle, reqId);
             }
         }
+        final boolean durable = mJournal != null && bundle.containsKey(EventServiceImpl.EXTRA_REQUEST_IDEMPOTENCY_KEY);
         synchronized (mLock) {
             if (lisRef != null) {
                 mListeners.put(reqId, lisRef);
             }
-            Messenger service = mService;
-            if (service != null) {
-                mRequestQueue.put(reqId, bundle);
-                final int size = mRequestQueue.size();
-                if (mPendingWarningThreshold > 0 &&
-                        size >= mPendingWarningThreshold) {
-                    PennStation.getManager().getEventBus().getStickyEvent(QueuePressureStateChangedEvent.class);
-                    PennStation.postLocalEvent(new QueuePressureStateChangedEvent(QueuePressureStateChangedEvent.STATE_ABOVE_THRESHOLD, size));
-                    mPendingThresholdWarned = true;
-                } else {
-                    cancelWarningIfNeeded(size);
-                }
-                sendMessage(service, newPerformRequestMessage(bundle));
+            if (durable) {
+                mDurable.add(reqId);
+                mJournaling.add(reqId);
             } else {
-                mPendingQueue.put(reqId, bundle);
+                enqueueLocked(reqId, bundle);
             }
         }
+        if (durable) {
+            mJournal.append(reqId, bundle, new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mLock) {
+                        //Unless it was cancelled meanwhile.
+                        if (mJournaling.remove(reqId)) {
+                            enqueueLocked(reqId, bundle);
+                        }
+                    }
+                }
+            });
+        }
         return reqId;
     }
 
+    private void enqueueLocked(String reqId, Bundle bundle) {
+        Messenger service = mService;
+        //While older requests are still being replayed, this one waits behind them.
+        if (service != null && !mReplaying) {
+            mRequestQueue.put(reqId, bundle);
+            final int size = mRequestQueue.size();
+            if (mPendingWarningThreshold > 0 &&
+                    size >= mPendingWarningThreshold) {
+                PennStation.getManager().getEventBus().getStickyEvent(QueuePressureStateChangedEvent.class);
+                PennStation.postLocalEvent(new QueuePressureStateChangedEvent(QueuePressureStateChangedEvent.STATE_ABOVE_THRESHOLD, size));
+                mPendingThresholdWarned = true;
+            } else {
+                cancelWarningIfNeeded(size);
+            }
+            sendMessage(service, newPerformRequestMessage(bundle));
+        } else {
+            mPendingQueue.add(reqId, bundle);
+        }
+    }
+
     private void cancelWarningIfNeeded(int size) {
         if (mPendingThresholdWarned && size < mPendingWarningThreshold) {
             mPendingThresholdWarned = false;
@@ -99,6 +257,14 @@ class EventServiceConnection implements ServiceConnection {
 
     public void cancelAllUnSubmitted() {
         synchronized (mLock) {
+            if (mJournal != null) {
+                final ArrayList<String> pending = new ArrayList<>();
+                mPendingQueue.ids(pending);
+                ackLocked(mRequestQueue.keySet());
+                ackLocked(pending);
+                ackLocked(mJournaling);
+                mJournaling.clear();
+            }
             mRequestQueue.clear();
             mPendingQueue.clear();
             cancelWarningIfNeeded(0);
@@ -113,6 +279,46 @@ class EventServiceConnection implements ServiceConnection {
         return msg;
     }
 
+    private Message newDumpFlightRecorderMessage(String path) {
+        final Message msg = Message.obtain();
+        msg.what = EventServiceImpl.DUMP_FLIGHT_RECORDER;
+        Bundle bundle = new Bundle();
+        bundle.putString(EventServiceImpl.EXTRA_DUMP_PATH, path);
+        msg.setData(bundle);
+        return msg;
+    }
+
+    /**
+     * @return false if the service is not connected yet.
+     */
+    public boolean dumpFlightRecorder(String path) {
+        synchronized (mLock) {
+            Messenger service = mService;
+            if (service == null) {
+                return false;
+            }
+            sendMessage(service, newDumpFlightRecorderMessage(path));
+            return true;
+        }
+    }
+
+    /**
+     * @return false if the service is not connected yet.
+     */
+    public boolean queryMetrics() {
+        synchronized (mLock) {
+            Messenger service = mService;
+            if (service == null) {
+                return false;
+            }
+            final Message msg = Message.obtain();
+            msg.what = EventServiceImpl.QUERY_METRICS;
+            msg.replyTo = getServiceResponder();
+            sendMessage(service, msg);
+            return true;
+        }
+    }
+
     private Message newCancelRequestMessage(String reqId) {
         final Message msg = Message.obtain();
         msg.what = EventServiceImpl.CANCEL_REQUEST;
@@ -154,32 +360,109 @@ class EventServiceConnection implements ServiceConnection {
     @Override
     public void onServiceConnected(ComponentName name, IBinder binder) {
         synchronized (mLock) {
-            Messenger service = new Messenger(binder);
-            mService = service;
-            mRequestQueue.putAll(mPendingQueue);
-            for (Bundle action : mPendingQueue.values()) {
-                sendMessage(service, newPerformRequestMessage(action));
+            mService = new Messenger(binder);
+            mReplaying = true;
+        }
+        replayBatch();
+    }
+
+    /**
+     * Sends the oldest pending requests, and posts itself for the next batch so a large backlog does not
+     * hold the main thread or mLock for long.
+     */
+    private void replayBatch() {
+        final LinkedHashMap<String, Bundle> batch = new LinkedHashMap<>();
+        synchronized (mLock) {
+            mReplayHandler.removeCallbacks(mReplay);
+            if (mService == null) {
+                mReplaying = false;
+                return;
+            }
+            mPendingQueue.drainTo(batch, REPLAY_BATCH);
+            mRequestQueue.putAll(batch);
+        }
+        for (Map.Entry<String, Bundle> request : batch.entrySet()) {
+            synchronized (mLock) {
+                final Messenger service = mService;
+                //Unless it was cancelled or the service went away meanwhile.
+                if (service != null && mRequestQueue.get(request.getKey()) == request.getValue()) {
+                    sendMessage(service, newPerformRequestMessage(request.getValue()));
+                }
+            }
+        }
+        synchronized (mLock) {
+            if (mService != null && !mPendingQueue.isEmpty()) {
+                mReplayHandler.post(mReplay);
+            } else {
+                mReplaying = false;
             }
-            mPendingQueue.clear();
         }
     }
 
     @Override
     public void onServiceDisconnected(ComponentName name) {
+        final ArrayList<String> lost = new ArrayList<>();
+        final ArrayList<String> cancelled = new ArrayList<>();
+        final ArrayList<Requester.RequestListener> listeners = new ArrayList<>();
         synchronized (mLock) {
             mService = null;
+            mReplaying = false;
+            //The service process died, durable requests it had are sent again first once it is back,
+            //the others are cancelled so their listeners do not wait forever.
+            final ArrayList<String> requestIds = new ArrayList<>();
+            final ArrayList<Bundle> bundles = new ArrayList<>();
+            for (Map.Entry<String, Bundle> request : mRequestQueue.entrySet()) {
+                if (mDurable.contains(request.getKey())) {
+                    requestIds.add(request.getKey());
+                    bundles.add(request.getValue());
+                } else {
+                    lost.add(request.getKey());
+                }
+            }
+            mRequestQueue.clear();
+            mPendingQueue.requeue(requestIds, bundles);
+            for (String requestId : lost) {
+                final WeakReference<Requester.RequestListener> listRef = mListeners.remove(requestId);
+                final Requester.RequestListener listener = listRef != null ? listRef.get() : null;
+                if (listener != null) {
+                    cancelled.add(requestId);
+                    listeners.add(listener);
+                }
+            }
+            cancelWarningIfNeeded(0);
+        }
+        if (!lost.isEmpty()) {
+            Log.w(EventServiceImpl.TAG, lost.size() + " requests were lost with the service.");
+        }
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onCancelled(cancelled.get(i));
+        }
+    }
+
+    private void ackLocked(Iterable<String> requestIds) {
+        for (String requestId : requestIds) {
+            if (mDurable.remove(requestId)) {
+                mJournal.ack(requestId);
+            }
+        }
+    }
+
+    private void ackLocked(String requestId) {
+        if (mJournal != null && mDurable.remove(requestId)) {
+            mJournal.ack(requestId);
         }
     }
 
     public boolean isPending(String requestId) {
         synchronized (mLock) {
-            return mRequestQueue.containsKey(requestId) || mPendingQueue.containsKey(requestId);
+            return mRequestQueue.containsKey(requestId) || mPendingQueue.contains(requestId);
         }
     }
 
     public Requester.RequestListener onComplete(String requestId) {
         synchronized (mLock) {
             mRequestQueue.remove(requestId);
+            ackLocked(requestId);
             cancelWarningIfNeeded(mRequestQueue.size());
             WeakReference<Requester.RequestListener> listRef = mListeners.remove(requestId);
             if (listRef != null) {
@@ -198,6 +481,8 @@ class EventServiceConnection implements ServiceConnection {
                 mRequestQueue.remove(requestId);
                 mPendingQueue.remove(requestId);
             }
+            mJournaling.remove(requestId);
+            ackLocked(requestId);
             Messenger service = mService;
             if (service != null) {
                 sendMessage(service, newCancelRequestMessage(requestId));
@@ -28,6 +28,20 @@ public class EventServiceHandler<T extends EventServiceImpl> extends Handler {
                 case EventServiceImpl.CANCEL_REQUEST:
                     serviceImpl.cancelRequest(msg);
                     break;
+                case EventServiceImpl.DUMP_FLIGHT_RECORDER:
+                    if (serviceImpl instanceof EventServiceImpl.Diagnostics) {
+                        ((EventServiceImpl.Diagnostics) serviceImpl).dumpFlightRecorder(msg);
+                    } else {
+                        Log.w(EventServiceImpl.TAG, "ServiceImpl has no flight recorder.");
+                    }
+                    break;
+                case EventServiceImpl.QUERY_METRICS:
+                    if (serviceImpl instanceof EventServiceImpl.Diagnostics) {
+                        ((EventServiceImpl.Diagnostics) serviceImpl).queryMetrics(msg);
+                    } else {
+                        Log.w(EventServiceImpl.TAG, "ServiceImpl has no metrics.");
+                    }
+                    break;
             }
         } else {
             Log.e(EventServiceImpl.TAG, "ServiceImpl is already dead.");
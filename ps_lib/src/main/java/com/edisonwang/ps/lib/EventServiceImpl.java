@@ -13,16 +13,60 @@ import android.os.Message;
 public interface EventServiceImpl {
     int PERFORM_REQUEST = 0;
     int CANCEL_REQUEST = 1;
+    int DUMP_FLIGHT_RECORDER = 2;
+    int QUERY_METRICS = 3;
     String TAG = "EventServiceImpl";
     String EXTRA_REQUEST_QUEUE_PRIORITY = "extra_request_priority";
     String EXTRA_REQUEST_QUEUE_LIMIT = "extra_request_queue_limit";
     String EXTRA_REQUEST_QUEUE_NEW_THREAD = "extra_request_queue_new_thread";
     String EXTRA_REQUEST_QUEUE_TAG = "extra_request_queue_tag";
+    /**
+     * System.nanoTime() past which the request is dropped if it has not started.
+     */
+    String EXTRA_REQUEST_DEADLINE_NS = "extra_request_deadline_ns";
+    /**
+     * Requests with the same key in the same queue run one at a time in the order they were sent.
+     */
+    String EXTRA_REQUEST_ORDERING_KEY = "extra_request_ordering_key";
+
+    /**
+     * RequestLane chosen by the sender, else its queue's, else the one declared on its action.
+     */
+    String EXTRA_REQUEST_LANE = "extra_request_lane";
+
+    /**
+     * Set on durable requests, the service drops a request whose key it already took.
+     */
+    String EXTRA_REQUEST_IDEMPOTENCY_KEY = "extra_request_idempotency_key";
+    /**
+     * RateLimit of the request's action type, the one declared on its @Action unless overridden.
+     */
+    String EXTRA_REQUEST_RATE_LIMIT = "extra_request_rate_limit";
+    /**
+     * RateLimit of the request's queue tag.
+     */
+    String EXTRA_REQUEST_QUEUE_RATE_LIMIT = "extra_request_queue_rate_limit";
+    /**
+     * Class name of the request's action. It and the extras below let the service route a request
+     * on its main thread, the request itself is only read by the thread that runs it.
+     */
+    String EXTRA_REQUEST_ACTION_TYPE = "extra_request_action_type";
+    String EXTRA_REQUEST_SUPERSESSION_KEY = "extra_request_supersession_key";
+    /**
+     * Set on standalone requests of a BatchAction.
+     */
+    String EXTRA_REQUEST_BATCHABLE = "extra_request_batchable";
     String EXTRA_SERVICE_REQUEST = "extra_service_request";
     String EXTRA_SERVICE_RESULT = "extra_service_result";
     String EXTRA_SERVICE_COMPLETE_SIGNAL = "extra_service_complete_signal";
     String EXTRA_CALLBACK = "extra_callback";
+    /**
+     * @deprecated no longer sent, call sites stay in the requesting process, see EventManager.getRequestCallSite().
+     */
+    @Deprecated
     String EXTRA_STACKTRACE_STRING = "extra_stack_trace_string";
+    String EXTRA_DUMP_PATH = "extra_dump_path";
+    String EXTRA_SERVICE_METRICS = "extra_service_metrics";
 
     int onStartCommand(Intent intent, int flags, int startId);
 
@@ -34,6 +78,23 @@ public interface EventServiceImpl {
 
     void cancelRequest(Message msg);
 
+    /**
+     * Optional, implemented by impls that keep diagnostics, e.g. DefaultServiceImpl.
+     */
+    interface Diagnostics {
+
+        /**
+         * Writes the service's flight recorder to EXTRA_DUMP_PATH as a Chrome trace.
+         */
+        void dumpFlightRecorder(Message msg);
+
+        /**
+         * Replies to msg.replyTo with a QUERY_METRICS message carrying a ServiceMetricsEvent in
+         * EXTRA_SERVICE_METRICS.
+         */
+        void queryMetrics(Message msg);
+    }
+
     interface EventServiceResponseHandler {
         void handleServiceResponse(Bundle b);
     }
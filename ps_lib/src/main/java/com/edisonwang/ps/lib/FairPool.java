@@ -0,0 +1,226 @@
+package com.edisonwang.ps.lib;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed number of threads shared by all limited queues, see EventService.getSharedPoolSize().
+ *
+ * Queues take turns by deficit round robin: every turn a queue is credited QUANTUM_NS times its tag's weight,
+ * and starting a task costs the queue's mean run time so far, corrected by the real run time once the task
+ * finishes. Queues with long tasks therefore start fewer of them, and every tag gets a share of thread time
+ * in proportion to its weight. Within a queue tasks keep their priority and deadline order, and a queue never
+ * runs more tasks at once than its limit, nor starts them faster than its tag's rate cap.
+ *
+ * @author edi
+ */
+public class FairPool {
+
+    private static final String TAG = "FairPool";
+    static final long QUANTUM_NS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final int[] mLock = {};
+    private final int mSize;
+    private final Policy mPolicy;
+    private final HashMap<String, Flow> mFlows = new HashMap<>();
+    //Queues with waiting tasks, in turn order.
+    private final ArrayList<Flow> mActive = new ArrayList<>();
+    private int mCursor;
+    private boolean mStarted;
+
+    /**
+     * @param size threads of the pool, started on first use.
+     */
+    public FairPool(int size, Policy policy) {
+        mSize = Math.max(1, size);
+        mPolicy = policy;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return the number of tasks waiting in the queue after this one was added.
+     */
+    int execute(PrioritizedRunnable runnable, int queueLimit, String queueTag) {
+        synchronized (mLock) {
+            if (!mStarted) {
+                mStarted = true;
+                for (int i = 0; i < mSize; i++) {
+                    final Thread worker = new Thread(new Worker(), "FairPool-" + i);
+                    worker.setDaemon(true);
+                    worker.start();
+                }
+            }
+            final String key = queueLimit + "/" + queueTag;
+            Flow flow = mFlows.get(key);
+            if (flow == null) {
+                final double rate = mPolicy.getRateLimit(queueTag);
+                flow = new Flow(Math.max(1, queueLimit), Math.max(1, mPolicy.getWeight(queueTag)),
+                        rate > 0 ? new TokenBucket(rate, rate) : null);
+                mFlows.put(key, flow);
+            }
+            if (flow.mQueue.isEmpty()) {
+                mActive.add(flow);
+            }
+            flow.mQueue.add(runnable);
+            mLock.notify();
+            return flow.mQueue.size();
+        }
+    }
+
+    /**
+     * Blocks until a queue may start a task.
+     */
+    private Dispatch take() throws InterruptedException {
+        synchronized (mLock) {
+            while (true) {
+                final long now = System.nanoTime();
+                long waitNs = Long.MAX_VALUE;
+                boolean eligible = false;
+                //Each round credits every queue that may start a task, so this ends once one of them has credit.
+                for (int visited = 0; ; visited++) {
+                    if (visited == mActive.size()) {
+                        if (!eligible) {
+                            break;
+                        }
+                        visited = 0;
+                        eligible = false;
+                    }
+                    if (mCursor >= mActive.size()) {
+                        mCursor = 0;
+                    }
+                    final Flow flow = mActive.get(mCursor);
+                    if (flow.mRunning >= flow.mLimit) {
+                        mCursor++;
+                        continue;
+                    }
+                    final long rateWaitNs = flow.mRate != null ? flow.mRate.nanosUntilAvailable(now) : 0;
+                    if (rateWaitNs > 0) {
+                        waitNs = Math.min(waitNs, rateWaitNs);
+                        mCursor++;
+                        continue;
+                    }
+                    eligible = true;
+                    //Credited once per turn, on top of what a finished task handed back since its last one.
+                    if (!flow.mInTurn) {
+                        flow.mInTurn = true;
+                        flow.mDeficitNs += QUANTUM_NS * flow.mWeight;
+                    }
+                    if (flow.mDeficitNs <= 0) {
+                        flow.mInTurn = false;
+                        mCursor++;
+                        continue;
+                    }
+                    final Dispatch dispatch = new Dispatch(flow, flow.mQueue.poll(), flow.mMeanNs);
+                    flow.mDeficitNs -= dispatch.mChargedNs;
+                    flow.mRunning++;
+                    if (flow.mRate != null) {
+                        flow.mRate.tryAcquire(now);
+                    }
+                    if (flow.mQueue.isEmpty()) {
+                        mActive.remove(mCursor);
+                        flow.mInTurn = false;
+                        flow.mDeficitNs = Math.min(0, flow.mDeficitNs);
+                    } else if (flow.mDeficitNs <= 0) {
+                        //Its turn is over, it is credited again on its next one.
+                        flow.mInTurn = false;
+                        mCursor++;
+                    }
+                    return dispatch;
+                }
+                if (waitNs == Long.MAX_VALUE) {
+                    mLock.wait();
+                } else {
+                    TimeUnit.NANOSECONDS.timedWait(mLock, waitNs);
+                }
+            }
+        }
+    }
+
+    private void finish(Dispatch dispatch, long runNs) {
+        synchronized (mLock) {
+            final Flow flow = dispatch.mFlow;
+            flow.mRunning--;
+            flow.mDeficitNs += dispatch.mChargedNs - runNs;
+            flow.mMeanNs += (runNs - flow.mMeanNs) / 8;
+            if (flow.mQueue.isEmpty() && flow.mDeficitNs > 0) {
+                //An idle queue does not save up credit, only its debt is kept.
+                flow.mDeficitNs = 0;
+            }
+            mLock.notify();
+        }
+    }
+
+    public interface Policy {
+        /**
+         * @return the tag's share of the pool's thread time relative to the other tags, at least 1.
+         */
+        int getWeight(String queueTag);
+
+        /**
+         * @return most tasks per second each queue of the tag may start, 0 for no cap.
+         */
+        double getRateLimit(String queueTag);
+    }
+
+    private static class Flow {
+        private final PriorityQueue<PrioritizedRunnable> mQueue =
+                new PriorityQueue<>(2, new PrioritizedRunnable.PrioritizedRunnableComparator());
+        private final int mLimit;
+        private final int mWeight;
+        private final TokenBucket mRate;
+        private int mRunning;
+        private long mDeficitNs;
+        //Credited for the current turn, which a queue at its limit or rate cap keeps until it can start a task.
+        private boolean mInTurn;
+        private long mMeanNs = QUANTUM_NS;
+
+        Flow(int limit, int weight, TokenBucket rate) {
+            mLimit = limit;
+            mWeight = weight;
+            mRate = rate;
+        }
+    }
+
+    private static class Dispatch {
+        private final Flow mFlow;
+        private final PrioritizedRunnable mRunnable;
+        private final long mChargedNs;
+
+        Dispatch(Flow flow, PrioritizedRunnable runnable, long chargedNs) {
+            mFlow = flow;
+            mRunnable = runnable;
+            mChargedNs = chargedNs;
+        }
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                final Dispatch dispatch;
+                try {
+                    dispatch = take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                final long start = System.nanoTime();
+                try {
+                    dispatch.mRunnable.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Task failed.", e);
+                } finally {
+                    //An interrupt meant for the task must not end the worker.
+                    Thread.interrupted();
+                    finish(dispatch, System.nanoTime() - start);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.edisonwang.ps.lib;
+
+import android.os.Process;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Always on, fixed size ring buffer of what the service's executors did.
+ *
+ * Each record is four longs: timestamp, type/name/thread, task serial and an argument.
+ * Recording claims a slot with one atomic increment and never allocates once a name has been seen.
+ * A dump taken while tasks are running may contain a few records that were half written.
+ *
+ * @author edi
+ */
+public class FlightRecorder {
+
+    public static final int SUBMIT = 1;
+    public static final int START = 2;
+    public static final int FINISH = 3;
+    public static final int CANCEL = 4;
+    public static final int DELIVER = 5;
+    public static final int QUEUE_DEPTH = 6;
+    public static final int SLOW = 7;
+    public static final int EXPIRE = 8;
+
+    private static final int FIELDS = 4;
+    private static final int MAX_NAMES = 1024;
+    private static final String UNKNOWN_NAME = "unknown";
+
+    private final AtomicLongArray mRecords;
+    private final AtomicLong mCursor = new AtomicLong();
+    private final int mMask;
+    private final ConcurrentHashMap<String, Integer> mNameIds = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<String> mNames = new AtomicReferenceArray<>(MAX_NAMES);
+    private final int[] mNameLock = {};
+    private int mNextNameId = 1;
+
+    /**
+     * @param capacity number of records kept, rounded up to a power of two.
+     */
+    public FlightRecorder(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mMask = size - 1;
+        mRecords = new AtomicLongArray(size * FIELDS);
+        mNames.set(0, UNKNOWN_NAME);
+    }
+
+    /**
+     * @return a small id for this name, allocates only the first time a name is seen.
+     */
+    public int nameId(String name) {
+        if (name == null) {
+            return 0;
+        }
+        Integer id = mNameIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (mNameLock) {
+            id = mNameIds.get(name);
+            if (id == null) {
+                if (mNextNameId >= MAX_NAMES) {
+                    return 0;
+                }
+                id = mNextNameId++;
+                mNames.set(id, name);
+                mNameIds.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    public void record(int type, int nameId, int serial, long arg) {
+        final int base = (int) (mCursor.getAndIncrement() & mMask) * FIELDS;
+        final long threadId = Thread.currentThread().getId();
+        mRecords.lazySet(base + 1, ((long) type << 56) | ((long) (nameId & 0xFFFFFF) << 32) | (threadId & 0xFFFFFFFFL));
+        mRecords.lazySet(base + 2, serial);
+        mRecords.lazySet(base + 3, arg);
+        mRecords.lazySet(base, System.nanoTime());
+    }
+
+    /**
+     * Writes every record still in the buffer in Chrome trace event format.
+     */
+    public void dump(File file) throws IOException {
+        final Writer writer = new BufferedWriter(new FileWriter(file));
+        try {
+            dump(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void dump(Writer writer) throws IOException {
+        final int pid = Process.myPid();
+        final long end = mCursor.get();
+        final long start = Math.max(0, end - (mMask + 1));
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        final HashMap<Long, String> threadNames = new HashMap<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            threadNames.put(thread.getId() & 0xFFFFFFFFL, thread.getName());
+        }
+        for (Long tid : threadNames.keySet()) {
+            first = writeSeparator(writer, first);
+            writer.write("{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":" + pid + ",\"tid\":" + tid
+                    + ",\"args\":{\"name\":\"" + escape(threadNames.get(tid)) + "\"}}");
+        }
+        for (long i = start; i < end; i++) {
+            final int base = (int) (i & mMask) * FIELDS;
+            final long timestamp = mRecords.get(base);
+            if (timestamp == 0) {
+                continue;
+            }
+            final long meta = mRecords.get(base + 1);
+            final int type = (int) (meta >>> 56);
+            final String name = name((int) ((meta >>> 32) & 0xFFFFFF));
+            final long tid = meta & 0xFFFFFFFFL;
+            final long serial = mRecords.get(base + 2);
+            final long arg = mRecords.get(base + 3);
+            first = writeSeparator(writer, first);
+            writer.write("{\"pid\":" + pid + ",\"tid\":" + tid + ",\"ts\":" + timestamp / 1000d
+                    + ",\"name\":\"" + escape(name) + "\"," + phase(type, serial, arg) + "}");
+        }
+        writer.write("]}");
+    }
+
+    private static String phase(int type, long serial, long arg) {
+        switch (type) {
+            case SUBMIT:
+                return "\"ph\":\"i\",\"s\":\"t\",\"cat\":\"submit\",\"args\":{\"task\":" + serial + ",\"priority\":" + arg + "}";
+            case START:
+                return "\"ph\":\"B\",\"cat\":\"action\",\"args\":{\"task\":" + serial + "}";
+            case FINISH:
+                return "\"ph\":\"E\",\"cat\":\"action\",\"args\":{\"task\":" + serial + "}";
+            case CANCEL:
+                return "\"ph\":\"i\",\"s\":\"t\",\"cat\":\"cancel\",\"args\":{\"task\":" + serial + "}";
+            case DELIVER:
+                return "\"ph\":\"i\",\"s\":\"t\",\"cat\":\"deliver\",\"args\":{\"task\":" + serial + ",\"complete\":" + (arg != 0) + "}";
+            case QUEUE_DEPTH:
+                return "\"ph\":\"C\",\"args\":{\"depth\":" + arg + "}";
+            case EXPIRE:
+                return "\"ph\":\"i\",\"s\":\"t\",\"cat\":\"expire\",\"args\":{\"task\":" + serial + ",\"overdueMs\":" + arg + "}";
+            case SLOW:
+                return "\"ph\":\"i\",\"s\":\"t\",\"cat\":\"slow\",\"args\":{\"task\":" + serial + ",\"runningMs\":" + arg + "}";
+            default:
+                return "\"ph\":\"i\",\"s\":\"t\",\"args\":{\"type\":" + type + "}";
+        }
+    }
+
+    private String name(int id) {
+        final String name = id < MAX_NAMES ? mNames.get(id) : null;
+        return name != null ? name : UNKNOWN_NAME;
+    }
+
+    private static boolean writeSeparator(Writer writer, boolean first) throws IOException {
+        if (!first) {
+            writer.write(",\n");
+        }
+        return false;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,35 @@
+package com.edisonwang.ps.lib;
+
+/**
+ * Implemented by the ActionKey enums generated for each @Action.
+ *
+ * @author edi
+ */
+public interface GeneratedActionKey extends ActionKey {
+
+    /**
+     * @return the index of this key in the generated {@link ActionRegistry},
+     * or {@link ActionRegistry#NO_ID} if it was not registered.
+     */
+    int actionId();
+
+    /**
+     * @return the action class, without loading or constructing the action.
+     */
+    Class<? extends Action> actionType();
+
+    /**
+     * @return true if the action extends FullAction, known at compile time.
+     */
+    boolean isFullAction();
+
+    /**
+     * @return the rate limit from the @Action annotation, or null.
+     */
+    RateLimit rateLimit();
+
+    /**
+     * @return the RequestLane from the @Action annotation.
+     */
+    int lane();
+}
@@ -0,0 +1,27 @@
+package com.edisonwang.ps.lib;
+
+import java.util.Map;
+
+/**
+ * Posted sticky while latency tracing is on, indexed by RequestTrace stages.
+ *
+ * @author edi
+ */
+public class LatencyMetricsEvent {
+
+    /**
+     * Keyed by action class name.
+     */
+    public final Map<String, LatencyHistogram.Snapshot[]> byAction;
+
+    /**
+     * Keyed by queue tag, or LatencyTracker.QUEUE_PARALLEL.
+     */
+    public final Map<String, LatencyHistogram.Snapshot[]> byQueue;
+
+    public LatencyMetricsEvent(Map<String, LatencyHistogram.Snapshot[]> byAction,
+                               Map<String, LatencyHistogram.Snapshot[]> byQueue) {
+        this.byAction = byAction;
+        this.byQueue = byQueue;
+    }
+}
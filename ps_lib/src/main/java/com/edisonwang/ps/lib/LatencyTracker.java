@@ -0,0 +1,64 @@
+package com.edisonwang.ps.lib;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per action and per queue histograms of every traced request stage.
+ *
+ * @author edi
+ */
+public class LatencyTracker {
+
+    public static final String QUEUE_PARALLEL = "parallel";
+
+    private final HashMap<String, LatencyHistogram[]> mByAction = new HashMap<>();
+    private final HashMap<String, LatencyHistogram[]> mByQueue = new HashMap<>();
+
+    void record(String action, String queue, RequestTrace trace) {
+        final LatencyHistogram[] actionHistograms;
+        final LatencyHistogram[] queueHistograms;
+        synchronized (this) {
+            actionHistograms = histograms(mByAction, action);
+            queueHistograms = histograms(mByQueue, queue);
+        }
+        for (int stage = 0; stage < RequestTrace.STAGE_COUNT; stage++) {
+            final long nanos = trace.getStageNanos(stage);
+            if (nanos >= 0) {
+                actionHistograms[stage].recordNanos(nanos);
+                queueHistograms[stage].recordNanos(nanos);
+            }
+        }
+    }
+
+    private static LatencyHistogram[] histograms(HashMap<String, LatencyHistogram[]> map, String key) {
+        LatencyHistogram[] histograms = map.get(key);
+        if (histograms == null) {
+            histograms = new LatencyHistogram[RequestTrace.STAGE_COUNT];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+            map.put(key, histograms);
+        }
+        return histograms;
+    }
+
+    public LatencyMetricsEvent snapshot() {
+        synchronized (this) {
+            return new LatencyMetricsEvent(snapshot(mByAction), snapshot(mByQueue));
+        }
+    }
+
+    private static HashMap<String, LatencyHistogram.Snapshot[]> snapshot(HashMap<String, LatencyHistogram[]> map) {
+        HashMap<String, LatencyHistogram.Snapshot[]> snapshots = new HashMap<>();
+        for (Map.Entry<String, LatencyHistogram[]> entry : map.entrySet()) {
+            final LatencyHistogram[] histograms = entry.getValue();
+            final LatencyHistogram.Snapshot[] stages = new LatencyHistogram.Snapshot[histograms.length];
+            for (int i = 0; i < histograms.length; i++) {
+                stages[i] = histograms[i].snapshot();
+            }
+            snapshots.put(entry.getKey(), stages);
+        }
+        return snapshots;
+    }
+}
@@ -20,9 +20,30 @@ public class LimitedQueueInfo {
      */
     public final String tag;
 
+    /**
+     * If above 0, requests sent to this queue are dropped with a RequestTimeoutResult if they
+     * have not started this many milliseconds after they were sent, unless Requester.timeout() is set.
+     */
+    public final long timeoutMs;
+
+    /**
+     * The RequestLane of requests sent to this queue, unless Requester.lane() is set.
+     */
+    public final int lane;
+
     public LimitedQueueInfo(int queueLimit, int queuePriority, String queueTag) {
+        this(queueLimit, queuePriority, queueTag, 0);
+    }
+
+    public LimitedQueueInfo(int queueLimit, int queuePriority, String queueTag, long timeoutMs) {
+        this(queueLimit, queuePriority, queueTag, timeoutMs, RequestLane.UNSPECIFIED);
+    }
+
+    public LimitedQueueInfo(int queueLimit, int queuePriority, String queueTag, long timeoutMs, int lane) {
         this.limit = queueLimit;
         this.priority = queuePriority;
         this.tag = queueTag;
+        this.timeoutMs = timeoutMs;
+        this.lane = lane;
     }
 }
@@ -0,0 +1,336 @@
+package com.edisonwang.ps.lib;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+/**
+ * Requests waiting for the service, in the order they were sent.
+ *
+ * The oldest ones are kept in memory up to a limit, the rest are appended to a segment file and read back
+ * as the memory drains. The segment only lives as long as this process, durable requests are in the journal.
+ *
+ * Spilled requests are marshalled by the caller and written by the segment's own thread, so callers holding
+ * a lock never wait on the disk to add one. Not thread safe otherwise.
+ *
+ * @author edi
+ */
+class PendingRequests implements Runnable {
+
+    private static final String TAG = "PendingRequests";
+
+    private final File mFile;
+    private final int mMemoryLimit;
+    private final ClassLoader mLoader;
+    private final ArrayDeque<String> mOrder = new ArrayDeque<>();
+    private final HashMap<String, Bundle> mMemory = new HashMap<>();
+    //Requests in the segment, a cancelled one is removed here and skipped when read back.
+    private final HashSet<String> mSpilled = new HashSet<>();
+    private DataInputStream mIn;
+    //Records of the segment read back so far.
+    private long mRead;
+
+    //Guards what is shared with the writer. Spilled requests are, in order, the records of the segment
+    //not read yet, the batch being written, then mQueued.
+    private final int[] mLock = {};
+    private ArrayList<Spill> mQueued = new ArrayList<>();
+    private long mWritten;
+    private boolean mWriting;
+    //Set once the segment could not be written, later requests stay in mQueued until it is reset.
+    private boolean mBroken;
+    //Bumped on every reset, the writer then starts the segment over.
+    private int mGeneration;
+    private Thread mWriter;
+
+    //Only used by the writer.
+    private DataOutputStream mOut;
+    private int mOutGeneration;
+
+    private static class Spill {
+        final String requestId;
+        final byte[] bytes;
+        //Set instead of bytes for a request that could not be marshalled, it is never written.
+        final Bundle bundle;
+
+        Spill(String requestId, byte[] bytes, Bundle bundle) {
+            this.requestId = requestId;
+            this.bytes = bytes;
+            this.bundle = bundle;
+        }
+    }
+
+    PendingRequests(File file, int memoryLimit, ClassLoader loader) {
+        mFile = file;
+        mMemoryLimit = Math.max(1, memoryLimit);
+        mLoader = loader;
+        //Left by a previous run of this process, every process spills to a file of its own.
+        mFile.delete();
+    }
+
+    int size() {
+        return mMemory.size() + mSpilled.size();
+    }
+
+    boolean isEmpty() {
+        return mMemory.isEmpty() && mSpilled.isEmpty();
+    }
+
+    boolean contains(String requestId) {
+        return mMemory.containsKey(requestId) || mSpilled.contains(requestId);
+    }
+
+    void add(String requestId, Bundle bundle) {
+        //Once anything is spilled everything after it is too, so requests are read back in order.
+        if (mMemory.size() >= mMemoryLimit || !mSpilled.isEmpty()) {
+            spill(requestId, bundle);
+            return;
+        }
+        mOrder.addLast(requestId);
+        mMemory.put(requestId, bundle);
+    }
+
+    /**
+     * Puts back requests that were already sent ahead of the ones waiting, whatever the limit.
+     */
+    void requeue(ArrayList<String> requestIds, ArrayList<Bundle> bundles) {
+        for (int i = requestIds.size() - 1; i >= 0; i--) {
+            mOrder.addFirst(requestIds.get(i));
+            mMemory.put(requestIds.get(i), bundles.get(i));
+        }
+    }
+
+    boolean remove(String requestId) {
+        if (mMemory.remove(requestId) != null) {
+            mOrder.remove(requestId);
+            return true;
+        }
+        if (mSpilled.remove(requestId)) {
+            if (mSpilled.isEmpty()) {
+                reset();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves up to max of the oldest requests into out.
+     */
+    void drainTo(LinkedHashMap<String, Bundle> out, int max) {
+        while (max > 0) {
+            if (mOrder.isEmpty() && !readBack()) {
+                return;
+            }
+            final String requestId = mOrder.pollFirst();
+            out.put(requestId, mMemory.remove(requestId));
+            max--;
+        }
+    }
+
+    /**
+     * @param out receives the ids of every request, including the spilled ones.
+     */
+    void ids(ArrayList<String> out) {
+        out.addAll(mOrder);
+        out.addAll(mSpilled);
+    }
+
+    void clear() {
+        mOrder.clear();
+        mMemory.clear();
+        mSpilled.clear();
+        reset();
+    }
+
+    private void spill(String requestId, Bundle bundle) {
+        Spill spill;
+        try {
+            spill = new Spill(requestId, RequestJournal.marshall(bundle), null);
+        } catch (RuntimeException e) {
+            //Kept in memory then, still behind the ones spilled before it.
+            Log.e(TAG, "Unable to spill a pending request.", e);
+            spill = new Spill(requestId, null, bundle);
+        }
+        mSpilled.add(requestId);
+        synchronized (mLock) {
+            mQueued.add(spill);
+            if (mWriter == null) {
+                mWriter = new Thread(this, "PennStation-pending");
+                mWriter.setDaemon(true);
+                mWriter.start();
+            }
+            mLock.notify();
+        }
+    }
+
+    /**
+     * Reads the next spilled requests back into memory, up to the limit.
+     *
+     * @return false if nothing was left.
+     */
+    private boolean readBack() {
+        if (mSpilled.isEmpty()) {
+            return false;
+        }
+        try {
+            while (mMemory.size() < mMemoryLimit && !mSpilled.isEmpty()) {
+                final Spill spill = nextSpill();
+                if (spill == null) {
+                    Log.e(TAG, "Pending requests segment ended early, " + mSpilled.size() + " requests are lost.");
+                    mSpilled.clear();
+                    break;
+                }
+                if (!mSpilled.remove(spill.requestId)) {
+                    //Cancelled while spilled.
+                    continue;
+                }
+                final Bundle bundle = spill.bundle != null ? spill.bundle
+                        : RequestJournal.unmarshall(spill.bytes, mLoader);
+                if (bundle != null) {
+                    mOrder.addLast(spill.requestId);
+                    mMemory.put(spill.requestId, bundle);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read pending requests back, " + mSpilled.size() + " requests are lost.", e);
+            mSpilled.clear();
+        }
+        if (mSpilled.isEmpty()) {
+            reset();
+        }
+        return !mOrder.isEmpty();
+    }
+
+    /**
+     * @return the oldest spilled request, from the segment or straight from the writer's queue,
+     * null if there is none.
+     */
+    private Spill nextSpill() throws IOException {
+        synchronized (mLock) {
+            //Only when the segment was read up to a batch still being written, for as long as that write.
+            boolean interrupted = false;
+            while (mRead >= mWritten && mWriting) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (mRead >= mWritten) {
+                return mQueued.isEmpty() ? null : mQueued.remove(0);
+            }
+        }
+        if (mIn == null) {
+            mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        }
+        final String requestId = mIn.readUTF();
+        final byte[] bytes = new byte[mIn.readInt()];
+        mIn.readFully(bytes);
+        mRead++;
+        return new Spill(requestId, bytes, null);
+    }
+
+    private void reset() {
+        RequestJournal.close(mIn);
+        mIn = null;
+        mRead = 0;
+        synchronized (mLock) {
+            mQueued.clear();
+            mWritten = 0;
+            mBroken = false;
+            mGeneration++;
+            mLock.notify();
+        }
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Spill> batch = new ArrayList<>();
+        while (true) {
+            final int generation;
+            synchronized (mLock) {
+                while (mOutGeneration == mGeneration && (mBroken || mQueued.isEmpty())) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        //Keep writing, requests wait on it.
+                    }
+                }
+                generation = mGeneration;
+                if (!mBroken) {
+                    final ArrayList<Spill> queued = mQueued;
+                    mQueued = batch;
+                    batch = queued;
+                    mWriting = !batch.isEmpty();
+                }
+            }
+            if (generation != mOutGeneration) {
+                //Emptied meanwhile, the segment starts over.
+                RequestJournal.close(mOut);
+                mOut = null;
+                mFile.delete();
+                mOutGeneration = generation;
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+            final int written = write(batch);
+            synchronized (mLock) {
+                mWriting = false;
+                if (generation == mGeneration) {
+                    mWritten += written;
+                    if (written < batch.size()) {
+                        //Kept in memory in order, ahead of what was queued meanwhile.
+                        mBroken = true;
+                        mQueued.addAll(0, batch.subList(written, batch.size()));
+                    }
+                }
+                mLock.notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * @return how many of the batch, from its start, were written.
+     */
+    private int write(ArrayList<Spill> batch) {
+        int written = 0;
+        try {
+            if (mOut == null) {
+                mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile)));
+            }
+            while (written < batch.size() && batch.get(written).bytes != null) {
+                final Spill spill = batch.get(written);
+                mOut.writeUTF(spill.requestId);
+                mOut.writeInt(spill.bytes.length);
+                mOut.write(spill.bytes);
+                written++;
+            }
+            mOut.flush();
+            return written;
+        } catch (IOException e) {
+            //Kept in memory then, past the limit.
+            Log.e(TAG, "Unable to spill pending requests.", e);
+            RequestJournal.close(mOut);
+            mOut = null;
+            return 0;
+        }
+    }
+}
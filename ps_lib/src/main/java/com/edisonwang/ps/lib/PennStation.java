@@ -2,6 +2,9 @@ package com.edisonwang.ps.lib;
 
 import android.app.Application;
 
+import java.util.HashMap;
+import java.util.HashSet;
+
 /**
  * @author edi
  */
@@ -94,15 +97,64 @@ public class PennStation {
         public LimitedQueueInfo defaultUseLimitedQueueInfo;
 
         /**
-         * If true, requests stacks will be logged, and have a slight performance reduction.
+         * If true, the call sites of sampled requests are kept in this process, see EventManager.getRequestCallSite().
          */
         public boolean logRequestStacks;
 
+        /**
+         * While logRequestStacks is on, 1 in this many requests is sampled, 0 only samples requestStackActions.
+         */
+        public int requestStackSampleRate = 1;
+
+        /**
+         * While logRequestStacks is on, requests of these action types are always sampled.
+         */
+        public final HashSet<Class<? extends Action>> requestStackActions = new HashSet<>();
+
+        /**
+         * Frames kept per call site, not counting frames inside this library.
+         */
+        public int requestStackFrames = 3;
+
         /**
          * If true, if there are too many requests pending in the global queue, logs will be emitted.
          */
         public int pendingWarningThreshold;
 
+        /**
+         * If true, requests carry monotonic timestamps of each stage and their latencies are
+         * recorded into histograms, see EventManager.getLatencyTracker().
+         */
+        public boolean traceLatency;
+
+        /**
+         * How often the LatencyMetricsEvent sticky event is refreshed while tracing.
+         */
+        public long latencyReportIntervalMs = 1000;
+
+        /**
+         * Rate limits by action type, sent along with each request, they override @Action(ratePerSecond).
+         */
+        public final HashMap<Class<? extends Action>, RateLimit> rateLimits = new HashMap<>();
+
+        /**
+         * Rate limits by queue tag, sent along with each request to a limited queue.
+         */
+        public final HashMap<String, RateLimit> queueRateLimits = new HashMap<>();
+
+        /**
+         * If set, requests sent with Requester.durable() are journaled to this file under getFilesDir() until
+         * they complete, and sent again if the service process dies or after this process restarts.
+         * Processes other than the main one append their process name, e.g. journalName-ps.
+         */
+        public String journalName;
+
+        /**
+         * Requests kept in memory while the service is not connected, later ones are spilled to a file of
+         * this process under getCacheDir() until they are sent.
+         */
+        public int pendingMemoryLimit = 256;
+
         public PennStationOptions(Class<? extends EventService> eventServiceClass) {
             this.eventServiceClass = eventServiceClass;
         }
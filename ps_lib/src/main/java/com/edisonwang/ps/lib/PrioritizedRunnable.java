@@ -8,10 +8,32 @@ import java.util.Comparator;
 public class PrioritizedRunnable implements Runnable {
 
     public final int priority;
+
+    /**
+     * If true, runnables of the same priority run earliest deadlineNs first, before the ones without a deadline.
+     */
+    public final boolean hasDeadline;
+    public final long deadlineNs;
+
+    /**
+     * RequestLane, runnables of an earlier lane run first whatever their priority.
+     */
+    public final int lane;
     private final Runnable runnable;
 
     public PrioritizedRunnable(int priority, Runnable runnable) {
+        this(priority, false, 0, runnable);
+    }
+
+    public PrioritizedRunnable(int priority, boolean hasDeadline, long deadlineNs, Runnable runnable) {
+        this(RequestLane.DEFAULT, priority, hasDeadline, deadlineNs, runnable);
+    }
+
+    public PrioritizedRunnable(int lane, int priority, boolean hasDeadline, long deadlineNs, Runnable runnable) {
+        this.lane = lane;
         this.priority = priority;
+        this.hasDeadline = hasDeadline;
+        this.deadlineNs = deadlineNs;
         this.runnable = runnable;
     }
 
@@ -32,14 +54,26 @@ public class PrioritizedRunnable implements Runnable {
             if (!(lhs instanceof PrioritizedRunnable)) {
                 return 0;
             }
-            int diff = ((PrioritizedRunnable) rhs).priority - ((PrioritizedRunnable) lhs).priority;
+            final PrioritizedRunnable left = (PrioritizedRunnable) lhs;
+            final PrioritizedRunnable right = (PrioritizedRunnable) rhs;
+            final int laneDiff = RequestLane.rank(left.lane) - RequestLane.rank(right.lane);
+            if (laneDiff != 0) {
+                return laneDiff < 0 ? -1 : 1;
+            }
+            int diff = right.priority - left.priority;
             if (diff > 0) {
                 return 1;
             } else if (diff < 0) {
                 return -1;
-            } else {
-                return 0;
             }
+            if (left.hasDeadline != right.hasDeadline) {
+                return left.hasDeadline ? -1 : 1;
+            }
+            if (left.hasDeadline) {
+                final long deadlineDiff = left.deadlineNs - right.deadlineNs;
+                return deadlineDiff < 0 ? -1 : (deadlineDiff > 0 ? 1 : 0);
+            }
+            return 0;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,85 @@
+package com.edisonwang.ps.lib;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * How fast the service starts requests of an action type or queue tag, see @Action(ratePerSecond)
+ * and PennStationOptions.rateLimits.
+ *
+ * Requests over the rate wait in the service without holding a thread, in the order they arrived.
+ *
+ * @author edi
+ */
+public class RateLimit implements Parcelable {
+
+    public static final Creator<RateLimit> CREATOR = new Creator<RateLimit>() {
+        @Override
+        public RateLimit createFromParcel(Parcel in) {
+            return new RateLimit(in.readDouble(), in.readInt(), in.readLong());
+        }
+
+        @Override
+        public RateLimit[] newArray(int size) {
+            return new RateLimit[size];
+        }
+    };
+
+    public final double ratePerSecond;
+
+    /**
+     * Requests that can start at once after a quiet period.
+     */
+    public final int burst;
+
+    /**
+     * If above 0, requests that would wait longer than this are rejected with a RequestRejectedResult.
+     */
+    public final long maxWaitMs;
+
+    public RateLimit(double ratePerSecond) {
+        this(ratePerSecond, 1, 0);
+    }
+
+    public RateLimit(double ratePerSecond, int burst, long maxWaitMs) {
+        this.ratePerSecond = ratePerSecond;
+        this.burst = Math.max(1, burst);
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeDouble(ratePerSecond);
+        dest.writeInt(burst);
+        dest.writeLong(maxWaitMs);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RateLimit)) {
+            return false;
+        }
+        final RateLimit other = (RateLimit) o;
+        return Double.compare(ratePerSecond, other.ratePerSecond) == 0 && burst == other.burst
+                && maxWaitMs == other.maxWaitMs;
+    }
+
+    @Override
+    public int hashCode() {
+        final long rate = Double.doubleToLongBits(ratePerSecond);
+        return 31 * (31 * (int) (rate ^ (rate >>> 32)) + burst) + (int) (maxWaitMs ^ (maxWaitMs >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return ratePerSecond + "/s burst " + burst + (maxWaitMs > 0 ? " max wait " + maxWaitMs + "ms" : "");
+    }
+}
@@ -0,0 +1,153 @@
+package com.edisonwang.ps.lib;
+
+import android.os.SystemClock;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Debounces and throttles requests by action type and key before they are sent, see Requester.gate().
+ *
+ * Requests that are dropped or replaced by a later one get onCancelled(null) without ever reaching the service,
+ * a request id is only given to the ones that are sent.
+ *
+ * @author edi
+ */
+class RequestGates {
+
+    private static final int PRUNE_SIZE = 64;
+
+    interface Sender {
+        void send(ActionRequest request, RequestOptions options, WeakReference<Requester.RequestListener> listener);
+
+        long schedule(ActionRequest request, RequestOptions options, WeakReference<Requester.RequestListener> listener,
+                      long delayMs);
+
+        boolean cancelSchedule(long scheduleId);
+    }
+
+    private final int[] mLock = {};
+    private final HashMap<GateKey, Gate> mGates = new HashMap<>();
+    private final Sender mSender;
+
+    RequestGates(Sender sender) {
+        mSender = sender;
+    }
+
+    void request(int mode, long windowMs, String key, ActionRequest request, RequestOptions options,
+                 WeakReference<Requester.RequestListener> listener) {
+        final long now = SystemClock.uptimeMillis();
+        boolean sendNow = false;
+        long replacedSchedule = 0;
+        WeakReference<Requester.RequestListener> dropped = null;
+        synchronized (mLock) {
+            final GateKey gateKey = new GateKey(request.type(), key);
+            Gate gate = mGates.get(gateKey);
+            if (gate == null) {
+                if (mGates.size() >= PRUNE_SIZE) {
+                    prune(now);
+                }
+                gate = new Gate(windowMs);
+                mGates.put(gateKey, gate);
+            }
+            if (gate.mPendingId != 0 && now >= gate.mPendingDueMs) {
+                //It is being sent by the scheduler.
+                gate.mLastSendMs = gate.mPendingDueMs;
+                gate.mPendingId = 0;
+                gate.mPendingListener = null;
+            }
+            long dueMs = 0;
+            switch (mode) {
+                case Requester.GATE_DEBOUNCE_LEADING:
+                    if (now - gate.mLastCallMs >= windowMs || gate.mLastCallMs == 0) {
+                        sendNow = true;
+                    } else {
+                        dropped = listener;
+                    }
+                    break;
+                case Requester.GATE_THROTTLE:
+                    if (gate.mPendingId == 0 && (now - gate.mLastSendMs >= windowMs || gate.mLastSendMs == 0)) {
+                        sendNow = true;
+                        gate.mLastSendMs = now;
+                    } else {
+                        dueMs = gate.mPendingId != 0 ? gate.mPendingDueMs : gate.mLastSendMs + windowMs;
+                    }
+                    break;
+                default:
+                    dueMs = now + windowMs;
+                    break;
+            }
+            gate.mLastCallMs = now;
+            gate.mWindowMs = windowMs;
+            if (dueMs != 0) {
+                if (gate.mPendingId != 0) {
+                    replacedSchedule = gate.mPendingId;
+                    dropped = gate.mPendingListener;
+                }
+                gate.mPendingId = mSender.schedule(request, options, listener, dueMs - now);
+                gate.mPendingDueMs = dueMs;
+                gate.mPendingListener = listener;
+            }
+        }
+        if (replacedSchedule != 0 && !mSender.cancelSchedule(replacedSchedule)) {
+            //Already sent.
+            dropped = null;
+        }
+        if (sendNow) {
+            mSender.send(request, options, listener);
+        }
+        final Requester.RequestListener droppedListener = dropped != null ? dropped.get() : null;
+        if (droppedListener != null) {
+            droppedListener.onCancelled(null);
+        }
+    }
+
+    private void prune(long now) {
+        final Iterator<Gate> gates = mGates.values().iterator();
+        while (gates.hasNext()) {
+            final Gate gate = gates.next();
+            if ((gate.mPendingId == 0 || now >= gate.mPendingDueMs) && now - gate.mLastCallMs >= gate.mWindowMs
+                    && now - gate.mLastSendMs >= gate.mWindowMs) {
+                gates.remove();
+            }
+        }
+    }
+
+    private static class Gate {
+        private long mWindowMs;
+        private long mLastCallMs;
+        private long mLastSendMs;
+        private long mPendingId;
+        private long mPendingDueMs;
+        private WeakReference<Requester.RequestListener> mPendingListener;
+
+        Gate(long windowMs) {
+            mWindowMs = windowMs;
+        }
+    }
+
+    private static class GateKey {
+        private final Class<? extends Action> mType;
+        private final String mKey;
+
+        GateKey(Class<? extends Action> type, String key) {
+            mType = type;
+            mKey = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof GateKey)) {
+                return false;
+            }
+            final GateKey other = (GateKey) o;
+            return mType == other.mType && (mKey == null ? other.mKey == null : mKey.equals(other.mKey));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mType.hashCode() + (mKey != null ? mKey.hashCode() : 0);
+        }
+    }
+}
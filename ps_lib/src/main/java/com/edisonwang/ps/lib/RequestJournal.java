@@ -0,0 +1,305 @@
+package com.edisonwang.ps.lib;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Append-only log of durable requests sent but not completed, see Requester.durable().
+ *
+ * Records are written by one thread, every record queued while it was syncing goes out in the next write and sync,
+ * and a request is only sent once the sync that covers it returns. The log is rewritten with only the live
+ * requests once most of it is acknowledged.
+ *
+ * Bundles are stored as marshalled Parcels, so a log written by another build or platform version is dropped.
+ * The log is read on the same thread before anything is written, see open().
+ *
+ * @author edi
+ */
+class RequestJournal implements Runnable {
+
+    private static final String TAG = "RequestJournal";
+    private static final int MAGIC = 0x50534a31;
+    private static final byte ADD = 1;
+    private static final byte ACK = 2;
+    private static final int COMPACT_MIN_RECORDS = 64;
+
+    /**
+     * Called on the journal's thread.
+     */
+    interface Opener {
+        /**
+         * @return identifies the build and platform, a log with another stamp is dropped.
+         */
+        String stamp();
+
+        /**
+         * Gets the requests that were never acknowledged, in the order they were sent, before any new
+         * record is written.
+         */
+        void onLoaded(LinkedHashMap<String, Bundle> requests);
+    }
+
+    private final int[] mLock = {};
+    private final File mFile;
+    private String mStamp;
+    private Opener mOpener;
+    private ClassLoader mLoader;
+    private final LinkedHashMap<String, byte[]> mLive = new LinkedHashMap<>();
+    private ArrayList<Record> mQueued = new ArrayList<>();
+    private ArrayList<Record> mWriting = new ArrayList<>();
+    private Thread mWriter;
+    private DataOutputStream mOut;
+    private FileOutputStream mFileOut;
+    private int mRecords;
+
+    private static class Record {
+        final byte type;
+        final String requestId;
+        final byte[] bundle;
+        final Runnable onDurable;
+
+        Record(byte type, String requestId, byte[] bundle, Runnable onDurable) {
+            this.type = type;
+            this.requestId = requestId;
+            this.bundle = bundle;
+            this.onDurable = onDurable;
+        }
+    }
+
+    RequestJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Starts the journal's thread, which loads the log for the opener then writes what was appended meanwhile.
+     */
+    void open(ClassLoader loader, Opener opener) {
+        synchronized (mLock) {
+            mLoader = loader;
+            mOpener = opener;
+            startWriter();
+        }
+    }
+
+    /**
+     * Reads the requests that were never acknowledged, in the order they were sent. Only called once, before
+     * anything is written, open() does it on the journal's thread.
+     *
+     * @param stamp identifies the build and platform, a log with another stamp is dropped.
+     */
+    LinkedHashMap<String, Bundle> load(String stamp, ClassLoader loader) {
+        mStamp = stamp;
+        final LinkedHashMap<String, Bundle> requests = new LinkedHashMap<>();
+        if (!mFile.exists()) {
+            return requests;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || !mStamp.equals(in.readUTF())) {
+                Log.w(TAG, "Dropping a journal written by another build.");
+                return requests;
+            }
+            while (true) {
+                final byte type = in.readByte();
+                final String requestId = in.readUTF();
+                if (type == ADD) {
+                    final byte[] bundle = new byte[in.readInt()];
+                    in.readFully(bundle);
+                    mLive.put(requestId, bundle);
+                } else {
+                    mLive.remove(requestId);
+                }
+            }
+        } catch (EOFException e) {
+            //The end of the log, or a record torn by a crash, which was never synced and never sent.
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read the journal.", e);
+        } finally {
+            close(in);
+        }
+        for (Map.Entry<String, byte[]> entry : mLive.entrySet()) {
+            final Bundle bundle = unmarshall(entry.getValue(), loader);
+            if (bundle != null) {
+                //Deadlines are on the monotonic clock, which restarts with the device.
+                bundle.remove(EventServiceImpl.EXTRA_REQUEST_DEADLINE_NS);
+                requests.put(entry.getKey(), bundle);
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * @param onDurable run on the journal's thread once the request is synced to disk.
+     */
+    void append(String requestId, Bundle bundle, Runnable onDurable) {
+        enqueue(new Record(ADD, requestId, marshall(bundle), onDurable));
+    }
+
+    void ack(String requestId) {
+        enqueue(new Record(ACK, requestId, null, null));
+    }
+
+    private void enqueue(Record record) {
+        synchronized (mLock) {
+            mQueued.add(record);
+            mLock.notify();
+        }
+    }
+
+    private void startWriter() {
+        if (mWriter == null) {
+            mWriter = new Thread(this, "PennStation-journal");
+            mWriter.setDaemon(true);
+            mWriter.start();
+        }
+    }
+
+    @Override
+    public void run() {
+        final Opener opener;
+        final ClassLoader loader;
+        synchronized (mLock) {
+            opener = mOpener;
+            loader = mLoader;
+            mOpener = null;
+        }
+        opener.onLoaded(load(opener.stamp(), loader));
+        while (true) {
+            synchronized (mLock) {
+                while (mQueued.isEmpty()) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        //Keep writing, requests wait on it.
+                    }
+                }
+                final ArrayList<Record> batch = mQueued;
+                mQueued = mWriting;
+                mWriting = batch;
+            }
+            write(mWriting);
+            for (int i = 0; i < mWriting.size(); i++) {
+                final Runnable onDurable = mWriting.get(i).onDurable;
+                if (onDurable != null) {
+                    onDurable.run();
+                }
+            }
+            mWriting.clear();
+        }
+    }
+
+    private void write(ArrayList<Record> batch) {
+        try {
+            for (Record record : batch) {
+                if (record.type == ADD) {
+                    mLive.put(record.requestId, record.bundle);
+                } else {
+                    mLive.remove(record.requestId);
+                }
+            }
+            if (mOut == null || (mRecords >= COMPACT_MIN_RECORDS && mRecords > 2 * mLive.size())) {
+                //Starts the log over with only the live requests, which covers this batch.
+                rewrite();
+                return;
+            }
+            for (Record record : batch) {
+                writeRecord(mOut, record.type, record.requestId, record.bundle);
+            }
+            mOut.flush();
+            mFileOut.getFD().sync();
+        } catch (IOException e) {
+            //Requests are still sent, they are only not durable.
+            Log.e(TAG, "Unable to write the journal.", e);
+            close(mOut);
+            mOut = null;
+        }
+    }
+
+    private void rewrite() throws IOException {
+        close(mOut);
+        mOut = null;
+        final File temp = new File(mFile.getPath() + ".tmp");
+        final FileOutputStream fileOut = new FileOutputStream(temp);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        try {
+            out.writeInt(MAGIC);
+            out.writeUTF(mStamp);
+            for (Map.Entry<String, byte[]> entry : mLive.entrySet()) {
+                writeRecord(out, ADD, entry.getKey(), entry.getValue());
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            close(out);
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("Unable to replace " + mFile);
+        }
+        mRecords = mLive.size();
+        mFileOut = new FileOutputStream(mFile, true);
+        mOut = new DataOutputStream(new BufferedOutputStream(mFileOut));
+    }
+
+    private void writeRecord(DataOutputStream out, byte type, String requestId, byte[] bundle) throws IOException {
+        out.writeByte(type);
+        out.writeUTF(requestId);
+        if (type == ADD) {
+            out.writeInt(bundle.length);
+            out.write(bundle);
+        }
+        mRecords++;
+    }
+
+    static byte[] marshall(Bundle bundle) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(bundle);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    static Bundle unmarshall(byte[] bytes, ClassLoader loader) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            final Bundle bundle = parcel.readBundle(loader);
+            //Reads the request now, so a request that no longer decodes is dropped here.
+            bundle.getParcelable(EventServiceImpl.EXTRA_SERVICE_REQUEST);
+            return bundle;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Dropping a stored request that can no longer be read.", e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                //Ignore.
+            }
+        }
+    }
+}
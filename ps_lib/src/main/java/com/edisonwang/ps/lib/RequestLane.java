@@ -0,0 +1,57 @@
+package com.edisonwang.ps.lib;
+
+/**
+ * Classes of requests, chosen with Requester.lane(), LimitedQueueInfo.lane or @Action(lane).
+ *
+ * The lanes of a queue tag share its limit and threads: interactive requests are taken before default ones,
+ * and default before bulk, and each runs at EventService.getLaneThreadPriority() for its lane.
+ *
+ * @author edi
+ */
+public final class RequestLane {
+
+    /**
+     * Fall back to the action's @Action(lane), or DEFAULT.
+     */
+    public static final int UNSPECIFIED = -1;
+
+    public static final int DEFAULT = 0;
+
+    /**
+     * Requests the user is waiting on.
+     */
+    public static final int INTERACTIVE = 1;
+
+    /**
+     * Sync and prefetch work that can wait behind everything else.
+     */
+    public static final int BULK = 2;
+
+    private RequestLane() {
+    }
+
+    /**
+     * @return lower for lanes that run first.
+     */
+    static int rank(int lane) {
+        switch (lane) {
+            case INTERACTIVE:
+                return 0;
+            case BULK:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    static String name(int lane) {
+        switch (lane) {
+            case INTERACTIVE:
+                return "interactive";
+            case BULK:
+                return "bulk";
+            default:
+                return "default";
+        }
+    }
+}
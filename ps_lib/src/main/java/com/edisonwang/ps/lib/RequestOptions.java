@@ -0,0 +1,56 @@
+package com.edisonwang.ps.lib;
+
+/**
+ * How a request is sent, taken from its Requester once and passed along as is.
+ *
+ * @author edi
+ */
+final class RequestOptions {
+
+    static final RequestOptions DEFAULT = new RequestOptions(null, 0, null, RequestLane.UNSPECIFIED, null);
+
+    /**
+     * Null for the default queue.
+     */
+    final LimitedQueueInfo queueInfo;
+
+    /**
+     * If above 0, the request is dropped with a RequestTimeoutResult if it has not started this long after
+     * it is sent.
+     */
+    final long timeoutMs;
+
+    /**
+     * If set, requests with the same key in the same queue run one at a time in the order they were sent.
+     */
+    final String orderingKey;
+
+    /**
+     * A RequestLane, UNSPECIFIED falls back to the queue's lane, then the action's.
+     */
+    final int lane;
+
+    /**
+     * If set, the request is durable, see Requester.durable().
+     */
+    final String idempotencyKey;
+
+    RequestOptions(LimitedQueueInfo queueInfo, long timeoutMs, String orderingKey, int lane, String idempotencyKey) {
+        this.queueInfo = queueInfo;
+        this.timeoutMs = timeoutMs;
+        this.orderingKey = orderingKey;
+        this.lane = lane;
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    static RequestOptions of(LimitedQueueInfo queueInfo) {
+        return queueInfo != null ? new RequestOptions(queueInfo, 0, null, RequestLane.UNSPECIFIED, null) : DEFAULT;
+    }
+
+    /**
+     * @return these options for a request that is not durable.
+     */
+    RequestOptions withoutIdempotencyKey() {
+        return idempotencyKey != null ? new RequestOptions(queueInfo, timeoutMs, orderingKey, lane, null) : this;
+    }
+}
@@ -0,0 +1,90 @@
+package com.edisonwang.ps.lib;
+
+import android.os.Parcel;
+
+/**
+ * Delivered instead of a request's results when the service refused to run it.
+ *
+ * @author edi
+ */
+public class RequestRejectedResult extends ActionResult {
+
+    public static final Creator<RequestRejectedResult> CREATOR = new Creator<RequestRejectedResult>() {
+        @Override
+        public RequestRejectedResult createFromParcel(Parcel in) {
+            return new RequestRejectedResult(in);
+        }
+
+        @Override
+        public RequestRejectedResult[] newArray(int size) {
+            return new RequestRejectedResult[size];
+        }
+    };
+
+    /**
+     * It would have waited longer than its RateLimit.maxWaitMs.
+     */
+    public static final int REASON_RATE_LIMITED = 1;
+
+    /**
+     * The service was overloaded and the request was not interactive, see AdmissionPolicy.
+     */
+    public static final int REASON_SHED = 2;
+
+    /**
+     * A newer request with the same ActionRequest.supersessionKey() arrived before this one started.
+     */
+    public static final int REASON_SUPERSEDED = 3;
+
+    /**
+     * Class name of the action that was rejected.
+     */
+    public final String actionType;
+    public final String requestId;
+    public final int reason;
+
+    /**
+     * How long the request would have waited, or 0 if unknown.
+     */
+    public final long waitMs;
+
+    public RequestRejectedResult(String actionType, String requestId, int reason, long waitMs) {
+        this.actionType = actionType;
+        this.requestId = requestId;
+        this.reason = reason;
+        this.waitMs = waitMs;
+    }
+
+    protected RequestRejectedResult(Parcel in) {
+        super(in);
+        actionType = in.readString();
+        requestId = in.readString();
+        reason = in.readInt();
+        waitMs = in.readLong();
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        super.writeToParcel(dest, flags);
+        dest.writeString(actionType);
+        dest.writeString(requestId);
+        dest.writeInt(reason);
+        dest.writeLong(waitMs);
+    }
+
+    @Override
+    public boolean isSuccess() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        if (reason == REASON_SHED) {
+            return actionType + " (" + requestId + ") was shed, the service is overloaded.";
+        }
+        if (reason == REASON_SUPERSEDED) {
+            return actionType + " (" + requestId + ") was superseded by a newer request.";
+        }
+        return actionType + " (" + requestId + ") was rejected, it would have waited " + waitMs + "ms for its rate limit.";
+    }
+}
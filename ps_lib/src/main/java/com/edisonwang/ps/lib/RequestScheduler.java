@@ -0,0 +1,220 @@
+package com.edisonwang.ps.lib;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Sends delayed and periodic requests for an EventManager from a TimerWheel advanced on its handler.
+ * The handler is only woken when the earliest schedule is due, not on every tick.
+ *
+ * Schedules live in the client process and end with it.
+ *
+ * @author edi
+ */
+class RequestScheduler {
+
+    private static final long TICK_MS = 10;
+    private static final int SLOTS = 512;
+
+    interface Sender {
+        void send(ActionRequest request, RequestOptions options, WeakReference<Requester.RequestListener> listener);
+    }
+
+    /**
+     * A listener that also hears about requests that completed without a result, e.g. their graph was cancelled.
+     */
+    interface CompletionListener extends Requester.RequestListener {
+        void onCompletedWithoutResult(String requestId);
+    }
+
+    private final int[] mLock = {};
+    private final Handler mHandler;
+    private final Sender mSender;
+    private final TimerWheel mWheel;
+    private final HashMap<Long, Schedule> mSchedules = new HashMap<>();
+    private final ArrayList<Runnable> mExpired = new ArrayList<>();
+    private long mNextId;
+    private boolean mTicking;
+    private long mTickAtMs;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mWheel.advance(SystemClock.uptimeMillis(), mExpired);
+            }
+            for (int i = 0; i < mExpired.size(); i++) {
+                mExpired.get(i).run();
+            }
+            mExpired.clear();
+            synchronized (mLock) {
+                mTicking = false;
+                startTicking();
+            }
+        }
+    };
+
+    RequestScheduler(Handler handler, Sender sender) {
+        mHandler = handler;
+        mSender = sender;
+        mWheel = new TimerWheel(TICK_MS, SLOTS, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * @param options  its idempotency key is only kept for requests sent once, every run of a periodic schedule
+     *                 is a new request.
+     * @param periodMs 0 to send the request once.
+     * @return the schedule id.
+     */
+    long schedule(ActionRequest request, RequestOptions options, WeakReference<Requester.RequestListener> listener,
+                  long delayMs, long periodMs, int mode) {
+        synchronized (mLock) {
+            final Schedule schedule = new Schedule(++mNextId, request,
+                    periodMs > 0 ? options.withoutIdempotencyKey() : options, listener, periodMs, mode);
+            mSchedules.put(schedule.mId, schedule);
+            schedule.arm(SystemClock.uptimeMillis() + Math.max(0, delayMs));
+            return schedule.mId;
+        }
+    }
+
+    /**
+     * @return false if the schedule was unknown, already cancelled or done.
+     */
+    boolean cancel(long scheduleId) {
+        synchronized (mLock) {
+            final Schedule schedule = mSchedules.remove(scheduleId);
+            if (schedule == null) {
+                return false;
+            }
+            if (schedule.mTimeout != null) {
+                mWheel.cancel(schedule.mTimeout);
+                schedule.mTimeout = null;
+                if (mWheel.isEmpty() && mTicking) {
+                    mHandler.removeCallbacks(mTick);
+                    mTicking = false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Posts the tick for the earliest schedule, unless one is already posted at or before it.
+     */
+    private void startTicking() {
+        if (mWheel.isEmpty()) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        final long tickAtMs = now + Math.max(1, mWheel.msUntilNextExpiry(now));
+        if (mTicking && mTickAtMs <= tickAtMs) {
+            return;
+        }
+        mHandler.removeCallbacks(mTick);
+        mTicking = true;
+        mTickAtMs = tickAtMs;
+        mHandler.postAtTime(mTick, tickAtMs);
+    }
+
+    private class Schedule implements Runnable, CompletionListener {
+        private final long mId;
+        private final ActionRequest mRequest;
+        private final RequestOptions mOptions;
+        private final WeakReference<Requester.RequestListener> mListener;
+        private final long mPeriodMs;
+        private final int mMode;
+        //Only this schedule holds itself strongly, the connection keeps a weak reference to it as a listener.
+        private final WeakReference<Requester.RequestListener> mSelf;
+        private TimerWheel.Timeout mTimeout;
+        private long mDueMs;
+
+        Schedule(long id, ActionRequest request, RequestOptions options,
+                 WeakReference<Requester.RequestListener> listener, long periodMs, int mode) {
+            mId = id;
+            mRequest = request;
+            mOptions = options;
+            mListener = listener;
+            mPeriodMs = periodMs;
+            mMode = mode;
+            mSelf = new WeakReference<Requester.RequestListener>(this);
+        }
+
+        private void arm(long dueMs) {
+            mDueMs = dueMs;
+            mTimeout = mWheel.schedule(this, dueMs, SystemClock.uptimeMillis());
+            startTicking();
+        }
+
+        @Override
+        public void run() {
+            final boolean waitForCompletion;
+            synchronized (mLock) {
+                if (mTimeout == null) {
+                    //Cancelled after it expired.
+                    return;
+                }
+                mTimeout = null;
+                if (mPeriodMs <= 0) {
+                    mSchedules.remove(mId);
+                    waitForCompletion = false;
+                } else if (mMode == Requester.SCHEDULE_FIXED_DELAY) {
+                    waitForCompletion = true;
+                } else {
+                    long next = mDueMs + mPeriodMs;
+                    final long now = SystemClock.uptimeMillis();
+                    if (mMode == Requester.SCHEDULE_FIXED_RATE_COALESCED && next <= now) {
+                        //Skip the runs that were missed, keeping the original phase.
+                        next += ((now - next) / mPeriodMs + 1) * mPeriodMs;
+                    }
+                    arm(next);
+                    waitForCompletion = false;
+                }
+            }
+            mSender.send(mRequest, mOptions, waitForCompletion ? mSelf : mListener);
+        }
+
+        private void rearmAfterCompletion() {
+            synchronized (mLock) {
+                if (mSchedules.get(mId) == this && mTimeout == null) {
+                    arm(SystemClock.uptimeMillis() + mPeriodMs);
+                }
+            }
+        }
+
+        @Override
+        public void onRequested(Bundle bundle, String requestId) {
+            final Requester.RequestListener listener = mListener != null ? mListener.get() : null;
+            if (listener != null) {
+                listener.onRequested(bundle, requestId);
+            }
+        }
+
+        @Override
+        public void onCompleted(String reqId, ActionResult result) {
+            final Requester.RequestListener listener = mListener != null ? mListener.get() : null;
+            if (listener != null) {
+                listener.onCompleted(reqId, result);
+            }
+            rearmAfterCompletion();
+        }
+
+        @Override
+        public void onCompletedWithoutResult(String requestId) {
+            rearmAfterCompletion();
+        }
+
+        @Override
+        public void onCancelled(String requestId) {
+            final Requester.RequestListener listener = mListener != null ? mListener.get() : null;
+            if (listener != null) {
+                listener.onCancelled(requestId);
+            }
+            rearmAfterCompletion();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.edisonwang.ps.lib;
+
+import android.os.Parcel;
+
+/**
+ * Delivered instead of a request's results when its deadline passed before it started,
+ * see Requester.timeout() and LimitedQueueInfo.timeoutMs.
+ *
+ * @author edi
+ */
+public class RequestTimeoutResult extends ActionResult {
+
+    public static final Creator<RequestTimeoutResult> CREATOR = new Creator<RequestTimeoutResult>() {
+        @Override
+        public RequestTimeoutResult createFromParcel(Parcel in) {
+            return new RequestTimeoutResult(in);
+        }
+
+        @Override
+        public RequestTimeoutResult[] newArray(int size) {
+            return new RequestTimeoutResult[size];
+        }
+    };
+
+    /**
+     * Class name of the action that was dropped.
+     */
+    public final String actionType;
+    public final String requestId;
+
+    /**
+     * How long past its deadline the request was when it was dropped.
+     */
+    public final long overdueMs;
+
+    public RequestTimeoutResult(String actionType, String requestId, long overdueMs) {
+        this.actionType = actionType;
+        this.requestId = requestId;
+        this.overdueMs = overdueMs;
+    }
+
+    protected RequestTimeoutResult(Parcel in) {
+        super(in);
+        actionType = in.readString();
+        requestId = in.readString();
+        overdueMs = in.readLong();
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        super.writeToParcel(dest, flags);
+        dest.writeString(actionType);
+        dest.writeString(requestId);
+        dest.writeLong(overdueMs);
+    }
+
+    @Override
+    public boolean isSuccess() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return actionType + " (" + requestId + ") was dropped " + overdueMs + "ms past its deadline.";
+    }
+}
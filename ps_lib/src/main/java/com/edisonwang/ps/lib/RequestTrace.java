@@ -0,0 +1,123 @@
+package com.edisonwang.ps.lib;
+
+import android.os.Bundle;
+
+/**
+ * Monotonic timestamps of a request's lifecycle, carried in the request bundle.
+ *
+ * System.nanoTime() is CLOCK_MONOTONIC on Android, which is shared by every process on the device,
+ * so client and service timestamps can be subtracted from each other.
+ *
+ * @author edi
+ */
+public class RequestTrace {
+
+    /**
+     * Client enqueue to service receipt.
+     */
+    public static final int STAGE_SEND = 0;
+    /**
+     * Service receipt to executor dequeue.
+     */
+    public static final int STAGE_QUEUED = 1;
+    /**
+     * Executor dequeue to action start, mostly unparceling the request.
+     */
+    public static final int STAGE_PREPARE = 2;
+    /**
+     * Action start to action end, including dependencies and chained actions.
+     */
+    public static final int STAGE_EXECUTE = 3;
+    /**
+     * Action end to the result being posted back from the service's main thread.
+     */
+    public static final int STAGE_RESPOND = 4;
+    /**
+     * Result posted to the listeners being dispatched on the client.
+     */
+    public static final int STAGE_DELIVER = 5;
+    /**
+     * Client enqueue to listener dispatch.
+     */
+    public static final int STAGE_TOTAL = 6;
+    public static final int STAGE_COUNT = 7;
+
+    static final String EXTRA_ENQUEUE_NS = "trace_enqueue_ns";
+    static final String EXTRA_RECEIVED_NS = "trace_received_ns";
+    static final String EXTRA_DEQUEUED_NS = "trace_dequeued_ns";
+    static final String EXTRA_START_NS = "trace_start_ns";
+    static final String EXTRA_END_NS = "trace_end_ns";
+    static final String EXTRA_POSTED_NS = "trace_posted_ns";
+
+    private static final String[] STAGE_NAMES = {
+            "send", "queued", "prepare", "execute", "respond", "deliver", "total"
+    };
+
+    public final long enqueueNs;
+    public final long receivedNs;
+    public final long dequeuedNs;
+    public final long startNs;
+    public final long endNs;
+    public final long postedNs;
+    public final long dispatchedNs;
+
+    private RequestTrace(Bundle b, long dispatchedNs) {
+        enqueueNs = b.getLong(EXTRA_ENQUEUE_NS);
+        receivedNs = b.getLong(EXTRA_RECEIVED_NS);
+        dequeuedNs = b.getLong(EXTRA_DEQUEUED_NS);
+        startNs = b.getLong(EXTRA_START_NS);
+        endNs = b.getLong(EXTRA_END_NS);
+        postedNs = b.getLong(EXTRA_POSTED_NS);
+        this.dispatchedNs = dispatchedNs;
+    }
+
+    /**
+     * @return the trace of this result bundle, or null if the request was not traced.
+     */
+    static RequestTrace fromBundle(Bundle b, long dispatchedNs) {
+        if (b.getLong(EXTRA_ENQUEUE_NS, 0) == 0) {
+            return null;
+        }
+        return new RequestTrace(b, dispatchedNs);
+    }
+
+    static boolean isTraced(Bundle b) {
+        return b.containsKey(EXTRA_ENQUEUE_NS);
+    }
+
+    static void stamp(Bundle b, String key) {
+        b.putLong(key, System.nanoTime());
+    }
+
+    public static String stageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /**
+     * @return how long this stage took, or -1 if one of its timestamps is missing.
+     */
+    public long getStageNanos(int stage) {
+        switch (stage) {
+            case STAGE_SEND:
+                return between(enqueueNs, receivedNs);
+            case STAGE_QUEUED:
+                return between(receivedNs, dequeuedNs);
+            case STAGE_PREPARE:
+                return between(dequeuedNs, startNs);
+            case STAGE_EXECUTE:
+                return between(startNs, endNs);
+            case STAGE_RESPOND:
+                return between(endNs, postedNs);
+            case STAGE_DELIVER:
+                return between(postedNs, dispatchedNs);
+            case STAGE_TOTAL:
+                return between(enqueueNs, dispatchedNs);
+            default:
+                throw new IllegalArgumentException("Unknown stage " + stage);
+        }
+    }
+
+    private static long between(long from, long to) {
+        return from == 0 || to == 0 ? -1 : to - from;
+    }
+}
@@ -3,12 +3,53 @@ package com.edisonwang.ps.lib;
 import android.os.Bundle;
 
 import java.lang.ref.WeakReference;
+import java.util.UUID;
 
 /**
  * @author edi
  */
 public class Requester {
+
+    /**
+     * Periodic requests are sent every period from the first one, catching up on missed runs one by one.
+     */
+    public static final int SCHEDULE_FIXED_RATE = 0;
+
+    /**
+     * Like SCHEDULE_FIXED_RATE, but runs that fell behind by a period or more are skipped.
+     */
+    public static final int SCHEDULE_FIXED_RATE_COALESCED = 1;
+
+    /**
+     * Periodic requests are sent a period after the previous one completed or was cancelled.
+     */
+    public static final int SCHEDULE_FIXED_DELAY = 2;
+
+    /**
+     * Requests are sent once no other request of the type and key came for the window, the last one wins.
+     */
+    public static final int GATE_DEBOUNCE_TRAILING = 0;
+
+    /**
+     * A request is sent only if no other request of the type and key came in the window before it.
+     */
+    public static final int GATE_DEBOUNCE_LEADING = 1;
+
+    /**
+     * At most one request of the type and key is sent per window, the last one of a window is sent at its end.
+     */
+    public static final int GATE_THROTTLE = 2;
+
     public long delay;
+    public long gateWindow;
+    public int gateMode = GATE_DEBOUNCE_TRAILING;
+    public String gateKey;
+    public long period;
+    public int scheduleMode = SCHEDULE_FIXED_RATE;
+    public long timeout;
+    public String orderingKey;
+    public int lane = RequestLane.UNSPECIFIED;
+    public String idempotencyKey;
     private ActionRequest request;
     private ActionRequestHelper helper;
     private LimitedQueueInfo queue;
@@ -38,11 +79,100 @@ public class Requester {
         return this;
     }
 
+    /**
+     * @param window milliseconds, requests of the action type and key are gated together before they are sent.
+     * @param mode   one of the GATE_ constants.
+     * @param key    optional, e.g. the id of the list being scrolled.
+     *               delay() does not apply to gated requests. A request the gate drops is never sent and never
+     *               gets onRequested(), its listener gets onCancelled() with a null request id.
+     */
+    public Requester gate(long window, int mode, String key) {
+        this.gateWindow = window;
+        this.gateMode = mode;
+        this.gateKey = key;
+        return this;
+    }
+
+    /**
+     * @param period milliseconds between runs when sent with schedule().
+     * @param mode   one of the SCHEDULE_ constants.
+     */
+    public Requester every(long period, int mode) {
+        this.period = period;
+        this.scheduleMode = mode;
+        return this;
+    }
+
+    /**
+     * @param timeout milliseconds after the request is sent past which it is dropped with a RequestTimeoutResult
+     *                if it has not started, overrides LimitedQueueInfo.timeoutMs.
+     */
+    public Requester timeout(long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * @param orderingKey requests with the same key in the same queue run one at a time in the order
+     *                    they were sent, requests with different keys still run in parallel.
+     */
+    public Requester orderingKey(String orderingKey) {
+        this.orderingKey = orderingKey;
+        return this;
+    }
+
+    /**
+     * @param lane a RequestLane, overrides LimitedQueueInfo.lane and @Action(lane).
+     */
+    public Requester lane(int lane) {
+        this.lane = lane;
+        return this;
+    }
+
+    /**
+     * Journals the request until it completes, so it is sent again if the service process dies or after this
+     * process restarts, see PennStationOptions.journalName. Not kept for requests sent with schedule() or gate().
+     *
+     * @param idempotencyKey a request whose key the service already took is not run again, it gets the result of
+     *                       the first one, e.g. the id of the upload.
+     */
+    public Requester durable(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+        return this;
+    }
+
+    /**
+     * Journals the request until it completes, keyed by a new idempotency key.
+     */
+    public Requester durable() {
+        return durable(UUID.randomUUID().toString());
+    }
+
     public void request(EventManager eventManager, WeakReference<RequestListener> listener) {
         if (request == null) {
             request = helper.buildRequest();
         }
-        eventManager.requestAction(request, queue, delay, listener);
+        if (gateWindow > 0) {
+            eventManager.requestActionGated(request, gateMode, gateWindow, gateKey, options(null), listener);
+        } else {
+            eventManager.requestAction(request, delay, options(idempotencyKey), listener);
+        }
+    }
+
+    /**
+     * Sends the request after delay, then every period if set, until cancelled.
+     *
+     * @return the id to pass to EventManager.cancelSchedule().
+     */
+    public long schedule(EventManager eventManager, WeakReference<RequestListener> listener) {
+        if (request == null) {
+            request = helper.buildRequest();
+        }
+        return eventManager.scheduleAction(request, delay, period, scheduleMode, options(null), listener);
+    }
+
+    private RequestOptions options(String idempotencyKey) {
+        return new RequestOptions(queue, timeout, orderingKey, lane, idempotencyKey);
     }
 
     public static void singleFire(ActionRequest request, EventManager em, RequestListener listener) {
@@ -62,6 +192,8 @@ public class Requester {
 
         /**
          * Called when request was cancelled.
+         *
+         * @param requestId null for a request dropped by gate() before it was sent.
          */
         void onCancelled(String requestId);
     }
@@ -15,11 +15,27 @@ public class ResponseInfo {
     public final long mRequestTime;
     public final long mResultTime;
 
+    /**
+     * Stage timestamps, null unless PennStationOptions.traceLatency is on.
+     */
+    public final RequestTrace mTrace;
+
+    /**
+     * Where the request was made, null unless it was sampled by PennStationOptions.logRequestStacks.
+     */
+    public final String mCallSite;
+
     public ResponseInfo(Bundle b) {
+        this(b, null);
+    }
+
+    public ResponseInfo(Bundle b, String callSite) {
         mOriginalResultBundle = b;
         mRequestTime = b.getLong(EventServiceConnection.EXTRA_REQUEST_TIME_MS, 0);
         mResultTime = System.currentTimeMillis();
+        mTrace = RequestTrace.fromBundle(b, System.nanoTime());
         mRequestId = b.getString(EventServiceConnection.EXTRA_REQUEST_ID);
         mRequest = b.getParcelable(EventServiceImpl.EXTRA_SERVICE_REQUEST);
+        mCallSite = callSite;
     }
 }
@@ -0,0 +1,48 @@
+package com.edisonwang.ps.lib;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Runs tasks with the same ordering key one after another in arrival order, see Requester.orderingKey().
+ *
+ * Only the lane's head is submitted to the executor, the others wait here until it is done.
+ * A lane exists only while it has tasks, so idle keys take no threads and no memory.
+ *
+ * @author edi
+ */
+class SerialLanes<T> {
+
+    private final HashMap<String, ArrayDeque<T>> mLanes = new HashMap<>();
+
+    /**
+     * @return true if the task heads its lane and should be submitted now.
+     */
+    synchronized boolean enter(String key, T task) {
+        final ArrayDeque<T> lane = mLanes.get(key);
+        if (lane == null) {
+            //The running head is not kept, an empty lane means one task is running.
+            mLanes.put(key, new ArrayDeque<T>(2));
+            return true;
+        }
+        lane.add(task);
+        return false;
+    }
+
+    /**
+     * Called once the lane's running task is done.
+     *
+     * @return the next task to submit, or null if the lane is now idle.
+     */
+    synchronized T exit(String key) {
+        final ArrayDeque<T> lane = mLanes.get(key);
+        if (lane == null) {
+            return null;
+        }
+        final T next = lane.poll();
+        if (next == null) {
+            mLanes.remove(key);
+        }
+        return next;
+    }
+}
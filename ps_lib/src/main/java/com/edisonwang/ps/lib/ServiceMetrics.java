@@ -0,0 +1,230 @@
+package com.edisonwang.ps.lib;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Always on counters of what the service's queues and actions did, read through snapshot().
+ *
+ * Updates are striped counters and lock free. Every counter only grows, and a snapshot reads the later
+ * stage of a pipeline before the earlier one, so it never shows more finished than submitted tasks,
+ * more errors than invocations or more cache hits than lookups.
+ *
+ * @author edi
+ */
+public class ServiceMetrics {
+
+    private final ConcurrentHashMap<String, QueueStats> mQueues = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ActionStats> mActions = new ConcurrentHashMap<>();
+    private final StripedCounter mCancelRequests = new StripedCounter();
+    private final StripedCounter mCancelledBeforeStart = new StripedCounter();
+    private final StripedCounter mExpired = new StripedCounter();
+    private final StripedCounter mRejected = new StripedCounter();
+    private final StripedCounter mShed = new StripedCounter();
+    private final StripedCounter mSuperseded = new StripedCounter();
+    private final long mCreatedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+
+    /**
+     * @param name queue tag, or LatencyTracker.QUEUE_PARALLEL.
+     */
+    public QueueStats queue(String name) {
+        QueueStats stats = mQueues.get(name);
+        if (stats == null) {
+            final QueueStats created = new QueueStats();
+            stats = mQueues.putIfAbsent(name, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @param name action class name.
+     */
+    public ActionStats action(String name) {
+        ActionStats stats = mActions.get(name);
+        if (stats == null) {
+            final ActionStats created = new ActionStats();
+            stats = mActions.putIfAbsent(name, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    public void onCancelRequested() {
+        mCancelRequests.increment();
+    }
+
+    public void onCancelledBeforeStart() {
+        mCancelledBeforeStart.increment();
+    }
+
+    public void onExpired() {
+        mExpired.increment();
+    }
+
+    public void onRejected() {
+        mRejected.increment();
+    }
+
+    public void onShed() {
+        mShed.increment();
+    }
+
+    public void onSuperseded() {
+        mSuperseded.increment();
+    }
+
+    /**
+     * Completion rates are averaged since the previous snapshot, or since the service started.
+     */
+    public synchronized ServiceMetricsEvent snapshot() {
+        final long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        final ArrayList<ServiceMetricsEvent.QueueMetrics> queues = new ArrayList<>(mQueues.size());
+        for (Map.Entry<String, QueueStats> entry : mQueues.entrySet()) {
+            queues.add(entry.getValue().snapshot(entry.getKey(), now, mCreatedMs));
+        }
+        final ArrayList<ServiceMetricsEvent.ActionMetrics> actions = new ArrayList<>(mActions.size());
+        for (Map.Entry<String, ActionStats> entry : mActions.entrySet()) {
+            actions.add(entry.getValue().snapshot(entry.getKey()));
+        }
+        final long cancelledBeforeStart = mCancelledBeforeStart.sum();
+        return new ServiceMetricsEvent(now - mCreatedMs,
+                queues.toArray(new ServiceMetricsEvent.QueueMetrics[queues.size()]),
+                actions.toArray(new ServiceMetricsEvent.ActionMetrics[actions.size()]),
+                mCancelRequests.sum(), cancelledBeforeStart, mExpired.sum(), mRejected.sum(), mShed.sum(),
+                mSuperseded.sum());
+    }
+
+    /**
+     * Wraps every cache so lookups and hits are counted per action.
+     */
+    public ActionCacheFactory meter(final ActionCacheFactory factory) {
+        return new ActionCacheFactory() {
+            @Override
+            public ActionCache getCache(FullAction action, FullAction.CachePolicy policy) {
+                return new MeteredCache(factory.getCache(action, policy), action(action.getClass().getName()));
+            }
+        };
+    }
+
+    public static class QueueStats {
+        private final StripedCounter mSubmitted = new StripedCounter();
+        private final StripedCounter mDequeued = new StripedCounter();
+        private final StripedCounter mFinished = new StripedCounter();
+        private final StripedCounter mRateDelayed = new StripedCounter();
+        private final StripedCounter mRateReleased = new StripedCounter();
+        private volatile int mLimit;
+        private long mLastFinished;
+        private long mLastSnapshotMs;
+
+        public void onSubmitted() {
+            mSubmitted.increment();
+        }
+
+        /**
+         * Called when a thread picks the task up, even if it was cancelled and will not run.
+         */
+        public void onDequeued() {
+            mDequeued.increment();
+        }
+
+        public void onFinished() {
+            mFinished.increment();
+        }
+
+        /**
+         * Called when a task has to wait for a rate limit before it is handed to the executor.
+         */
+        public void onRateDelayed() {
+            mRateDelayed.increment();
+        }
+
+        public void onRateReleased() {
+            mRateReleased.increment();
+        }
+
+        /**
+         * @param limit threads the queue may use right now.
+         */
+        public void setLimit(int limit) {
+            mLimit = limit;
+        }
+
+        //Only called from the synchronized ServiceMetrics.snapshot().
+        ServiceMetricsEvent.QueueMetrics snapshot(String name, long now, long createdMs) {
+            final long finished = mFinished.sum();
+            final long dequeued = mDequeued.sum();
+            final long rateReleased = mRateReleased.sum();
+            final long rateDelayed = mRateDelayed.sum();
+            final long submitted = mSubmitted.sum();
+            final long since = mLastSnapshotMs != 0 ? mLastSnapshotMs : createdMs;
+            final double perSecond = now > since ? (finished - mLastFinished) * 1000d / (now - since) : 0;
+            mLastFinished = finished;
+            mLastSnapshotMs = now;
+            return new ServiceMetricsEvent.QueueMetrics(name, submitted, finished,
+                    (int) (submitted - dequeued), (int) (dequeued - finished), mLimit,
+                    (int) (rateDelayed - rateReleased), perSecond);
+        }
+    }
+
+    public static class ActionStats {
+        private final LatencyHistogram mLatency = new LatencyHistogram();
+        private final StripedCounter mErrors = new StripedCounter();
+        private final StripedCounter mCacheLookups = new StripedCounter();
+        private final StripedCounter mCacheHits = new StripedCounter();
+
+        /**
+         * @param failed if processRequest threw or returned a result that is not isSuccess().
+         */
+        public void onProcessed(long nanos, boolean failed) {
+            mLatency.recordNanos(nanos);
+            if (failed) {
+                mErrors.increment();
+            }
+        }
+
+        void onCacheLookup(boolean hit) {
+            mCacheLookups.increment();
+            if (hit) {
+                mCacheHits.increment();
+            }
+        }
+
+        ServiceMetricsEvent.ActionMetrics snapshot(String name) {
+            final long errors = mErrors.sum();
+            final LatencyHistogram.Snapshot latency = mLatency.snapshot();
+            final long cacheHits = mCacheHits.sum();
+            final long cacheLookups = mCacheLookups.sum();
+            return new ServiceMetricsEvent.ActionMetrics(name, latency.getCount(), errors, cacheLookups, cacheHits,
+                    (long) latency.getMean(), latency.getPercentile(99));
+        }
+    }
+
+    private static class MeteredCache implements ActionCache {
+        private final ActionCache mCache;
+        private final ActionStats mStats;
+
+        MeteredCache(ActionCache cache, ActionStats stats) {
+            mCache = cache;
+            mStats = stats;
+        }
+
+        @Override
+        public ActionResult get(ActionRequest request) {
+            final ActionResult result = mCache.get(request);
+            mStats.onCacheLookup(result != null);
+            return result;
+        }
+
+        @Override
+        public void put(ActionRequest request, ActionResult result) {
+            mCache.put(request, result);
+        }
+    }
+}
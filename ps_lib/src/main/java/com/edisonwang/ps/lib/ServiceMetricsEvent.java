@@ -0,0 +1,236 @@
+package com.edisonwang.ps.lib;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Snapshot of the service's ServiceMetrics, posted sticky after EventManager.requestServiceMetrics().
+ *
+ * @author edi
+ */
+public class ServiceMetricsEvent implements Parcelable {
+
+    public static final Creator<ServiceMetricsEvent> CREATOR = new Creator<ServiceMetricsEvent>() {
+        @Override
+        public ServiceMetricsEvent createFromParcel(Parcel in) {
+            return new ServiceMetricsEvent(in);
+        }
+
+        @Override
+        public ServiceMetricsEvent[] newArray(int size) {
+            return new ServiceMetricsEvent[size];
+        }
+    };
+
+    public final long uptimeMs;
+    public final QueueMetrics[] queues;
+    public final ActionMetrics[] actions;
+
+    /**
+     * Cancel messages the service received.
+     */
+    public final long cancelRequests;
+
+    /**
+     * Tasks that were cancelled before a thread picked them up.
+     */
+    public final long cancelledBeforeStart;
+
+    /**
+     * Tasks dropped because their deadline passed before they started.
+     */
+    public final long expired;
+
+    /**
+     * Requests rejected by their rate limit, see RequestRejectedResult.
+     */
+    public final long rejected;
+
+    /**
+     * Requests shed by the AdmissionPolicy.
+     */
+    public final long shed;
+
+    /**
+     * Requests replaced by a newer one with the same supersession key, queued or running.
+     */
+    public final long superseded;
+
+    public ServiceMetricsEvent(long uptimeMs, QueueMetrics[] queues, ActionMetrics[] actions,
+                               long cancelRequests, long cancelledBeforeStart, long expired, long rejected,
+                               long shed, long superseded) {
+        this.uptimeMs = uptimeMs;
+        this.queues = queues;
+        this.actions = actions;
+        this.cancelRequests = cancelRequests;
+        this.cancelledBeforeStart = cancelledBeforeStart;
+        this.expired = expired;
+        this.rejected = rejected;
+        this.shed = shed;
+        this.superseded = superseded;
+    }
+
+    protected ServiceMetricsEvent(Parcel in) {
+        uptimeMs = in.readLong();
+        queues = new QueueMetrics[in.readInt()];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new QueueMetrics(in.readString(), in.readLong(), in.readLong(), in.readInt(), in.readInt(),
+                    in.readInt(), in.readInt(), in.readDouble());
+        }
+        actions = new ActionMetrics[in.readInt()];
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = new ActionMetrics(in.readString(), in.readLong(), in.readLong(), in.readLong(),
+                    in.readLong(), in.readLong(), in.readLong());
+        }
+        cancelRequests = in.readLong();
+        cancelledBeforeStart = in.readLong();
+        expired = in.readLong();
+        rejected = in.readLong();
+        shed = in.readLong();
+        superseded = in.readLong();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(uptimeMs);
+        dest.writeInt(queues.length);
+        for (QueueMetrics queue : queues) {
+            dest.writeString(queue.name);
+            dest.writeLong(queue.submitted);
+            dest.writeLong(queue.completed);
+            dest.writeInt(queue.depth);
+            dest.writeInt(queue.active);
+            dest.writeInt(queue.limit);
+            dest.writeInt(queue.rateDelayed);
+            dest.writeDouble(queue.completedPerSecond);
+        }
+        dest.writeInt(actions.length);
+        for (ActionMetrics action : actions) {
+            dest.writeString(action.name);
+            dest.writeLong(action.invocations);
+            dest.writeLong(action.errors);
+            dest.writeLong(action.cacheLookups);
+            dest.writeLong(action.cacheHits);
+            dest.writeLong(action.meanMicros);
+            dest.writeLong(action.p99Micros);
+        }
+        dest.writeLong(cancelRequests);
+        dest.writeLong(cancelledBeforeStart);
+        dest.writeLong(expired);
+        dest.writeLong(rejected);
+        dest.writeLong(shed);
+        dest.writeLong(superseded);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("uptime=").append(uptimeMs).append("ms cancelRequests=")
+                .append(cancelRequests).append(" cancelledBeforeStart=").append(cancelledBeforeStart)
+                .append(" expired=").append(expired).append(" rejected=").append(rejected)
+                .append(" shed=").append(shed)
+                .append(" superseded=").append(superseded);
+        for (QueueMetrics queue : queues) {
+            sb.append('\n').append(queue);
+        }
+        for (ActionMetrics action : actions) {
+            sb.append('\n').append(action);
+        }
+        return sb.toString();
+    }
+
+    public static class QueueMetrics {
+
+        /**
+         * Queue tag, or LatencyTracker.QUEUE_PARALLEL.
+         */
+        public final String name;
+        public final long submitted;
+        public final long completed;
+
+        /**
+         * Tasks waiting for a thread.
+         */
+        public final int depth;
+
+        /**
+         * Threads running a task of this queue.
+         */
+        public final int active;
+
+        /**
+         * Threads the queue may use right now, which changes if its limit is adaptive, 0 if unknown.
+         */
+        public final int limit;
+
+        /**
+         * Tasks waiting for a rate limit before they reach the executor, included in depth.
+         */
+        public final int rateDelayed;
+
+        /**
+         * Completions per second since the previous snapshot.
+         */
+        public final double completedPerSecond;
+
+        public QueueMetrics(String name, long submitted, long completed, int depth, int active, int limit,
+                            int rateDelayed, double completedPerSecond) {
+            this.name = name;
+            this.submitted = submitted;
+            this.completed = completed;
+            this.depth = depth;
+            this.active = active;
+            this.limit = limit;
+            this.rateDelayed = rateDelayed;
+            this.completedPerSecond = completedPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return "queue " + name + ": submitted=" + submitted + " completed=" + completed + " depth=" + depth
+                    + " active=" + active + " limit=" + limit + " rateDelayed=" + rateDelayed + " completed/s=" + (long) completedPerSecond;
+        }
+    }
+
+    public static class ActionMetrics {
+
+        /**
+         * Action class name.
+         */
+        public final String name;
+        public final long invocations;
+        public final long errors;
+        public final long cacheLookups;
+        public final long cacheHits;
+        public final long meanMicros;
+        public final long p99Micros;
+
+        public ActionMetrics(String name, long invocations, long errors, long cacheLookups, long cacheHits,
+                             long meanMicros, long p99Micros) {
+            this.name = name;
+            this.invocations = invocations;
+            this.errors = errors;
+            this.cacheLookups = cacheLookups;
+            this.cacheHits = cacheHits;
+            this.meanMicros = meanMicros;
+            this.p99Micros = p99Micros;
+        }
+
+        /**
+         * @return between 0 and 1, 0 if the action's cache was never looked up.
+         */
+        public double cacheHitRatio() {
+            return cacheLookups == 0 ? 0 : (double) cacheHits / cacheLookups;
+        }
+
+        @Override
+        public String toString() {
+            return "action " + name + ": invocations=" + invocations + " errors=" + errors + " cacheHitRatio="
+                    + cacheHitRatio() + " mean=" + meanMicros + "us p99=" + p99Micros + "us";
+        }
+    }
+}
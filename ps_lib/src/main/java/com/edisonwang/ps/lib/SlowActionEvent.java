@@ -0,0 +1,75 @@
+package com.edisonwang.ps.lib;
+
+import android.os.Parcel;
+
+/**
+ * Posted to the requester when the service's SlowActionWatchdog catches an action running past its threshold.
+ * The request keeps running unless it was interrupted.
+ *
+ * @author edi
+ */
+public class SlowActionEvent extends ActionResult {
+
+    public static final Creator<SlowActionEvent> CREATOR = new Creator<SlowActionEvent>() {
+        @Override
+        public SlowActionEvent createFromParcel(Parcel in) {
+            return new SlowActionEvent(in);
+        }
+
+        @Override
+        public SlowActionEvent[] newArray(int size) {
+            return new SlowActionEvent[size];
+        }
+    };
+
+    /**
+     * Class name of the slow action.
+     */
+    public final String actionType;
+    public final String requestId;
+    public final long runningMs;
+    public final String threadName;
+
+    /**
+     * The worker's stack when it was caught, truncated to SlowActionWatchdog.MAX_FRAMES frames.
+     */
+    public final String stackTrace;
+    public final boolean interrupted;
+
+    public SlowActionEvent(String actionType, String requestId, long runningMs, String threadName,
+                           String stackTrace, boolean interrupted) {
+        this.actionType = actionType;
+        this.requestId = requestId;
+        this.runningMs = runningMs;
+        this.threadName = threadName;
+        this.stackTrace = stackTrace;
+        this.interrupted = interrupted;
+    }
+
+    protected SlowActionEvent(Parcel in) {
+        super(in);
+        actionType = in.readString();
+        requestId = in.readString();
+        runningMs = in.readLong();
+        threadName = in.readString();
+        stackTrace = in.readString();
+        interrupted = in.readByte() != 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        super.writeToParcel(dest, flags);
+        dest.writeString(actionType);
+        dest.writeString(requestId);
+        dest.writeLong(runningMs);
+        dest.writeString(threadName);
+        dest.writeString(stackTrace);
+        dest.writeByte((byte) (interrupted ? 1 : 0));
+    }
+
+    @Override
+    public String toString() {
+        return actionType + " (" + requestId + ") running for " + runningMs + "ms on " + threadName
+                + (interrupted ? ", interrupted" : "") + ":\n" + stackTrace;
+    }
+}
@@ -0,0 +1,204 @@
+package com.edisonwang.ps.lib;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches running actions and reports the ones that run longer than their threshold.
+ *
+ * A report captures the worker's stack, at most MAX_FRAMES deep, and is delivered to the requester
+ * as a SlowActionEvent. Each task is reported once, and at most MAX_REPORTS_PER_MINUTE reports are
+ * made, the rest are only counted. The thread sleeps on a lock while nothing is running.
+ *
+ * @author edi
+ */
+public class SlowActionWatchdog implements Runnable {
+
+    /**
+     * Only report slow actions.
+     */
+    public static final int POLICY_REPORT = 0;
+
+    /**
+     * Report slow actions and interrupt their thread, actions that block interruptibly will then fail.
+     */
+    public static final int POLICY_INTERRUPT = 1;
+
+    static final int MAX_FRAMES = 48;
+    static final int MAX_REPORTS_PER_MINUTE = 6;
+
+    private static final String TAG = "SlowActionWatchdog";
+
+    private final HashMap<Object, Watched> mRunning = new HashMap<>();
+    private final int[] mLock = {};
+    private final long mCheckIntervalMs;
+    private final int mPolicy;
+    private final FlightRecorder mFlightRecorder;
+    //Guarded by mLock.
+    private final long[] mReportTimes = new long[MAX_REPORTS_PER_MINUTE];
+    private int mReportCursor;
+    private int mSuppressed;
+    private Thread mThread;
+
+    /**
+     * @param flightRecorder if set, reports are also recorded in it.
+     */
+    public SlowActionWatchdog(long checkIntervalMs, int policy, FlightRecorder flightRecorder) {
+        mCheckIntervalMs = checkIntervalMs;
+        mPolicy = policy;
+        mFlightRecorder = flightRecorder;
+    }
+
+    /**
+     * Starts watching a task on the calling thread until unwatch(task).
+     *
+     * @param thresholdMs 0 or less to not watch it.
+     */
+    public void watch(Object task, String actionType, String requestId, int serial, long thresholdMs,
+                      ResultDeliver deliver) {
+        if (thresholdMs <= 0) {
+            return;
+        }
+        final Watched watched = new Watched(Thread.currentThread(), actionType, requestId, serial,
+                System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(thresholdMs), deliver);
+        synchronized (mLock) {
+            mRunning.put(task, watched);
+            if (mThread == null) {
+                mThread = new Thread(this, TAG);
+                mThread.setDaemon(true);
+                mThread.start();
+            }
+            mLock.notify();
+        }
+    }
+
+    public void unwatch(Object task) {
+        final Watched watched;
+        synchronized (mLock) {
+            watched = mRunning.remove(task);
+            if (watched != null) {
+                watched.mUnwatched = true;
+            }
+        }
+        if (watched != null && watched.mInterrupted) {
+            //Do not leave the flag to whatever runs next on this thread.
+            Thread.interrupted();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                synchronized (mLock) {
+                    while (mRunning.isEmpty()) {
+                        mLock.wait();
+                    }
+                }
+                Thread.sleep(mCheckIntervalMs);
+                check();
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Watchdog stopped.");
+        }
+    }
+
+    private void check() {
+        final long now = System.nanoTime();
+        final ArrayList<Watched> overdue = new ArrayList<>();
+        synchronized (mLock) {
+            for (Watched watched : mRunning.values()) {
+                if (!watched.mReported && now >= watched.mDeadlineNanos) {
+                    watched.mReported = true;
+                    if (allowReport(now)) {
+                        overdue.add(watched);
+                    }
+                    if (mPolicy == POLICY_INTERRUPT) {
+                        watched.mInterrupted = true;
+                        watched.mThread.interrupt();
+                    }
+                }
+            }
+        }
+        for (Watched watched : overdue) {
+            //Outside of the lock, taking the stack suspends the thread, and watch() would wait for it.
+            final StackTraceElement[] stack = watched.mThread.getStackTrace();
+            synchronized (mLock) {
+                //Its thread may have moved on to another task while the stack was taken.
+                if (watched.mUnwatched) {
+                    continue;
+                }
+            }
+            report(watched, stack, now);
+        }
+    }
+
+    //Guarded by mLock.
+    private boolean allowReport(long now) {
+        final long oldest = mReportTimes[mReportCursor];
+        if (oldest != 0 && now - oldest < TimeUnit.MINUTES.toNanos(1)) {
+            mSuppressed++;
+            return false;
+        }
+        mReportTimes[mReportCursor] = now;
+        mReportCursor = (mReportCursor + 1) % mReportTimes.length;
+        return true;
+    }
+
+    private void report(Watched watched, StackTraceElement[] stack, long now) {
+        final int suppressed;
+        synchronized (mLock) {
+            suppressed = mSuppressed;
+            mSuppressed = 0;
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < stack.length && i < MAX_FRAMES; i++) {
+            sb.append("\tat ").append(stack[i]).append('\n');
+        }
+        if (stack.length > MAX_FRAMES) {
+            sb.append("\t... ").append(stack.length - MAX_FRAMES).append(" more\n");
+        }
+        final long runningMs = watched.runningMs(now);
+        Log.w(TAG, watched.mActionType + " (" + watched.mRequestId + ") has been running for " + runningMs
+                + "ms on " + watched.mThread.getName() + (watched.mInterrupted ? ", interrupted" : "")
+                + (suppressed > 0 ? ", " + suppressed + " reports suppressed before this one" : "") + ":\n" + sb);
+        if (mFlightRecorder != null) {
+            mFlightRecorder.record(FlightRecorder.SLOW, mFlightRecorder.nameId(watched.mActionType), watched.mSerial,
+                    runningMs);
+        }
+        watched.mDeliver.deliverResult(new SlowActionEvent(watched.mActionType, watched.mRequestId, runningMs,
+                watched.mThread.getName(), sb.toString(), watched.mInterrupted), false);
+    }
+
+    private static class Watched {
+        private final Thread mThread;
+        private final String mActionType;
+        private final String mRequestId;
+        private final int mSerial;
+        private final long mStartNanos;
+        private final long mDeadlineNanos;
+        private final ResultDeliver mDeliver;
+        //Guarded by mLock.
+        private boolean mReported;
+        private boolean mUnwatched;
+        private volatile boolean mInterrupted;
+
+        Watched(Thread thread, String actionType, String requestId, int serial, long startNanos,
+                long thresholdNanos, ResultDeliver deliver) {
+            mThread = thread;
+            mActionType = actionType;
+            mRequestId = requestId;
+            mSerial = serial;
+            mStartNanos = startNanos;
+            mDeadlineNanos = startNanos + thresholdNanos;
+            mDeliver = deliver;
+        }
+
+        long runningMs(long now) {
+            return TimeUnit.NANOSECONDS.toMillis(now - mStartNanos);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.edisonwang.ps.lib;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads concurrent updates over cells picked by thread id and sums them when read,
+ * so executor threads bumping the same counter do not fight over one cache line.
+ *
+ * @author edi
+ */
+public class StripedCounter {
+
+    //Longs between two cells, 64 bytes.
+    private static final int PADDING = 8;
+    private static final int MAX_CELLS = 64;
+
+    private final AtomicLongArray mCells;
+    private final int mMask;
+
+    public StripedCounter() {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        final int cells = Math.min(MAX_CELLS, Integer.highestOneBit(Math.max(cpus, 1)) << 1);
+        mMask = cells - 1;
+        mCells = new AtomicLongArray(cells * PADDING);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long value) {
+        mCells.addAndGet(cell(), value);
+    }
+
+    /**
+     * @return the total, not atomic with respect to updates made while summing.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i <= mMask; i++) {
+            sum += mCells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    private int cell() {
+        final long id = Thread.currentThread().getId();
+        final int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((hash >>> 16) & mMask) * PADDING;
+    }
+}
@@ -0,0 +1,156 @@
+package com.edisonwang.ps.lib;
+
+import java.util.ArrayList;
+
+/**
+ * Hashed timer wheel: timeouts are bucketed by tick, so adding and cancelling one is O(1)
+ * and advancing costs one bucket per elapsed tick, at most one turn of the wheel. Not thread safe.
+ *
+ * @author edi
+ */
+class TimerWheel {
+
+    static final class Timeout {
+        final Runnable task;
+        //The tick it expires at, it sits in that tick's bucket until then.
+        private long mTick;
+        private int mSlot = -1;
+        private Timeout mPrev;
+        private Timeout mNext;
+
+        Timeout(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private final long mTickMs;
+    private final long mStartMs;
+    private final Timeout[] mSlots;
+    private final int mMask;
+    //The next tick to expire.
+    private long mTick;
+    private int mSize;
+
+    /**
+     * @param slots rounded up to a power of 2.
+     */
+    TimerWheel(long tickMs, int slots, long nowMs) {
+        int size = 1;
+        while (size < slots) {
+            size <<= 1;
+        }
+        mTickMs = Math.max(1, tickMs);
+        mStartMs = nowMs;
+        mSlots = new Timeout[size];
+        mMask = size - 1;
+    }
+
+    long getTickMs() {
+        return mTickMs;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @return the timeout to cancel, its task is added to advance()'s list at or after deadlineMs.
+     */
+    Timeout schedule(Runnable task, long deadlineMs, long nowMs) {
+        if (mSize == 0) {
+            //Do not walk the ticks that passed while the wheel was idle.
+            mTick = Math.max(mTick, (nowMs - mStartMs) / mTickMs);
+        }
+        final Timeout timeout = new Timeout(task);
+        timeout.mTick = Math.max(mTick, (deadlineMs - mStartMs + mTickMs - 1) / mTickMs);
+        timeout.mSlot = (int) (timeout.mTick & mMask);
+        final Timeout head = mSlots[timeout.mSlot];
+        timeout.mNext = head;
+        if (head != null) {
+            head.mPrev = timeout;
+        }
+        mSlots[timeout.mSlot] = timeout;
+        mSize++;
+        return timeout;
+    }
+
+    /**
+     * @return false if the timeout already expired or was cancelled.
+     */
+    boolean cancel(Timeout timeout) {
+        if (timeout.mSlot < 0) {
+            return false;
+        }
+        unlink(timeout);
+        return true;
+    }
+
+    /**
+     * Expires every tick up to nowMs.
+     *
+     * @param expired receives the tasks of expired timeouts, in no particular order.
+     */
+    void advance(long nowMs, ArrayList<Runnable> expired) {
+        final long last = (nowMs - mStartMs) / mTickMs;
+        if (last < mTick) {
+            return;
+        }
+        //After a whole turn every bucket has been seen once.
+        final long end = Math.min(last, mTick + mSlots.length - 1);
+        for (long tick = mTick; tick <= end && mSize > 0; tick++) {
+            Timeout timeout = mSlots[(int) (tick & mMask)];
+            while (timeout != null) {
+                final Timeout next = timeout.mNext;
+                if (timeout.mTick <= last) {
+                    unlink(timeout);
+                    expired.add(timeout.task);
+                }
+                timeout = next;
+            }
+        }
+        mTick = last + 1;
+    }
+
+    /**
+     * @return milliseconds from nowMs until the earliest timeout expires, or -1 if there is none.
+     */
+    long msUntilNextExpiry(long nowMs) {
+        if (mSize == 0) {
+            return -1;
+        }
+        long next = Long.MAX_VALUE;
+        //Timeouts due within a turn sit in the first bucket of their tick, later ones need a full scan.
+        for (int i = 0; i < mSlots.length && next == Long.MAX_VALUE; i++) {
+            final long tick = mTick + i;
+            for (Timeout timeout = mSlots[(int) (tick & mMask)]; timeout != null; timeout = timeout.mNext) {
+                if (timeout.mTick <= tick) {
+                    next = timeout.mTick;
+                    break;
+                }
+            }
+        }
+        if (next == Long.MAX_VALUE) {
+            for (Timeout slot : mSlots) {
+                for (Timeout timeout = slot; timeout != null; timeout = timeout.mNext) {
+                    next = Math.min(next, timeout.mTick);
+                }
+            }
+        }
+        return Math.max(0, mStartMs + next * mTickMs - nowMs);
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.mPrev != null) {
+            timeout.mPrev.mNext = timeout.mNext;
+        } else {
+            mSlots[timeout.mSlot] = timeout.mNext;
+        }
+        if (timeout.mNext != null) {
+            timeout.mNext.mPrev = timeout.mPrev;
+        }
+        timeout.mPrev = null;
+        timeout.mNext = null;
+        timeout.mSlot = -1;
+        mSize--;
+    }
+}
@@ -0,0 +1,56 @@
+package com.edisonwang.ps.lib;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allows ratePerSecond permits on average and up to burst at once. Not thread safe.
+ *
+ * @author edi
+ */
+class TokenBucket {
+
+    private final double mPerNano;
+    private final double mBurst;
+    private double mTokens;
+    private long mLastNs;
+
+    TokenBucket(double ratePerSecond, double burst) {
+        mPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        mBurst = Math.max(1, burst);
+        mTokens = mBurst;
+        mLastNs = System.nanoTime();
+    }
+
+    private void refill(long now) {
+        mTokens = Math.min(mBurst, mTokens + (now - mLastNs) * mPerNano);
+        mLastNs = now;
+    }
+
+    boolean tryAcquire(long now) {
+        refill(now);
+        if (mTokens >= 1) {
+            mTokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes a permit even if none is available yet, later callers wait behind it.
+     *
+     * @return nanoseconds until the permit is due, 0 if it is available now.
+     */
+    long reserve(long now) {
+        refill(now);
+        mTokens -= 1;
+        return mTokens >= 0 ? 0 : (long) Math.ceil(-mTokens / mPerNano);
+    }
+
+    /**
+     * @return nanoseconds until a permit is available, 0 if one is.
+     */
+    long nanosUntilAvailable(long now) {
+        refill(now);
+        return mTokens >= 1 ? 0 : (long) Math.ceil((1 - mTokens) / mPerNano);
+    }
+}
@@ -0,0 +1,90 @@
+package com.edisonwang.ps.lib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edi
+ */
+public class ActionExecutorTest {
+
+    @Test
+    public void lanesOfASerialQueueRunOneAtATimeInLaneOrder() throws Exception {
+        final ActionExecutor executor = new ActionExecutor();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        }, 1, "serial", 0, RequestLane.BULK, false, 0);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        //Queued behind the running one, in the reverse of the order they should run in.
+        executor.execute(new Recording("bulk", order, running, maxRunning, done), 1, "serial", 0, RequestLane.BULK,
+                false, 0);
+        executor.execute(new Recording("default", order, running, maxRunning, done), 1, "serial", 0,
+                RequestLane.DEFAULT, false, 0);
+        executor.execute(new Recording("interactive", order, running, maxRunning, done), 1, "serial", 0,
+                RequestLane.INTERACTIVE, false, 0);
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("interactive", "default", "bulk"), order);
+        assertEquals(1, maxRunning.get());
+    }
+
+    private static class Recording implements Runnable {
+        private final String mName;
+        private final List<String> mOrder;
+        private final AtomicInteger mRunning;
+        private final AtomicInteger mMaxRunning;
+        private final CountDownLatch mDone;
+
+        Recording(String name, List<String> order, AtomicInteger running, AtomicInteger maxRunning,
+                  CountDownLatch done) {
+            mName = name;
+            mOrder = order;
+            mRunning = running;
+            mMaxRunning = maxRunning;
+            mDone = done;
+        }
+
+        @Override
+        public void run() {
+            final int running = mRunning.incrementAndGet();
+            synchronized (mMaxRunning) {
+                mMaxRunning.set(Math.max(mMaxRunning.get(), running));
+            }
+            mOrder.add(mName);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mRunning.decrementAndGet();
+            mDone.countDown();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.edisonwang.ps.lib;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edi
+ */
+public class AdaptiveLimitTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void limitStaysWithinMinAndMax() {
+        final AdaptiveLimit limit = new AdaptiveLimit(2, 4, 2f, 1);
+        assertEquals(2, limit.start(0));
+        assertEquals(4, limit.start(100));
+        for (int i = 0; i < 10; i++) {
+            limit.onSample(MS, true);
+        }
+        assertEquals(4, limit.getLimit());
+        for (int i = 0; i < 10; i++) {
+            limit.onSample(10 * MS, false);
+        }
+        assertEquals(2, limit.getLimit());
+    }
+
+    @Test
+    public void cutsByAQuarterWhenTheMeanGoesAboveTolerance() {
+        final AdaptiveLimit limit = new AdaptiveLimit(1, 32, 2f, 1);
+        limit.start(16);
+        //The first window only sets the baseline.
+        limit.onSample(MS, false);
+        assertEquals(16, limit.getLimit());
+        //Within tolerance of the baseline.
+        limit.onSample(2 * MS, false);
+        assertEquals(16, limit.getLimit());
+        limit.onSample(3 * MS, true);
+        assertEquals(12, limit.getLimit());
+        limit.onSample(3 * MS, true);
+        assertEquals(9, limit.getLimit());
+        limit.start(3);
+        //Never by less than one.
+        limit.onSample(3 * MS, false);
+        assertEquals(2, limit.getLimit());
+    }
+
+    @Test
+    public void growsByOneOnlyWhenTasksWereWaiting() {
+        final AdaptiveLimit limit = new AdaptiveLimit(1, 8, 2f, 3);
+        limit.start(2);
+        for (int i = 0; i < 3; i++) {
+            limit.onSample(MS, false);
+        }
+        assertEquals(2, limit.getLimit());
+        //One saturated sample is enough, but only at the end of its window.
+        limit.onSample(MS, true);
+        limit.onSample(MS, false);
+        assertEquals(2, limit.getLimit());
+        limit.onSample(MS, false);
+        assertEquals(3, limit.getLimit());
+        for (int i = 0; i < 3; i++) {
+            limit.onSample(MS, false);
+        }
+        assertEquals(3, limit.getLimit());
+    }
+
+    @Test
+    public void queuedTasksSurviveResizes() throws Exception {
+        final AtomicInteger finished = new AtomicInteger();
+        //Grows to 3 threads, shrinks to 1, then grows to 2 again.
+        final AdaptiveLimit limit = new AdaptiveLimit(1, 3, 2f, 1) {
+            @Override
+            synchronized int getLimit() {
+                final int count = finished.get();
+                return count < 10 ? 3 : count < 20 ? 1 : 2;
+            }
+        };
+        final ActionExecutor.LimitedExecutor executor = new ActionExecutor.LimitedExecutor(1, limit, null);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(40);
+        for (int i = 0; i < 40; i++) {
+            executor.execute(new PrioritizedRunnable(0, new Runnable() {
+                @Override
+                public void run() {
+                    final int now = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), now));
+                    }
+                    try {
+                        Thread.sleep(2);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    finished.incrementAndGet();
+                    done.countDown();
+                }
+            }));
+        }
+        assertTrue(done.getCount() + " tasks were lost", done.await(5, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() > 1);
+        assertTrue(maxRunning.get() <= 3);
+    }
+}
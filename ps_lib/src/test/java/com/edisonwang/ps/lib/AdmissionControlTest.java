@@ -0,0 +1,66 @@
+package com.edisonwang.ps.lib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author edi
+ */
+public class AdmissionControlTest {
+
+    @Test
+    public void onlyInteractiveRequestsAreTakenPastTheQueueDepth() {
+        final AdmissionControl admission = new AdmissionControl(policy(0, 2));
+        assertEquals(AdmissionControl.ADMIT, admission.admit("q", RequestLane.DEFAULT));
+        assertEquals(AdmissionControl.ADMIT, admission.admit("q", RequestLane.BULK));
+        assertEquals(AdmissionControl.SHED, admission.admit("q", RequestLane.DEFAULT));
+        assertEquals(AdmissionControl.SHED, admission.admit("q", RequestLane.BULK));
+        assertEquals(AdmissionControl.ADMIT_RESERVED, admission.admit("q", RequestLane.INTERACTIVE));
+        //Other queues are not overloaded.
+        assertEquals(AdmissionControl.ADMIT, admission.admit("other", RequestLane.DEFAULT));
+    }
+
+    @Test
+    public void startedAndDroppedRequestsFreeTheirPlace() {
+        final AdmissionControl admission = new AdmissionControl(policy(0, 1));
+        assertEquals(AdmissionControl.ADMIT, admission.admit("q", RequestLane.DEFAULT));
+        assertEquals(AdmissionControl.SHED, admission.admit("q", RequestLane.DEFAULT));
+        admission.onStarted("q");
+        assertEquals(AdmissionControl.ADMIT, admission.admit("q", RequestLane.DEFAULT));
+        admission.onDropped("q");
+        assertEquals(AdmissionControl.ADMIT, admission.admit("q", RequestLane.DEFAULT));
+    }
+
+    @Test
+    public void totalQueuedCountsEveryQueue() {
+        final AdmissionControl admission = new AdmissionControl(policy(3, 0));
+        assertEquals(AdmissionControl.ADMIT, admission.admit("a", RequestLane.DEFAULT));
+        assertEquals(AdmissionControl.ADMIT, admission.admit("b", RequestLane.DEFAULT));
+        assertEquals(AdmissionControl.ADMIT, admission.admit("c", RequestLane.DEFAULT));
+        assertEquals(AdmissionControl.SHED, admission.admit("d", RequestLane.DEFAULT));
+        //Counted too, so they also hold their place until started.
+        assertEquals(AdmissionControl.ADMIT_RESERVED, admission.admit("d", RequestLane.INTERACTIVE));
+        admission.onStarted("a");
+        assertEquals(AdmissionControl.SHED, admission.admit("d", RequestLane.DEFAULT));
+        admission.onStarted("b");
+        assertEquals(AdmissionControl.ADMIT, admission.admit("d", RequestLane.DEFAULT));
+    }
+
+    @Test
+    public void noLimitsAdmitEverything() {
+        final AdmissionControl admission = new AdmissionControl(policy(0, 0));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(AdmissionControl.ADMIT, admission.admit("q", RequestLane.BULK));
+        }
+    }
+
+    private static AdmissionPolicy policy(int maxQueued, int maxQueueDepth) {
+        final AdmissionPolicy policy = new AdmissionPolicy();
+        policy.maxQueued = maxQueued;
+        policy.maxQueueDepth = maxQueueDepth;
+        //The test JVM's heap is not under test.
+        policy.heapWatermark = 0;
+        return policy;
+    }
+}
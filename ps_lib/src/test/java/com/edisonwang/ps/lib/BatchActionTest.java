@@ -0,0 +1,209 @@
+package com.edisonwang.ps.lib;
+
+import android.app.Application;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+
+import com.edisonwang.ps.lib.load.ShadowInProcessMessenger;
+import com.edisonwang.ps.lib.load.SyntheticAction;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BatchActions against an EventService in the same JVM.
+ *
+ * @author edi
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23, shadows = ShadowInProcessMessenger.class)
+public class BatchActionTest {
+
+    private static final int MODE_THROW = 0;
+    private static final int MODE_WAIT_FOR_CANCEL = 1;
+
+    private static volatile int sMode;
+    private static volatile CountDownLatch sStarted;
+    private static volatile int sBatchSize;
+
+    //Completions by request id, null for the ones that came without a result.
+    private final HashMap<String, ActionResult> mCompleted = new HashMap<>();
+    //The service's handler only holds it weakly.
+    private EventService mService;
+    private EventServiceConnection mConnection;
+
+    @Before
+    public void setUp() {
+        final Application application = RuntimeEnvironment.application;
+        sStarted = new CountDownLatch(1);
+        sBatchSize = 0;
+        mService = Robolectric.setupService(EventService.class);
+        mConnection = new EventServiceConnection(application, new EventServiceImpl.EventServiceResponseHandler() {
+            @Override
+            public void handleServiceResponse(Bundle b) {
+                if (b.getBoolean(EventServiceImpl.EXTRA_SERVICE_COMPLETE_SIGNAL, true)) {
+                    synchronized (mCompleted) {
+                        mCompleted.put(b.getString(EventServiceConnection.EXTRA_REQUEST_ID),
+                                (ActionResult) b.getParcelable(EventServiceImpl.EXTRA_SERVICE_RESULT));
+                    }
+                }
+            }
+        }, new PennStation.PennStationOptions(EventService.class));
+        mConnection.onServiceConnected(new ComponentName(application, EventService.class),
+                mService.onBind(new Intent(application, EventService.class)));
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+    }
+
+    @Test
+    public void everyRequestCompletesWhenTheBatchThrows() throws Exception {
+        sMode = MODE_THROW;
+        final List<String> requestIds = send(3);
+        awaitCompleted(3);
+        assertEquals(3, sBatchSize);
+        for (String requestId : requestIds) {
+            assertTrue(mCompleted.containsKey(requestId));
+            assertNull(mCompleted.get(requestId));
+        }
+    }
+
+    @Test
+    public void cancellingOneRequestLeavesTheBatchRunning() throws Exception {
+        sMode = MODE_WAIT_FOR_CANCEL;
+        final List<String> requestIds = send(2);
+        assertTrue(sStarted.await(5, TimeUnit.SECONDS));
+        mConnection.cancel(requestIds.get(1));
+        awaitCompleted(2);
+        assertEquals(2, sBatchSize);
+        //Not cancelled, so it ran until its timeout.
+        assertEquals(0, ((SyntheticAction.SyntheticResult) mCompleted.get(requestIds.get(0))).value);
+        assertNull(mCompleted.get(requestIds.get(1)));
+    }
+
+    @Test
+    public void cancellingOneRequestReachesItWhileItsOwnTurnAlreadyPassed() throws Exception {
+        sMode = MODE_WAIT_FOR_CANCEL;
+        //With two threads the drained request's own turn comes up while the batch is still running.
+        final List<String> requestIds = send(2, 2);
+        assertTrue(sStarted.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        mConnection.cancel(requestIds.get(1));
+        awaitCompleted(2);
+        assertEquals(2, sBatchSize);
+        assertEquals(0, ((SyntheticAction.SyntheticResult) mCompleted.get(requestIds.get(0))).value);
+        assertNull(mCompleted.get(requestIds.get(1)));
+    }
+
+    @Test
+    public void cancellingEveryRequestCancelsTheBatch() throws Exception {
+        sMode = MODE_WAIT_FOR_CANCEL;
+        final List<String> requestIds = send(2);
+        assertTrue(sStarted.await(5, TimeUnit.SECONDS));
+        final long start = System.currentTimeMillis();
+        mConnection.cancel(requestIds.get(0));
+        mConnection.cancel(requestIds.get(1));
+        awaitCompleted(2);
+        assertTrue("The batch ran until its timeout", System.currentTimeMillis() - start < WaitingBatch.TIMEOUT_MS);
+    }
+
+    private List<String> send(int count) {
+        return send(count, 1);
+    }
+
+    private List<String> send(int count, int queueLimit) {
+        final ArrayList<String> requestIds = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final Bundle bundle = new Bundle();
+            bundle.putParcelable(EventServiceImpl.EXTRA_SERVICE_REQUEST, new WaitingBatch.Helper().buildRequest());
+            requestIds.add(mConnection.queueAndExecute(bundle, new LimitedQueueInfo(queueLimit, 0, "batch"), null));
+        }
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        return requestIds;
+    }
+
+    private void awaitCompleted(int count) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < end) {
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+            synchronized (mCompleted) {
+                if (mCompleted.size() >= count) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+        assertEquals(count, mCompleted.size());
+    }
+
+    /**
+     * Throws, or waits for its token to be cancelled, depending on sMode.
+     */
+    public static class WaitingBatch extends BatchAction {
+
+        static final long TIMEOUT_MS = 1000;
+
+        @Override
+        public long getMaxBatchDelayMs() {
+            return 200;
+        }
+
+        @Override
+        protected List<ActionResult> processBatch(Context context, List<ActionRequest> requests, RequestEnv env)
+                throws Throwable {
+            sBatchSize = requests.size();
+            sStarted.countDown();
+            if (sMode == MODE_THROW) {
+                throw new IllegalStateException("Batch failed.");
+            }
+            final CancellationToken token = ActionRequestEnv.cancellationToken(env);
+            final long end = System.currentTimeMillis() + TIMEOUT_MS;
+            while (!token.isCancelled() && System.currentTimeMillis() < end) {
+                Thread.sleep(5);
+            }
+            final ArrayList<ActionResult> results = new ArrayList<>();
+            for (int i = 0; i < requests.size(); i++) {
+                results.add(new SyntheticAction.SyntheticResult(token.isCancelled() ? 1 : 0));
+            }
+            return results;
+        }
+
+        @Override
+        protected ActionResult onError(Context context, ActionRequest request, RequestEnv env, Throwable e) {
+            throw new IllegalStateException("onError failed too.", e);
+        }
+
+        public enum Key implements ActionKey {
+            WAITING_BATCH;
+
+            @Override
+            public Action value() {
+                return new WaitingBatch();
+            }
+        }
+
+        public static class Helper extends ActionRequestHelper {
+
+            @Override
+            protected ActionKey getActionKey() {
+                return Key.WAITING_BATCH;
+            }
+        }
+    }
+}
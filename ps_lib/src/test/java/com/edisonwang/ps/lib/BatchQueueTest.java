@@ -0,0 +1,61 @@
+package com.edisonwang.ps.lib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edi
+ */
+public class BatchQueueTest {
+
+    @Test
+    public void drainsPendingTasksInArrivalOrderUpToTheMaxSize() {
+        final BatchQueue<String> queue = new BatchQueue<>();
+        for (String task : Arrays.asList("a", "b", "c", "d", "e")) {
+            queue.add(task);
+        }
+        //Picked up out of order, it still leads its batch.
+        assertEquals(Arrays.asList("c", "a", "b"), queue.drain("c", 3, 0));
+        assertNull("Already in a batch", queue.drain("a", 3, 0));
+        assertEquals(Arrays.asList("d", "e"), queue.drain("d", 3, 0));
+        assertNull(queue.drain("e", 3, 0));
+    }
+
+    @Test
+    public void waitsForMoreTasksUntilTheDelay() throws Exception {
+        final BatchQueue<String> queue = new BatchQueue<>();
+        queue.add("a");
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.add("b");
+            }
+        });
+        producer.start();
+        final long start = System.nanoTime();
+        final ArrayList<String> batch = queue.drain("a", 2, 5000);
+        producer.join();
+        //Returned as soon as it was full, not at the delay.
+        assertEquals(Arrays.asList("a", "b"), batch);
+        assertTrue((System.nanoTime() - start) / 1000000 < 4000);
+    }
+
+    @Test
+    public void returnsAPartialBatchOnceTheDelayPassed() {
+        final BatchQueue<String> queue = new BatchQueue<>();
+        queue.add("a");
+        assertEquals(Collections.singletonList("a"), queue.drain("a", 16, 20));
+    }
+}
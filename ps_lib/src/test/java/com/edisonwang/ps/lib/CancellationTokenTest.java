@@ -0,0 +1,65 @@
+package com.edisonwang.ps.lib;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edi
+ */
+public class CancellationTokenTest {
+
+    @After
+    public void tearDown() {
+        Thread.interrupted();
+    }
+
+    @Test
+    public void cancelInterruptsTheOptedInThread() {
+        final CancellationToken token = new CancellationToken();
+        token.interruptOnCancel(true);
+        token.cancel();
+        assertTrue(Thread.currentThread().isInterrupted());
+        token.finish();
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void detachedThreadIsNotInterrupted() {
+        final CancellationToken token = new CancellationToken();
+        token.interruptOnCancel(true);
+        //The request went async, this thread runs other tasks now.
+        token.detach();
+        token.cancel();
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void detachClearsAnInterruptMeantForTheRequest() {
+        final CancellationToken token = new CancellationToken();
+        token.interruptOnCancel(true);
+        token.cancel();
+        token.detach();
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void finishOnAnotherThreadKeepsThisThreadsInterrupt() throws Exception {
+        final CancellationToken token = new CancellationToken();
+        final Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                token.interruptOnCancel(true);
+                token.cancel();
+                token.detach();
+            }
+        });
+        other.start();
+        other.join();
+        Thread.currentThread().interrupt();
+        token.finish();
+        assertTrue("Not the request's interrupt", Thread.currentThread().isInterrupted());
+    }
+}
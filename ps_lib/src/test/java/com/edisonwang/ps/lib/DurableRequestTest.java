@@ -0,0 +1,318 @@
+package com.edisonwang.ps.lib;
+
+import android.app.ActivityManager;
+import android.app.Application;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Parcel;
+import android.os.Process;
+
+import com.edisonwang.ps.lib.load.LoadProfile;
+import com.edisonwang.ps.lib.load.ShadowInProcessMessenger;
+import com.edisonwang.ps.lib.load.SyntheticAction;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Durable requests against an EventService in the same JVM.
+ *
+ * @author edi
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23, shadows = ShadowInProcessMessenger.class)
+public class DurableRequestTest {
+
+    private static final String JOURNAL = "durable_request_test";
+
+    //The service's handler only holds it weakly, the test has to keep it alive like the framework would.
+    private final List<EventService> mServices = new ArrayList<>();
+
+    @Test
+    public void cancelledRequestIsAcked() throws Exception {
+        final EventManager manager = startService(JOURNAL);
+        final List<String> requested = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> completed = Collections.synchronizedList(new ArrayList<String>());
+        final Requester.RequestListener listener = new Requester.RequestListener() {
+            @Override
+            public void onRequested(Bundle bundle, String requestId) {
+                requested.add(requestId);
+            }
+
+            @Override
+            public void onCompleted(String requestId, ActionResult result) {
+                completed.add(requestId);
+            }
+
+            @Override
+            public void onCancelled(String requestId) {
+            }
+        };
+        final LoadProfile.Workload workload = LoadProfile.defaultProfile().workloads.get(0);
+        new Requester(new SyntheticAction.Helper(workload, 1).requires(new CancelRequirement()))
+                .durable().request(manager, new WeakReference<>(listener));
+        assertEquals(1, requested.size());
+
+        //Sent once the journal synced it, the completion then waits for the main looper.
+        final long end = System.currentTimeMillis() + 5000;
+        while (liveRequests().isEmpty() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, liveRequests().size());
+
+        while (!liveRequests().isEmpty() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        }
+        assertTrue("A request completed without a result stayed in the journal", liveRequests().isEmpty());
+        assertTrue("Only results reach the listener", completed.isEmpty());
+    }
+
+    @Test
+    public void journaledRequestsAreReplayedAfterRestart() throws Exception {
+        final Application application = RuntimeEnvironment.application;
+        final String journalName = "durable_request_restart_test";
+        final LoadProfile.Workload workload = LoadProfile.defaultProfile().workloads.get(0);
+        final RequestJournal previous = new RequestJournal(new File(application.getFilesDir(), journalName));
+        final CountDownLatch written = new CountDownLatch(3);
+        previous.open(application.getClassLoader(), new RequestJournal.Opener() {
+            @Override
+            public String stamp() {
+                return EventServiceConnection.journalStamp(application);
+            }
+
+            @Override
+            public void onLoaded(LinkedHashMap<String, Bundle> requests) {
+            }
+        });
+        for (int i = 0; i < 3; i++) {
+            final Bundle bundle = new Bundle();
+            bundle.putParcelable(EventServiceImpl.EXTRA_SERVICE_REQUEST,
+                    new SyntheticAction.Helper(workload, i).buildRequest());
+            bundle.putString(EventServiceConnection.EXTRA_REQUEST_ID, "previous-" + i);
+            previous.append("previous-" + i, bundle, new Runnable() {
+                @Override
+                public void run() {
+                    written.countDown();
+                }
+            });
+        }
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+
+        final PennStation.PennStationOptions options = new PennStation.PennStationOptions(EventService.class);
+        options.journalName = journalName;
+        final EventServiceConnection connection = new EventServiceConnection(application,
+                new EventServiceImpl.EventServiceResponseHandler() {
+                    @Override
+                    public void handleServiceResponse(Bundle b) {
+                    }
+                }, options);
+        final List<String> sent = new ArrayList<>();
+        connection.onServiceConnected(new ComponentName(application, EventService.class),
+                new Messenger(new Handler(Looper.getMainLooper()) {
+                    @Override
+                    public void handleMessage(Message msg) {
+                        sent.add(msg.getData().getString(EventServiceConnection.EXTRA_REQUEST_ID));
+                    }
+                }).getBinder());
+        final long end = System.currentTimeMillis() + 5000;
+        while (sent.size() < 3 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        }
+        assertEquals(Arrays.asList("previous-0", "previous-1", "previous-2"), sent);
+        assertTrue(connection.isPending("previous-0"));
+    }
+
+    @Test
+    public void serviceProcessDoesNotReplayTheJournalOfTheMainProcess() throws Exception {
+        final Application application = RuntimeEnvironment.application;
+        final String journalName = "durable_request_process_test";
+        final RequestJournal main = new RequestJournal(new File(application.getFilesDir(), journalName));
+        final CountDownLatch written = new CountDownLatch(1);
+        main.open(application.getClassLoader(), new RequestJournal.Opener() {
+            @Override
+            public String stamp() {
+                return EventServiceConnection.journalStamp(application);
+            }
+
+            @Override
+            public void onLoaded(LinkedHashMap<String, Bundle> requests) {
+            }
+        });
+        final Bundle bundle = new Bundle();
+        bundle.putParcelable(EventServiceImpl.EXTRA_SERVICE_REQUEST,
+                new SyntheticAction.Helper(LoadProfile.defaultProfile().workloads.get(0), 0).buildRequest());
+        bundle.putString(EventServiceConnection.EXTRA_REQUEST_ID, "main-0");
+        main.append("main-0", bundle, new Runnable() {
+            @Override
+            public void run() {
+                written.countDown();
+            }
+        });
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+
+        //PennStation.init() from Application.onCreate() of the service's own process.
+        Shadows.shadowOf((ActivityManager) application.getSystemService(Context.ACTIVITY_SERVICE)).setProcesses(
+                Collections.singletonList(new ActivityManager.RunningAppProcessInfo(
+                        application.getPackageName() + ":ps", Process.myPid(), null)));
+        assertEquals(journalName + "-ps", EventServiceConnection.processFileName(application, journalName));
+        final PennStation.PennStationOptions options = new PennStation.PennStationOptions(EventService.class);
+        options.journalName = journalName;
+        final EventServiceConnection connection = new EventServiceConnection(application,
+                new EventServiceImpl.EventServiceResponseHandler() {
+                    @Override
+                    public void handleServiceResponse(Bundle b) {
+                    }
+                }, options);
+        final List<String> sent = new ArrayList<>();
+        connection.onServiceConnected(new ComponentName(application, EventService.class),
+                new Messenger(new Handler(Looper.getMainLooper()) {
+                    @Override
+                    public void handleMessage(Message msg) {
+                        sent.add(msg.getData().getString(EventServiceConnection.EXTRA_REQUEST_ID));
+                    }
+                }).getBinder());
+        final long end = System.currentTimeMillis() + 300;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        }
+        assertTrue(sent.isEmpty());
+        assertEquals(Collections.singleton("main-0"), new RequestJournal(new File(application.getFilesDir(),
+                journalName)).load(EventServiceConnection.journalStamp(application), application.getClassLoader())
+                .keySet());
+    }
+
+    private static Map<String, Bundle> liveRequests() {
+        final Application application = RuntimeEnvironment.application;
+        return new RequestJournal(new File(application.getFilesDir(), JOURNAL))
+                .load(EventServiceConnection.journalStamp(application), application.getClassLoader());
+    }
+
+    @Test
+    public void duplicatesGetTheResultOfTheFirstRequest() throws Exception {
+        final EventManager manager = startService("durable_request_duplicate_test");
+        final List<ActionResult> results = Collections.synchronizedList(new ArrayList<ActionResult>());
+        final Requester.RequestListener listener = new Requester.RequestListener() {
+            @Override
+            public void onRequested(Bundle bundle, String requestId) {
+            }
+
+            @Override
+            public void onCompleted(String requestId, ActionResult result) {
+                results.add(result);
+            }
+
+            @Override
+            public void onCancelled(String requestId) {
+            }
+        };
+        final LoadProfile.Workload workload = LoadProfile.defaultProfile().workloads.get(0);
+        //Each run spins a different number of times, so equal values come from the same run.
+        workload.cpuMicros = 2000;
+        workload.sleepMs = 50;
+        workload.cache = false;
+        //Two arrive while the first runs, one after it completed.
+        for (int i = 0; i < 3; i++) {
+            new Requester(new SyntheticAction.Helper(workload, i)).durable("upload-1")
+                    .request(manager, new WeakReference<>(listener));
+        }
+        final long end = System.currentTimeMillis() + 5000;
+        while (results.size() < 3 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        }
+        new Requester(new SyntheticAction.Helper(workload, 3)).durable("upload-1")
+                .request(manager, new WeakReference<>(listener));
+        while (results.size() < 4 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        }
+        assertEquals(4, results.size());
+        final long value = ((SyntheticAction.SyntheticResult) results.get(0)).value;
+        for (ActionResult result : results) {
+            assertTrue(result.toString(), result instanceof SyntheticAction.SyntheticResult);
+            assertEquals(value, ((SyntheticAction.SyntheticResult) result).value);
+        }
+    }
+
+    private EventManager startService(String journalName) {
+        final Application application = RuntimeEnvironment.application;
+        final EventService service = Robolectric.setupService(EventService.class);
+        mServices.add(service);
+        ShadowApplication.getInstance().setComponentNameAndServiceForBindService(
+                new ComponentName(application, EventService.class),
+                service.onBind(new Intent(application, EventService.class)));
+        final PennStation.PennStationOptions options = new PennStation.PennStationOptions(EventService.class);
+        options.journalName = journalName;
+        final EventManager manager = new EventManager(application, options);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        return manager;
+    }
+
+    /**
+     * Cancels the request from inside the service, so its graph stops with no result.
+     */
+    public static class CancelRequirement implements Requirement {
+
+        public static final Creator<CancelRequirement> CREATOR = new Creator<CancelRequirement>() {
+            @Override
+            public CancelRequirement createFromParcel(Parcel in) {
+                return new CancelRequirement();
+            }
+
+            @Override
+            public CancelRequirement[] newArray(int size) {
+                return new CancelRequirement[size];
+            }
+        };
+
+        @Override
+        public Condition get() {
+            return new Condition() {
+                @Override
+                public boolean isSatisfied(RequestEnv env, ActionRequest request) {
+                    ((ActionRequestEnv) env).getCancellationToken().cancel();
+                    return true;
+                }
+            };
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+        }
+    }
+}
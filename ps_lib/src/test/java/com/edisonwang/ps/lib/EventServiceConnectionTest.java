@@ -0,0 +1,168 @@
+package com.edisonwang.ps.lib;
+
+import android.app.ActivityManager;
+import android.app.Application;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Process;
+
+import com.edisonwang.ps.lib.load.LoadProfile;
+import com.edisonwang.ps.lib.load.ShadowInProcessMessenger;
+import com.edisonwang.ps.lib.load.SyntheticAction;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * EventServiceConnection against a Messenger that records what the service would get.
+ *
+ * @author edi
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23, shadows = ShadowInProcessMessenger.class)
+public class EventServiceConnectionTest {
+
+    private final List<String> mSent = new ArrayList<>();
+    private final List<String> mCancelled = new ArrayList<>();
+    private final Requester.RequestListener mListener = new Requester.RequestListener() {
+        @Override
+        public void onRequested(Bundle bundle, String requestId) {
+        }
+
+        @Override
+        public void onCompleted(String requestId, ActionResult result) {
+        }
+
+        @Override
+        public void onCancelled(String requestId) {
+            mCancelled.add(requestId);
+        }
+    };
+    private Application mApplication;
+    private LoadProfile.Workload mWorkload;
+
+    @Before
+    public void setUp() {
+        mApplication = RuntimeEnvironment.application;
+        mWorkload = LoadProfile.defaultProfile().workloads.get(0);
+    }
+
+    @Test
+    public void requestsLostWithTheServiceAreCancelled() {
+        final EventServiceConnection connection = newConnection(new PennStation.PennStationOptions(EventService.class));
+        connect(connection);
+        final String first = send(connection, 0);
+        final String second = send(connection, 1);
+        assertEquals(Arrays.asList(first, second), mSent);
+
+        connection.onServiceDisconnected(new ComponentName(mApplication, EventService.class));
+        assertEquals(Arrays.asList(first, second), mCancelled);
+        assertFalse(connection.isPending(first));
+        assertFalse(connection.isPending(second));
+    }
+
+    @Test
+    public void requestsQueuedBeforeConnectingAreSentInOrder() throws Exception {
+        final PennStation.PennStationOptions options = new PennStation.PennStationOptions(EventService.class);
+        options.pendingMemoryLimit = 8;
+        final EventServiceConnection connection = newConnection(options);
+        final List<String> queued = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            queued.add(send(connection, i));
+        }
+        //Cancelled while spilled.
+        connection.cancel(queued.remove(50));
+        assertEquals(Collections.singletonList(mCancelled.get(0)), mCancelled);
+        assertTrue(mSent.isEmpty());
+
+        connect(connection);
+        //Replayed in batches posted one after another.
+        awaitSent(queued.size());
+        assertEquals(queued, mSent);
+        //Sent after the replay, it goes behind it.
+        final String last = send(connection, 100);
+        assertEquals(last, mSent.get(mSent.size() - 1));
+    }
+
+    @Test
+    public void anotherProcessLeavesTheSpilledRequestsAlone() throws Exception {
+        final PennStation.PennStationOptions options = new PennStation.PennStationOptions(EventService.class);
+        options.pendingMemoryLimit = 4;
+        final EventServiceConnection connection = newConnection(options);
+        final List<String> queued = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            queued.add(send(connection, i));
+        }
+        Thread.sleep(100);
+
+        //The service's process restarting while this one is unbound.
+        Shadows.shadowOf((ActivityManager) mApplication.getSystemService(Context.ACTIVITY_SERVICE)).setProcesses(
+                Collections.singletonList(new ActivityManager.RunningAppProcessInfo(
+                        mApplication.getPackageName() + ":ps", Process.myPid(), null)));
+        newConnection(options);
+
+        connect(connection);
+        awaitSent(queued.size());
+        assertEquals(queued, mSent);
+    }
+
+    private void awaitSent(int count) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 5000;
+        while (mSent.size() < count && System.currentTimeMillis() < end) {
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+            Thread.sleep(1);
+        }
+    }
+
+    private EventServiceConnection newConnection(PennStation.PennStationOptions options) {
+        return new EventServiceConnection(mApplication, new EventServiceImpl.EventServiceResponseHandler() {
+            @Override
+            public void handleServiceResponse(Bundle b) {
+            }
+        }, options);
+    }
+
+    private void connect(EventServiceConnection connection) {
+        connection.onServiceConnected(new ComponentName(mApplication, EventService.class),
+                new Messenger(new Handler(Looper.getMainLooper()) {
+                    @Override
+                    public void handleMessage(Message msg) {
+                        if (msg.what == EventServiceImpl.PERFORM_REQUEST) {
+                            mSent.add(msg.getData().getString(EventServiceConnection.EXTRA_REQUEST_ID));
+                        }
+                    }
+                }).getBinder());
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+    }
+
+    private String send(EventServiceConnection connection, int key) {
+        final Bundle bundle = new Bundle();
+        bundle.putParcelable(EventServiceImpl.EXTRA_SERVICE_REQUEST,
+                new SyntheticAction.Helper(mWorkload, key).buildRequest());
+        final String requestId = connection.queueAndExecute(bundle, null,
+                new WeakReference<Requester.RequestListener>(mListener));
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        return requestId;
+    }
+}
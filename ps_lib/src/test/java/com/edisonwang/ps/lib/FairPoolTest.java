@@ -0,0 +1,176 @@
+package com.edisonwang.ps.lib;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edi
+ */
+public class FairPoolTest {
+
+    private final HashMap<String, Integer> mWeights = new HashMap<>();
+    private final HashMap<String, Double> mRates = new HashMap<>();
+    private final FairPool.Policy mPolicy = new FairPool.Policy() {
+        @Override
+        public int getWeight(String queueTag) {
+            final Integer weight = mWeights.get(queueTag);
+            return weight != null ? weight : 1;
+        }
+
+        @Override
+        public double getRateLimit(String queueTag) {
+            final Double rate = mRates.get(queueTag);
+            return rate != null ? rate : 0;
+        }
+    };
+
+    @Test
+    public void tagsShareThreadTimeByWeight() throws Exception {
+        mWeights.put("light", 1);
+        mWeights.put("heavy", 3);
+        final FairPool pool = new FairPool(1, mPolicy);
+        final Tag light = new Tag();
+        final Tag heavy = new Tag();
+        final CountDownLatch warm = new CountDownLatch(100);
+        final CountDownLatch done = new CountDownLatch(400);
+        for (int i = 0; i < 800; i++) {
+            pool.execute(light.task(1, warm, done), 1, "light");
+            pool.execute(heavy.task(1, warm, done), 1, "heavy");
+        }
+        final double share = share(heavy, light, warm, done);
+        assertTrue("heavy got " + share, share > 0.68 && share < 0.82);
+    }
+
+    @Test
+    public void longerTasksAreChargedTheirRunTime() throws Exception {
+        final FairPool pool = new FairPool(1, mPolicy);
+        final Tag quick = new Tag();
+        final Tag slow = new Tag();
+        final CountDownLatch warm = new CountDownLatch(100);
+        final CountDownLatch done = new CountDownLatch(400);
+        for (int i = 0; i < 800; i++) {
+            pool.execute(quick.task(1, warm, done), 1, "quick");
+            pool.execute(slow.task(4, warm, done), 1, "slow");
+        }
+        assertTrue(warm.await(10, TimeUnit.SECONDS));
+        final int slowStarted = slow.mCount.get();
+        final int quickStarted = quick.mCount.get();
+        //Equal weights get equal time once the mean run times are learnt, so the slow tag starts fewer tasks.
+        final double share = share(slow, quick, warm, done);
+        assertTrue("slow got " + share, share > 0.35 && share < 0.65);
+        assertTrue(slow.mCount.get() + " of " + quick.mCount.get(),
+                (slow.mCount.get() - slowStarted) * 2 < quick.mCount.get() - quickStarted);
+    }
+
+    @Test
+    public void floodedTagDoesNotStarveAnother() throws Exception {
+        final FairPool pool = new FairPool(1, mPolicy);
+        final Tag flood = new Tag();
+        final Tag quiet = new Tag();
+        for (int i = 0; i < 1000; i++) {
+            pool.execute(flood.task(1, null, null), 1, "flood");
+        }
+        Thread.sleep(20);
+        final CountDownLatch done = new CountDownLatch(1);
+        final int before = flood.mCount.get();
+        pool.execute(quiet.task(1, null, done), 1, "quiet");
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue("ran after " + (flood.mCount.get() - before) + " flood tasks", flood.mCount.get() - before < 20);
+    }
+
+    @Test
+    public void queueNeverRunsMoreThanItsLimit() throws Exception {
+        final FairPool pool = new FairPool(4, mPolicy);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            pool.execute(new PrioritizedRunnable(0, new Runnable() {
+                @Override
+                public void run() {
+                    final int now = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), now));
+                    }
+                    spin(2);
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            }), 2, "limited");
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void rateCappedTagWaitsWithoutHoldingAThread() throws Exception {
+        mRates.put("capped", 2.0);
+        final FairPool pool = new FairPool(1, mPolicy);
+        final Tag capped = new Tag();
+        final Tag free = new Tag();
+        for (int i = 0; i < 6; i++) {
+            pool.execute(capped.task(1, null, null), 1, "capped");
+        }
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            pool.execute(free.task(1, null, done), 1, "free");
+        }
+        //The only thread keeps running the other tag while the capped one waits for its next permit.
+        assertTrue(done.await(400, TimeUnit.MILLISECONDS));
+        assertTrue(capped.mCount.get() + " capped tasks ran", capped.mCount.get() <= 3);
+    }
+
+    /**
+     * @return the first tag's share of the thread time between the two latches, while both are backlogged.
+     */
+    private static double share(Tag tag, Tag other, CountDownLatch warm, CountDownLatch done)
+            throws InterruptedException {
+        assertTrue(warm.await(10, TimeUnit.SECONDS));
+        final long tagNs = tag.mNs.get();
+        final long otherNs = other.mNs.get();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        final long ns = tag.mNs.get() - tagNs;
+        return (double) ns / (ns + other.mNs.get() - otherNs);
+    }
+
+    private static void spin(long ms) {
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms);
+        while (System.nanoTime() < end) {
+            //Busy, so run time does not depend on sleep granularity.
+        }
+    }
+
+    /**
+     * Counts the tasks and thread time of one tag.
+     */
+    private static class Tag {
+        private final AtomicInteger mCount = new AtomicInteger();
+        private final AtomicLong mNs = new AtomicLong();
+
+        PrioritizedRunnable task(final long ms, final CountDownLatch warm, final CountDownLatch done) {
+            return new PrioritizedRunnable(0, new Runnable() {
+                @Override
+                public void run() {
+                    final long start = System.nanoTime();
+                    spin(ms);
+                    mNs.addAndGet(System.nanoTime() - start);
+                    mCount.incrementAndGet();
+                    if (warm != null) {
+                        warm.countDown();
+                    }
+                    if (done != null) {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+    }
+}
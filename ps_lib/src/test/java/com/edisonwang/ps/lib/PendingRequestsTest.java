@@ -0,0 +1,121 @@
+package com.edisonwang.ps.lib;
+
+import android.os.Bundle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edi
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class PendingRequestsTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(RuntimeEnvironment.application.getCacheDir(), "pending-test");
+    }
+
+    @Test
+    public void spilledRequestsAreDrainedInOrder() throws Exception {
+        final PendingRequests pending = new PendingRequests(mFile, 4, getClass().getClassLoader());
+        add(pending, 0, 10);
+        assertEquals(10, pending.size());
+        //Some drained while the writer may still be writing, the rest once it is done.
+        final List<String> drained = drain(pending, 3);
+        Thread.sleep(50);
+        add(pending, 10, 20);
+        drained.addAll(drain(pending, Integer.MAX_VALUE));
+        assertEquals(ids(0, 20), drained);
+        assertTrue(pending.isEmpty());
+    }
+
+    @Test
+    public void cancelledSpilledRequestsAreSkipped() {
+        final PendingRequests pending = new PendingRequests(mFile, 2, getClass().getClassLoader());
+        add(pending, 0, 6);
+        assertTrue(pending.remove("4"));
+        assertFalse(pending.remove("4"));
+        assertTrue(pending.remove("1"));
+        assertFalse(pending.contains("4"));
+        assertEquals(Arrays.asList("0", "2", "3", "5"), drain(pending, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void requeuedRequestsGoFirst() {
+        final PendingRequests pending = new PendingRequests(mFile, 2, getClass().getClassLoader());
+        add(pending, 0, 4);
+        pending.requeue(new ArrayList<>(Arrays.asList("a", "b")),
+                new ArrayList<>(Arrays.asList(bundle("a"), bundle("b"))));
+        assertEquals(Arrays.asList("a", "b", "0", "1", "2", "3"), drain(pending, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void requestsStayInOrderWhenTheSegmentCannotBeWritten() {
+        final File unwritable = new File(new File(mFile, "missing"), "pending-test");
+        final PendingRequests pending = new PendingRequests(unwritable, 2, getClass().getClassLoader());
+        add(pending, 0, 8);
+        assertEquals(ids(0, 8), drain(pending, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void segmentStartsOverOnceEmptied() throws Exception {
+        final PendingRequests pending = new PendingRequests(mFile, 1, getClass().getClassLoader());
+        add(pending, 0, 5);
+        Thread.sleep(50);
+        pending.clear();
+        assertTrue(pending.isEmpty());
+        add(pending, 5, 9);
+        Thread.sleep(50);
+        assertEquals(ids(5, 9), drain(pending, Integer.MAX_VALUE));
+    }
+
+    private static void add(PendingRequests pending, int from, int to) {
+        for (int i = from; i < to; i++) {
+            pending.add(String.valueOf(i), bundle(String.valueOf(i)));
+        }
+    }
+
+    private static List<String> drain(PendingRequests pending, int max) {
+        final LinkedHashMap<String, Bundle> out = new LinkedHashMap<>();
+        pending.drainTo(out, max);
+        final ArrayList<String> ids = new ArrayList<>();
+        for (Map.Entry<String, Bundle> entry : out.entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue().getString("id"));
+            ids.add(entry.getKey());
+        }
+        return ids;
+    }
+
+    private static List<String> ids(int from, int to) {
+        final ArrayList<String> ids = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            ids.add(String.valueOf(i));
+        }
+        return ids;
+    }
+
+    private static Bundle bundle(String id) {
+        final Bundle bundle = new Bundle();
+        bundle.putString("id", id);
+        return bundle;
+    }
+}
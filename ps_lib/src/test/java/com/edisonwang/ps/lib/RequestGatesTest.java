@@ -0,0 +1,141 @@
+package com.edisonwang.ps.lib;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.edisonwang.ps.lib.load.LoadProfile;
+import com.edisonwang.ps.lib.load.SyntheticAction;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edi
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class RequestGatesTest {
+
+    private RecordingSender mSender;
+    private RequestGates mGates;
+    private ActionRequest mRequest;
+
+    @Before
+    public void setUp() {
+        mSender = new RecordingSender();
+        mGates = new RequestGates(mSender);
+        mRequest = new SyntheticAction.Helper(LoadProfile.defaultProfile().workloads.get(0), 0).buildRequest();
+    }
+
+    @Test
+    public void leadingDebounceDropsRequestsWithinTheWindow() {
+        final RecordingListener first = request(Requester.GATE_DEBOUNCE_LEADING, "a");
+        final RecordingListener second = request(Requester.GATE_DEBOUNCE_LEADING, "a");
+        //Another key is gated on its own.
+        request(Requester.GATE_DEBOUNCE_LEADING, "b");
+        assertEquals(2, mSender.mSent);
+        assertTrue(first.mCancelled.isEmpty());
+        //It was never sent, so it never got a request id.
+        assertEquals(Collections.singletonList((String) null), second.mCancelled);
+
+        SystemClock.sleep(100);
+        request(Requester.GATE_DEBOUNCE_LEADING, "a");
+        assertEquals(3, mSender.mSent);
+    }
+
+    @Test
+    public void trailingDebounceReplacesThePendingRequest() {
+        final RecordingListener first = request(Requester.GATE_DEBOUNCE_TRAILING, null);
+        SystemClock.sleep(50);
+        final RecordingListener second = request(Requester.GATE_DEBOUNCE_TRAILING, null);
+        assertEquals(0, mSender.mSent);
+        assertEquals(Arrays.asList(100L, 100L), mSender.mDelays);
+        assertEquals(Collections.singletonList(1L), mSender.mCancelledSchedules);
+        assertEquals(Collections.singletonList((String) null), first.mCancelled);
+        assertTrue(second.mCancelled.isEmpty());
+    }
+
+    @Test
+    public void throttleSendsAtMostOncePerWindow() {
+        request(Requester.GATE_THROTTLE, null);
+        assertEquals(1, mSender.mSent);
+        SystemClock.sleep(30);
+        final RecordingListener second = request(Requester.GATE_THROTTLE, null);
+        SystemClock.sleep(30);
+        request(Requester.GATE_THROTTLE, null);
+        assertEquals(1, mSender.mSent);
+        //Both due when the window ends, the later one replaces the first.
+        assertEquals(Arrays.asList(70L, 40L), mSender.mDelays);
+        assertEquals(Collections.singletonList((String) null), second.mCancelled);
+    }
+
+    @Test
+    public void scheduleThatAlreadyRanIsNotCancelled() {
+        mSender.mScheduleRan = true;
+        final RecordingListener first = request(Requester.GATE_DEBOUNCE_TRAILING, null);
+        request(Requester.GATE_DEBOUNCE_TRAILING, null);
+        assertTrue(first.mCancelled.isEmpty());
+    }
+
+    private RecordingListener request(int mode, String key) {
+        final RecordingListener listener = new RecordingListener();
+        mGates.request(mode, 100, key, mRequest, RequestOptions.DEFAULT,
+                new WeakReference<Requester.RequestListener>(listener));
+        return listener;
+    }
+
+    private static class RecordingSender implements RequestGates.Sender {
+        private final List<Long> mDelays = new ArrayList<>();
+        private final List<Long> mCancelledSchedules = new ArrayList<>();
+        private boolean mScheduleRan;
+        private int mSent;
+
+        @Override
+        public void send(ActionRequest request, RequestOptions options,
+                         WeakReference<Requester.RequestListener> listener) {
+            mSent++;
+        }
+
+        @Override
+        public long schedule(ActionRequest request, RequestOptions options,
+                             WeakReference<Requester.RequestListener> listener, long delayMs) {
+            mDelays.add(delayMs);
+            return mDelays.size();
+        }
+
+        @Override
+        public boolean cancelSchedule(long scheduleId) {
+            mCancelledSchedules.add(scheduleId);
+            return !mScheduleRan;
+        }
+    }
+
+    private static class RecordingListener implements Requester.RequestListener {
+        private final List<String> mCancelled = new ArrayList<>();
+
+        @Override
+        public void onRequested(Bundle bundle, String requestId) {
+        }
+
+        @Override
+        public void onCompleted(String reqId, ActionResult result) {
+        }
+
+        @Override
+        public void onCancelled(String requestId) {
+            mCancelled.add(requestId);
+        }
+    }
+}
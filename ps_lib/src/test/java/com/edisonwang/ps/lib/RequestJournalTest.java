@@ -0,0 +1,186 @@
+package com.edisonwang.ps.lib;
+
+import android.os.Bundle;
+
+import com.edisonwang.ps.lib.load.LoadProfile;
+import com.edisonwang.ps.lib.load.SyntheticAction;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edi
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class RequestJournalTest {
+
+    private static final String STAMP = "build-1";
+    private static final String SYNC = "sync-";
+
+    private File mFile;
+    private ClassLoader mLoader;
+    private int mSyncs;
+
+    @Before
+    public void setUp() {
+        mFile = new File(RuntimeEnvironment.application.getFilesDir(), "journal-test");
+        mFile.delete();
+        mLoader = getClass().getClassLoader();
+    }
+
+    @Test
+    public void unacknowledgedRequestsAreLoadedInOrder() throws Exception {
+        final RequestJournal journal = open(STAMP, null);
+        final List<String> durable = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch written = new CountDownLatch(4);
+        for (String requestId : Arrays.asList("a", "b", "c", "d")) {
+            append(journal, requestId, durable, written);
+        }
+        journal.ack("b");
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        //Every append was durable before its callback, in the order they were made.
+        assertEquals(Arrays.asList("a", "b", "c", "d"), durable);
+        sync(journal);
+
+        final LinkedHashMap<String, Bundle> loaded = load(STAMP);
+        assertEquals(Arrays.asList("a", "c", "d"), ids(loaded));
+        assertEquals("c", loaded.get("c").getString("id"));
+        assertTrue(loaded.get("c").getParcelable(EventServiceImpl.EXTRA_SERVICE_REQUEST) instanceof ActionRequest);
+        //Deadlines are on a clock that restarts with the device.
+        assertFalse(loaded.get("c").containsKey(EventServiceImpl.EXTRA_REQUEST_DEADLINE_NS));
+    }
+
+    @Test
+    public void openerGetsThePreviousRequestsBeforeAnythingIsWritten() throws Exception {
+        final RequestJournal previous = open(STAMP, null);
+        append(previous, "a", null, null);
+        append(previous, "b", null, null);
+        sync(previous);
+
+        final ArrayList<LinkedHashMap<String, Bundle>> loaded = new ArrayList<>();
+        final RequestJournal journal = open(STAMP, loaded);
+        append(journal, "c", null, null);
+        journal.ack("a");
+        sync(journal);
+        assertEquals(Arrays.asList("a", "b"), ids(loaded.get(0)));
+        assertEquals(Arrays.asList("b", "c"), ids(load(STAMP)));
+    }
+
+    @Test
+    public void journalOfAnotherBuildIsDropped() throws Exception {
+        final RequestJournal previous = open(STAMP, null);
+        append(previous, "a", null, null);
+        sync(previous);
+
+        assertTrue(load("build-2").isEmpty());
+        final ArrayList<LinkedHashMap<String, Bundle>> loaded = new ArrayList<>();
+        final RequestJournal journal = open("build-2", loaded);
+        append(journal, "b", null, null);
+        sync(journal);
+        assertTrue(loaded.get(0).isEmpty());
+        assertEquals(Collections.singletonList("b"), ids(load("build-2")));
+    }
+
+    @Test
+    public void mostlyAcknowledgedLogIsCompacted() throws Exception {
+        final RequestJournal journal = open(STAMP, null);
+        for (int i = 0; i < 100; i++) {
+            append(journal, "r" + i, null, null);
+        }
+        sync(journal);
+        final long full = mFile.length();
+        for (int i = 0; i < 96; i++) {
+            journal.ack("r" + i);
+        }
+        sync(journal);
+        //Once most of it is acknowledged the log is rewritten with the live requests only.
+        append(journal, "r100", null, null);
+        sync(journal);
+        assertTrue(mFile.length() + " of " + full, mFile.length() < full / 4);
+        assertEquals(Arrays.asList("r96", "r97", "r98", "r99", "r100"), ids(load(STAMP)));
+    }
+
+    private RequestJournal open(final String stamp, final List<LinkedHashMap<String, Bundle>> loaded) {
+        final RequestJournal journal = new RequestJournal(mFile);
+        journal.open(mLoader, new RequestJournal.Opener() {
+            @Override
+            public String stamp() {
+                return stamp;
+            }
+
+            @Override
+            public void onLoaded(LinkedHashMap<String, Bundle> requests) {
+                if (loaded != null) {
+                    loaded.add(requests);
+                }
+            }
+        });
+        return journal;
+    }
+
+    private LinkedHashMap<String, Bundle> load(String stamp) {
+        return new RequestJournal(mFile).load(stamp, mLoader);
+    }
+
+    private static void append(RequestJournal journal, final String requestId, final List<String> durable,
+                               final CountDownLatch written) {
+        final Bundle bundle = new Bundle();
+        bundle.putString("id", requestId);
+        bundle.putParcelable(EventServiceImpl.EXTRA_SERVICE_REQUEST,
+                new SyntheticAction.Helper(LoadProfile.defaultProfile().workloads.get(0), 0).buildRequest());
+        bundle.putLong(EventServiceImpl.EXTRA_REQUEST_DEADLINE_NS, System.nanoTime());
+        journal.append(requestId, bundle, new Runnable() {
+            @Override
+            public void run() {
+                if (durable != null) {
+                    durable.add(requestId);
+                }
+                if (written != null) {
+                    written.countDown();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until everything appended or acknowledged so far is on disk, behind a marker that ids() skips.
+     */
+    private void sync(RequestJournal journal) throws InterruptedException {
+        final CountDownLatch synced = new CountDownLatch(1);
+        journal.append(SYNC + mSyncs++, new Bundle(), new Runnable() {
+            @Override
+            public void run() {
+                synced.countDown();
+            }
+        });
+        assertTrue(synced.await(5, TimeUnit.SECONDS));
+    }
+
+    private static List<String> ids(LinkedHashMap<String, Bundle> requests) {
+        final ArrayList<String> ids = new ArrayList<>();
+        for (String requestId : requests.keySet()) {
+            if (!requestId.startsWith(SYNC)) {
+                ids.add(requestId);
+            }
+        }
+        return ids;
+    }
+}
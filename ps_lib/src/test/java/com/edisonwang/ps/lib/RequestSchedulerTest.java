@@ -0,0 +1,260 @@
+package com.edisonwang.ps.lib;
+
+import android.app.Application;
+import android.content.ComponentName;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.SystemClock;
+
+import com.edisonwang.ps.lib.load.LoadProfile;
+import com.edisonwang.ps.lib.load.ShadowInProcessMessenger;
+import com.edisonwang.ps.lib.load.SyntheticAction;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edi
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23, shadows = ShadowInProcessMessenger.class)
+public class RequestSchedulerTest {
+
+    private ManualHandler mHandler;
+    private RecordingSender mSender;
+    private RequestScheduler mScheduler;
+    private ActionRequest mRequest;
+    private long mStartMs;
+
+    @Before
+    public void setUp() {
+        mHandler = new ManualHandler();
+        mSender = new RecordingSender();
+        mScheduler = new RequestScheduler(mHandler, mSender);
+        mRequest = new SyntheticAction.Helper(LoadProfile.defaultProfile().workloads.get(0), 0).buildRequest();
+        mStartMs = SystemClock.uptimeMillis();
+    }
+
+    @Test
+    public void delayedRequestIsSentOnce() {
+        schedule(50, 0, Requester.SCHEDULE_FIXED_RATE);
+        runTicksUntil(49);
+        assertEquals(0, mSender.mSent);
+        runTicksUntil(60);
+        assertEquals(1, mSender.mSent);
+        runTicksUntil(10000);
+        assertEquals(1, mSender.mSent);
+    }
+
+    @Test
+    public void delayedRequestThroughEventManagerIsSentOnce() {
+        final Application application = RuntimeEnvironment.application;
+        final ArrayList<ActionRequest> sent = new ArrayList<>();
+        final Messenger service = new Messenger(new Handler(Looper.getMainLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == EventServiceImpl.PERFORM_REQUEST) {
+                    msg.getData().setClassLoader(ActionRequest.class.getClassLoader());
+                    sent.add((ActionRequest) msg.getData().getParcelable(EventServiceImpl.EXTRA_SERVICE_REQUEST));
+                }
+            }
+        });
+        ShadowApplication.getInstance().setComponentNameAndServiceForBindService(
+                new ComponentName(application, EventService.class), service.getBinder());
+        final EventManager manager = new EventManager(application,
+                new PennStation.PennStationOptions(EventService.class));
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        manager.requestAction(mRequest, null, 50, null);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        //It used to be sent right away, then again after the delay.
+        assertEquals(0, sent.size());
+
+        ShadowLooper.idleMainLooper(60, TimeUnit.MILLISECONDS);
+        runEventManagerLoopers();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(1, sent.size());
+        ShadowLooper.idleMainLooper(1000, TimeUnit.MILLISECONDS);
+        runEventManagerLoopers();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void cancelledScheduleIsNotSent() {
+        final long id = schedule(50, 100, Requester.SCHEDULE_FIXED_RATE);
+        runTicksUntil(160);
+        assertEquals(2, mSender.mSent);
+        assertTrue(mScheduler.cancel(id));
+        assertFalse(mScheduler.cancel(id));
+        runTicksUntil(1000);
+        assertEquals(2, mSender.mSent);
+    }
+
+    @Test
+    public void fixedRateCatchesUpMissedRuns() {
+        schedule(100, 100, Requester.SCHEDULE_FIXED_RATE);
+        //The main thread was busy, the tick runs 450ms late.
+        sleepUntil(mStartMs + 550);
+        runTicksUntil(551);
+        assertEquals(1, mSender.mSent);
+        //The missed runs follow one per tick, the one due at 600 is not pulled ahead.
+        runTicksUntil(650);
+        assertEquals(6, mSender.mSent);
+        runTicksUntil(700);
+        assertEquals(7, mSender.mSent);
+    }
+
+    @Test
+    public void coalescedFixedRateSkipsMissedRuns() {
+        schedule(100, 100, Requester.SCHEDULE_FIXED_RATE_COALESCED);
+        sleepUntil(mStartMs + 550);
+        runTicksUntil(560);
+        assertEquals(1, mSender.mSent);
+        //Keeps its phase.
+        assertEquals(mStartMs + 600, mHandler.mAtMs);
+        runTicksUntil(600);
+        assertEquals(2, mSender.mSent);
+        runTicksUntil(700);
+        assertEquals(3, mSender.mSent);
+    }
+
+    @Test
+    public void fixedDelayWaitsForCompletion() {
+        schedule(0, 100, Requester.SCHEDULE_FIXED_DELAY);
+        runTicksUntil(1000);
+        assertEquals(1, mSender.mSent);
+
+        mSender.lastListener().onCompleted("1", new SyntheticAction.SyntheticResult(0));
+        runTicksUntil(1099);
+        assertEquals(1, mSender.mSent);
+        runTicksUntil(1110);
+        assertEquals(2, mSender.mSent);
+    }
+
+    @Test
+    public void fixedDelayResumesAfterCompletionWithoutResult() {
+        schedule(0, 100, Requester.SCHEDULE_FIXED_DELAY);
+        runTicksUntil(10);
+        ((RequestScheduler.CompletionListener) mSender.lastListener()).onCompletedWithoutResult("1");
+        runTicksUntil(120);
+        assertEquals(2, mSender.mSent);
+    }
+
+    @Test
+    public void fixedDelayResumesAfterCancellation() {
+        schedule(0, 100, Requester.SCHEDULE_FIXED_DELAY);
+        runTicksUntil(10);
+        //Also how a run lost with the service process is reported.
+        mSender.lastListener().onCancelled("1");
+        runTicksUntil(120);
+        assertEquals(2, mSender.mSent);
+    }
+
+    @Test
+    public void fixedDelayIsNotRearmedTwice() {
+        schedule(0, 100, Requester.SCHEDULE_FIXED_DELAY);
+        runTicksUntil(10);
+        final Requester.RequestListener listener = mSender.lastListener();
+        listener.onCompleted("1", new SyntheticAction.SyntheticResult(0));
+        listener.onCancelled("1");
+        runTicksUntil(150);
+        assertEquals(2, mSender.mSent);
+    }
+
+    private long schedule(long delayMs, long periodMs, int mode) {
+        return mScheduler.schedule(mRequest, RequestOptions.DEFAULT, null, delayMs, periodMs, mode);
+    }
+
+    /**
+     * Runs what was posted to every EventManager's own thread, Robolectric does not loop them.
+     */
+    private static void runEventManagerLoopers() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("EventManager".equals(thread.getName())) {
+                Shadows.shadowOf(ShadowLooper.getLooperForThread(thread)).getScheduler().advanceToLastPostedRunnable();
+            }
+        }
+    }
+
+    /**
+     * Runs the ticks the scheduler posts, each when it is due, up to mStartMs + ms.
+     */
+    private void runTicksUntil(long ms) {
+        final long endMs = mStartMs + ms;
+        while (mHandler.mPosted != null && mHandler.mAtMs <= endMs) {
+            sleepUntil(mHandler.mAtMs);
+            mHandler.runPosted();
+        }
+        sleepUntil(endMs);
+    }
+
+    private static void sleepUntil(long uptimeMs) {
+        final long now = SystemClock.uptimeMillis();
+        if (uptimeMs > now) {
+            SystemClock.sleep(uptimeMs - now);
+        }
+    }
+
+    /**
+     * Keeps the tick the scheduler posted instead of queueing it, so the test decides when it runs.
+     */
+    private static class ManualHandler extends Handler {
+        private Runnable mPosted;
+        private long mAtMs;
+
+        ManualHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            //Replaces the tick the scheduler removed before posting this one.
+            mPosted = msg.getCallback();
+            mAtMs = uptimeMillis;
+            return true;
+        }
+
+        void runPosted() {
+            final Runnable posted = mPosted;
+            mPosted = null;
+            posted.run();
+        }
+    }
+
+    private static class RecordingSender implements RequestScheduler.Sender {
+        private final ArrayList<WeakReference<Requester.RequestListener>> mListeners = new ArrayList<>();
+        private int mSent;
+
+        @Override
+        public void send(ActionRequest request, RequestOptions options,
+                         WeakReference<Requester.RequestListener> listener) {
+            mSent++;
+            mListeners.add(listener);
+        }
+
+        Requester.RequestListener lastListener() {
+            final Requester.RequestListener listener = mListeners.get(mListeners.size() - 1).get();
+            listener.onRequested(new Bundle(), "1");
+            return listener;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.edisonwang.ps.lib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edi
+ */
+public class SerialLanesTest {
+
+    @Test
+    public void tasksOfAKeyRunOneAfterAnotherInArrivalOrder() {
+        final SerialLanes<String> lanes = new SerialLanes<>();
+        assertTrue(lanes.enter("k", "a"));
+        assertFalse(lanes.enter("k", "b"));
+        assertFalse(lanes.enter("k", "c"));
+        //Other keys are not held up.
+        assertTrue(lanes.enter("other", "x"));
+
+        assertEquals("b", lanes.exit("k"));
+        assertEquals("c", lanes.exit("k"));
+        assertNull(lanes.exit("k"));
+        assertNull(lanes.exit("other"));
+    }
+
+    @Test
+    public void idleLaneStartsOver() {
+        final SerialLanes<String> lanes = new SerialLanes<>();
+        assertTrue(lanes.enter("k", "a"));
+        assertNull(lanes.exit("k"));
+        assertTrue(lanes.enter("k", "b"));
+        assertNull(lanes.exit("unknown"));
+    }
+}
@@ -0,0 +1,207 @@
+package com.edisonwang.ps.lib;
+
+import android.app.Application;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+
+import com.edisonwang.ps.lib.load.ShadowInProcessMessenger;
+import com.edisonwang.ps.lib.load.SyntheticAction;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Requests with a supersession key against an EventService in the same JVM.
+ *
+ * @author edi
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23, shadows = ShadowInProcessMessenger.class)
+public class SupersessionTest {
+
+    private static volatile CountDownLatch sStarted;
+    private static volatile CountDownLatch sCancelled;
+
+    //Completions by request id, null for the ones that came without a result.
+    private final HashMap<String, ActionResult> mCompleted = new HashMap<>();
+    //The service's handler only holds it weakly.
+    private EventService mService;
+    private EventServiceConnection mConnection;
+
+    @Test
+    public void queuedRequestIsAnsweredAsSuperseded() throws Exception {
+        connect(EventService.class);
+        final String blocker = sendAndAwaitStart(null);
+        final String first = send("k", false);
+        final String second = send("k", false);
+        mConnection.cancel(blocker);
+        awaitCompleted(second);
+        awaitCompleted(first);
+        final ActionResult result = mCompleted.get(first);
+        assertTrue(String.valueOf(result), result instanceof RequestRejectedResult);
+        assertEquals(RequestRejectedResult.REASON_SUPERSEDED, ((RequestRejectedResult) result).reason);
+        assertTrue(mCompleted.get(second) instanceof SyntheticAction.SyntheticResult);
+    }
+
+    @Test
+    public void runningRequestHasItsTokenCancelled() throws Exception {
+        connect(EventService.class);
+        sendAndAwaitStart("k");
+        final long start = System.currentTimeMillis();
+        final String second = send("k", false);
+        assertTrue(sCancelled.await(5, TimeUnit.SECONDS));
+        assertTrue("It ran until its timeout", System.currentTimeMillis() - start < WaitingAction.TIMEOUT_MS);
+        awaitCompleted(second);
+        assertTrue(mCompleted.get(second) instanceof SyntheticAction.SyntheticResult);
+    }
+
+    @Test
+    public void supersededRequestGivesItsAdmissionSlotBack() throws Exception {
+        connect(OneDeepService.class);
+        final String blocker = sendAndAwaitStart(null);
+        final String first = send("k", false);
+        //The queue is full until the first one's slot is released.
+        final String second = send("k", false);
+        mConnection.cancel(blocker);
+        awaitCompleted(first);
+        awaitCompleted(second);
+        assertEquals(RequestRejectedResult.REASON_SUPERSEDED, ((RequestRejectedResult) mCompleted.get(first)).reason);
+        assertTrue(String.valueOf(mCompleted.get(second)),
+                mCompleted.get(second) instanceof SyntheticAction.SyntheticResult);
+    }
+
+    private void connect(Class<? extends EventService> serviceClass) {
+        final Application application = RuntimeEnvironment.application;
+        sStarted = new CountDownLatch(1);
+        sCancelled = new CountDownLatch(1);
+        mService = Robolectric.setupService(serviceClass);
+        mConnection = new EventServiceConnection(application, new EventServiceImpl.EventServiceResponseHandler() {
+            @Override
+            public void handleServiceResponse(Bundle b) {
+                if (b.getBoolean(EventServiceImpl.EXTRA_SERVICE_COMPLETE_SIGNAL, true)) {
+                    synchronized (mCompleted) {
+                        mCompleted.put(b.getString(EventServiceConnection.EXTRA_REQUEST_ID),
+                                (ActionResult) b.getParcelable(EventServiceImpl.EXTRA_SERVICE_RESULT));
+                    }
+                }
+            }
+        }, new PennStation.PennStationOptions(serviceClass));
+        mConnection.onServiceConnected(new ComponentName(application, serviceClass),
+                mService.onBind(new Intent(application, serviceClass)));
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+    }
+
+    /**
+     * Sends a request that holds the only thread of the queue until it is cancelled.
+     */
+    private String sendAndAwaitStart(String supersessionKey) throws InterruptedException {
+        final String requestId = send(supersessionKey, true);
+        assertTrue(sStarted.await(5, TimeUnit.SECONDS));
+        return requestId;
+    }
+
+    private String send(String supersessionKey, boolean wait) {
+        final Bundle bundle = new Bundle();
+        bundle.putParcelable(EventServiceImpl.EXTRA_SERVICE_REQUEST,
+                new WaitingAction.Helper(wait).supersessionKey(supersessionKey).buildRequest());
+        final String requestId = mConnection.queueAndExecute(bundle, new LimitedQueueInfo(1, 0, "supersession"), null);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        return requestId;
+    }
+
+    private void awaitCompleted(String requestId) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < end) {
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+            synchronized (mCompleted) {
+                if (mCompleted.containsKey(requestId)) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+        assertTrue(requestId + " did not complete", mCompleted.containsKey(requestId));
+    }
+
+    /**
+     * Sheds anything queued behind a single admitted request.
+     */
+    public static class OneDeepService extends EventService {
+
+        @Override
+        protected AdmissionPolicy getAdmissionPolicy() {
+            final AdmissionPolicy policy = new AdmissionPolicy();
+            policy.maxQueued = 0;
+            policy.maxQueueDepth = 1;
+            policy.heapWatermark = 0;
+            return policy;
+        }
+    }
+
+    /**
+     * Returns at once, or waits for its token to be cancelled if its request asks it to.
+     */
+    public static class WaitingAction extends FullAction {
+
+        static final long TIMEOUT_MS = 1000;
+
+        private static final String ARG_WAIT = "wait";
+
+        @Override
+        protected ActionResult process(Context context, ActionRequest request, RequestEnv env) throws Throwable {
+            if (!request.getArguments(this).getBoolean(ARG_WAIT)) {
+                return new SyntheticAction.SyntheticResult(0);
+            }
+            sStarted.countDown();
+            final CancellationToken token = ActionRequestEnv.cancellationToken(env);
+            final long end = System.currentTimeMillis() + TIMEOUT_MS;
+            while (!token.isCancelled() && System.currentTimeMillis() < end) {
+                Thread.sleep(5);
+            }
+            if (token.isCancelled()) {
+                sCancelled.countDown();
+            }
+            return new SyntheticAction.SyntheticResult(1);
+        }
+
+        @Override
+        protected ActionResult onError(Context context, ActionRequest request, RequestEnv env, Throwable e) {
+            return new SyntheticAction.SyntheticResult(-1);
+        }
+
+        public enum Key implements ActionKey {
+            WAITING;
+
+            @Override
+            public Action value() {
+                return new WaitingAction();
+            }
+        }
+
+        public static class Helper extends ActionRequestHelper {
+
+            public Helper(boolean wait) {
+                mVariableHolder.putExtra(ARG_WAIT, wait);
+            }
+
+            @Override
+            protected ActionKey getActionKey() {
+                return Key.WAITING;
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.edisonwang.ps.lib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edi
+ */
+public class TimerWheelTest {
+
+    private static final long START = 1000;
+
+    @Test
+    public void expiresAtOrAfterDeadline() {
+        final TimerWheel wheel = new TimerWheel(10, 512, START);
+        final Runnable task = new NamedTask("a");
+        wheel.schedule(task, START + 25, START);
+        final ArrayList<Runnable> expired = new ArrayList<>();
+        wheel.advance(START + 29, expired);
+        assertTrue(expired.isEmpty());
+        wheel.advance(START + 30, expired);
+        assertEquals(Collections.singletonList(task), expired);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void waitsRoundsPastTheNumberOfSlots() {
+        final TimerWheel wheel = new TimerWheel(10, 512, START);
+        //Same bucket as the first one, three turns later.
+        final Runnable soon = new NamedTask("soon");
+        final Runnable later = new NamedTask("later");
+        wheel.schedule(soon, START + 100, START);
+        wheel.schedule(later, START + 100 + 3 * 512 * 10, START);
+        final ArrayList<Runnable> expired = new ArrayList<>();
+        for (long now = START; now < START + 3 * 512 * 10 + 100; now += 10) {
+            wheel.advance(now, expired);
+        }
+        assertEquals(Collections.singletonList(soon), expired);
+        wheel.advance(START + 3 * 512 * 10 + 100, expired);
+        assertEquals(Arrays.asList(soon, later), expired);
+    }
+
+    @Test
+    public void advancesPastManyTurnsAtOnce() {
+        final TimerWheel wheel = new TimerWheel(10, 512, START);
+        final Runnable hour = new NamedTask("hour");
+        final Runnable twoHours = new NamedTask("twoHours");
+        wheel.schedule(hour, START + 3600 * 1000, START);
+        wheel.schedule(twoHours, START + 7200 * 1000, START);
+        final ArrayList<Runnable> expired = new ArrayList<>();
+        wheel.advance(START + 3600 * 1000, expired);
+        assertEquals(Collections.singletonList(hour), expired);
+        wheel.advance(START + 7200 * 1000 - 1, expired);
+        assertEquals(1, expired.size());
+        wheel.advance(START + 7200 * 1000, expired);
+        assertEquals(Arrays.asList(hour, twoHours), expired);
+    }
+
+    @Test
+    public void cancelledTimeoutsNeverExpire() {
+        final TimerWheel wheel = new TimerWheel(10, 16, START);
+        final Random random = new Random(7);
+        final HashSet<Runnable> live = new HashSet<>();
+        for (int i = 0; i < 2000; i++) {
+            final Runnable task = new NamedTask("t" + i);
+            final TimerWheel.Timeout timeout = wheel.schedule(task, START + random.nextInt(3000), START);
+            if (i % 5 == 0) {
+                assertTrue(wheel.cancel(timeout));
+                assertFalse("Cancelled twice", wheel.cancel(timeout));
+            } else {
+                live.add(task);
+            }
+        }
+        final ArrayList<Runnable> expired = new ArrayList<>();
+        for (long now = START; now <= START + 3000; now += 1 + random.nextInt(30)) {
+            wheel.advance(now, expired);
+        }
+        wheel.advance(START + 3000, expired);
+        assertEquals(live, new HashSet<>(expired));
+        assertEquals(live.size(), expired.size());
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void nextExpiryIsTheEarliestDeadline() {
+        final TimerWheel wheel = new TimerWheel(10, 512, START);
+        assertEquals(-1, wheel.msUntilNextExpiry(START));
+        //An hour away, the wheel should sleep until then instead of waking every tick.
+        final TimerWheel.Timeout hour = wheel.schedule(new NamedTask("hour"), START + 3600 * 1000, START);
+        assertEquals(3600 * 1000, wheel.msUntilNextExpiry(START));
+        wheel.schedule(new NamedTask("soon"), START + 95, START);
+        assertEquals(100, wheel.msUntilNextExpiry(START));
+        assertEquals(40, wheel.msUntilNextExpiry(START + 60));
+
+        final ArrayList<Runnable> expired = new ArrayList<>();
+        wheel.advance(START + 100, expired);
+        assertEquals(1, expired.size());
+        assertEquals(3600 * 1000 - 100, wheel.msUntilNextExpiry(START + 100));
+        wheel.cancel(hour);
+        assertEquals(-1, wheel.msUntilNextExpiry(START + 100));
+    }
+
+    @Test
+    public void idleTicksAreSkipped() {
+        final TimerWheel wheel = new TimerWheel(10, 512, START);
+        final Runnable task = new NamedTask("late");
+        final long now = START + 24 * 3600 * 1000;
+        wheel.schedule(task, now + 20, now);
+        assertEquals(20, wheel.msUntilNextExpiry(now));
+        final ArrayList<Runnable> expired = new ArrayList<>();
+        wheel.advance(now + 19, expired);
+        assertTrue(expired.isEmpty());
+        wheel.advance(now + 20, expired);
+        assertEquals(Collections.singletonList(task), expired);
+    }
+
+    private static class NamedTask implements Runnable {
+        private final String mName;
+
+        NamedTask(String name) {
+            mName = name;
+        }
+
+        @Override
+        public void run() {
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+}
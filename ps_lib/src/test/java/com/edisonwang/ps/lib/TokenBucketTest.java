@@ -0,0 +1,52 @@
+package com.edisonwang.ps.lib;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edi
+ */
+public class TokenBucketTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void burstIsAvailableAtOnceThenTheRate() {
+        final TokenBucket bucket = new TokenBucket(10, 3);
+        final long start = System.nanoTime();
+        assertTrue(bucket.tryAcquire(start));
+        assertTrue(bucket.tryAcquire(start));
+        assertTrue(bucket.tryAcquire(start));
+        assertFalse(bucket.tryAcquire(start));
+        //One permit every 100ms.
+        assertFalse(bucket.tryAcquire(start + 90 * MS));
+        assertTrue(bucket.tryAcquire(start + 100 * MS));
+        assertFalse(bucket.tryAcquire(start + 100 * MS));
+    }
+
+    @Test
+    public void idleTimeDoesNotGrowPastTheBurst() {
+        final TokenBucket bucket = new TokenBucket(10, 2);
+        final long start = System.nanoTime();
+        final long later = start + TimeUnit.SECONDS.toNanos(60);
+        assertTrue(bucket.tryAcquire(later));
+        assertTrue(bucket.tryAcquire(later));
+        assertFalse(bucket.tryAcquire(later));
+    }
+
+    @Test
+    public void reservationsQueueBehindEachOther() {
+        final TokenBucket bucket = new TokenBucket(10, 1);
+        final long start = System.nanoTime();
+        assertEquals(0, bucket.reserve(start));
+        assertEquals(100 * MS, bucket.reserve(start), MS);
+        assertEquals(200 * MS, bucket.reserve(start), MS);
+        assertEquals(300 * MS, bucket.nanosUntilAvailable(start), MS);
+        assertEquals(0, bucket.nanosUntilAvailable(start + 300 * MS));
+    }
+}
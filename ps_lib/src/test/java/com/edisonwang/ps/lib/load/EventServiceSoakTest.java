@@ -0,0 +1,99 @@
+package com.edisonwang.ps.lib.load;
+
+import android.app.Application;
+import android.content.ComponentName;
+import android.content.Intent;
+
+import com.edisonwang.ps.lib.EventManager;
+import com.edisonwang.ps.lib.EventService;
+import com.edisonwang.ps.lib.LatencyHistogram;
+import com.edisonwang.ps.lib.LatencyMetricsEvent;
+import com.edisonwang.ps.lib.PennStation;
+import com.edisonwang.ps.lib.RequestTrace;
+import com.edisonwang.ps.lib.ServiceMetricsEvent;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs a LoadProfile against an EventService in the same JVM and prints what it saw.
+ *
+ * Skipped unless -Dps.soak=true (./gradlew :ps_lib:testDebugUnitTest -PpsSoak).
+ * -Dps.soak.profile points at a properties profile, -Dps.soak.seconds and -Dps.soak.rate override
+ * its duration and arrival rate, -Dps.soak.report writes the samples as csv.
+ *
+ * @author edi
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23, shadows = ShadowInProcessMessenger.class)
+public class EventServiceSoakTest {
+
+    @Test
+    public void soak() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("ps.soak"));
+        final String profilePath = System.getProperty("ps.soak.profile");
+        final LoadProfile profile = profilePath != null ? LoadProfile.load(new File(profilePath))
+                : LoadProfile.defaultProfile();
+        if (System.getProperty("ps.soak.seconds") != null) {
+            profile.durationMs = Long.getLong("ps.soak.seconds") * 1000;
+        }
+        if (System.getProperty("ps.soak.rate") != null) {
+            profile.arrivalsPerSecond = Double.parseDouble(System.getProperty("ps.soak.rate"));
+        }
+
+        final EventManager manager = startService();
+        final LoadReport report = new LoadGenerator(manager, profile).run(new Runnable() {
+            @Override
+            public void run() {
+                //The service and the response handlers run on the main looper, which only this thread can drive.
+                ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+            }
+        });
+
+        System.out.println(report);
+        printStages(manager.getLatencyTracker().snapshot());
+        if (manager.requestServiceMetrics()) {
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+            System.out.println(manager.getStickyEvent(ServiceMetricsEvent.class));
+        }
+        final String reportPath = System.getProperty("ps.soak.report");
+        if (reportPath != null) {
+            report.writeCsv(new File(reportPath));
+        }
+        assertEquals("Requests neither completed nor cancelled", 0, report.lost());
+    }
+
+    private static EventManager startService() {
+        final Application application = RuntimeEnvironment.application;
+        final EventService service = Robolectric.setupService(EventService.class);
+        ShadowApplication.getInstance().setComponentNameAndServiceForBindService(
+                new ComponentName(application, EventService.class),
+                service.onBind(new Intent(application, EventService.class)));
+        final PennStation.PennStationOptions options = new PennStation.PennStationOptions(EventService.class);
+        options.traceLatency = true;
+        final EventManager manager = PennStation.init(application, options);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        return manager;
+    }
+
+    private static void printStages(LatencyMetricsEvent metrics) {
+        for (Map.Entry<String, LatencyHistogram.Snapshot[]> queue : metrics.byQueue.entrySet()) {
+            final LatencyHistogram.Snapshot[] stages = queue.getValue();
+            System.out.println(queue.getKey() + ": queued " + stages[RequestTrace.STAGE_QUEUED]
+                    + ", execute " + stages[RequestTrace.STAGE_EXECUTE]
+                    + ", total " + stages[RequestTrace.STAGE_TOTAL]);
+        }
+    }
+}
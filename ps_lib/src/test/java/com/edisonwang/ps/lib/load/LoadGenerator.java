@@ -0,0 +1,190 @@
+package com.edisonwang.ps.lib.load;
+
+import android.os.Bundle;
+
+import com.edisonwang.ps.lib.ActionRequestHelper;
+import com.edisonwang.ps.lib.ActionResult;
+import com.edisonwang.ps.lib.EventManager;
+import com.edisonwang.ps.lib.LatencyHistogram;
+import com.edisonwang.ps.lib.Requester;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.ref.WeakReference;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a LoadProfile against an EventManager.
+ *
+ * Arrivals are open loop: they are sent when they are due whether or not earlier requests have completed.
+ *
+ * @author edi
+ */
+public class LoadGenerator implements Requester.RequestListener {
+
+    private final EventManager mManager;
+    private final LoadProfile mProfile;
+    private final WeakReference<Requester.RequestListener> mListenerRef;
+    private final ConcurrentHashMap<String, Long> mDueNanos = new ConcurrentHashMap<>();
+    private final AtomicLong mIssued = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mCancelled = new AtomicLong();
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final AtomicReference<LatencyHistogram> mIntervalLatency = new AtomicReference<>(new LatencyHistogram());
+
+    //Only touched on the sending thread, onRequested is called before a request is sent.
+    private long mSendingDueNanos;
+    private String mLastRequestId;
+
+    public LoadGenerator(EventManager manager, LoadProfile profile) {
+        if (profile.workloads.isEmpty()) {
+            throw new IllegalArgumentException("The profile has no workloads.");
+        }
+        mManager = manager;
+        mProfile = profile;
+        mListenerRef = new WeakReference<Requester.RequestListener>(this);
+    }
+
+    /**
+     * Sends the arrivals and samples on the calling thread, the way an app sends from its main thread,
+     * until everything sent has completed or the profile's drain timeout passes.
+     *
+     * @param pump called on the calling thread about every millisecond, e.g. to run the main looper, can be null.
+     */
+    public LoadReport run(Runnable pump) {
+        final LoadReport report = new LoadReport();
+        final Random random = new Random(mProfile.seed);
+        final int totalWeight = mProfile.totalWeight();
+        final double meanGapNanos = TimeUnit.SECONDS.toNanos(1) / mProfile.arrivalsPerSecond;
+        final long intervalNanos = TimeUnit.MILLISECONDS.toNanos(mProfile.sampleIntervalMs);
+        final long start = System.nanoTime();
+        final long arrivalsEnd = start + TimeUnit.MILLISECONDS.toNanos(mProfile.durationMs);
+
+        double due = start + nextGap(random, meanGapNanos);
+        long nextSample = start + intervalNanos;
+        long lastSample = start;
+        long lastCompleted = 0;
+        long drainDeadline = 0;
+        while (true) {
+            long now = System.nanoTime();
+            while (due < arrivalsEnd && due <= now) {
+                send(pick(random, totalWeight), (long) due, random);
+                due += nextGap(random, meanGapNanos);
+            }
+            if (pump != null) {
+                pump.run();
+            }
+            now = System.nanoTime();
+            if (now >= nextSample) {
+                lastCompleted = sample(report, start, now, lastSample, lastCompleted);
+                lastSample = now;
+                nextSample += intervalNanos;
+            }
+            if (due >= arrivalsEnd) {
+                if (drainDeadline == 0) {
+                    drainDeadline = now + TimeUnit.MILLISECONDS.toNanos(mProfile.drainTimeoutMs);
+                }
+                if (mIssued.get() == mCompleted.get() + mCancelled.get() || now >= drainDeadline) {
+                    break;
+                }
+            }
+            final long wait = Math.min((long) due, now + TimeUnit.MILLISECONDS.toNanos(1)) - now;
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        final long end = System.nanoTime();
+        sample(report, start, end, lastSample, lastCompleted);
+        report.issued = mIssued.get();
+        report.completed = mCompleted.get();
+        report.cancelled = mCancelled.get();
+        report.elapsedMs = TimeUnit.NANOSECONDS.toMillis(end - start);
+        report.latency = mLatency.snapshot();
+        return report;
+    }
+
+    private long sample(LoadReport report, long start, long now, long lastSample, long lastCompleted) {
+        final long completed = mCompleted.get();
+        final double seconds = Math.max(1, now - lastSample) / (double) TimeUnit.SECONDS.toNanos(1);
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        report.samples.add(new LoadReport.Sample(TimeUnit.NANOSECONDS.toMillis(now - start), mIssued.get(), completed,
+                mCancelled.get(), (completed - lastCompleted) / seconds,
+                mIntervalLatency.getAndSet(new LatencyHistogram()).snapshot(),
+                ManagementFactory.getThreadMXBean().getThreadCount(), heap.getUsed() / 1024, heap.getCommitted() / 1024));
+        return completed;
+    }
+
+    /**
+     * @return the exponentially distributed gap between Poisson arrivals.
+     */
+    private static double nextGap(Random random, double meanGapNanos) {
+        return -Math.log(1 - random.nextDouble()) * meanGapNanos;
+    }
+
+    private void send(LoadProfile.Workload workload, long dueNanos, Random random) {
+        mSendingDueNanos = dueNanos;
+        new Requester(helper(workload, random))
+                .queue(workload.queueInfo)
+                .request(mManager, mListenerRef);
+        if (workload.cancelRatio > 0 && random.nextDouble() < workload.cancelRatio) {
+            mManager.cancel(mLastRequestId);
+        }
+    }
+
+    private LoadProfile.Workload pick(Random random, int totalWeight) {
+        int remaining = random.nextInt(totalWeight);
+        for (LoadProfile.Workload workload : mProfile.workloads) {
+            remaining -= workload.weight;
+            if (remaining < 0) {
+                return workload;
+            }
+        }
+        return mProfile.workloads.get(mProfile.workloads.size() - 1);
+    }
+
+    private static ActionRequestHelper helper(LoadProfile.Workload workload, Random random) {
+        final ActionRequestHelper helper = newHelper(workload, random);
+        for (int i = 0; i < workload.dependencies; i++) {
+            helper.dependsOn(newHelper(workload, random));
+        }
+        for (int i = 0; i < workload.chained; i++) {
+            helper.then(newHelper(workload, random));
+        }
+        return helper;
+    }
+
+    private static ActionRequestHelper newHelper(LoadProfile.Workload workload, Random random) {
+        final int key = workload.cache ? random.nextInt(Math.max(1, workload.distinctArgs)) : random.nextInt();
+        return new SyntheticAction.Helper(workload, key);
+    }
+
+    @Override
+    public void onRequested(Bundle bundle, String requestId) {
+        mLastRequestId = requestId;
+        mDueNanos.put(requestId, mSendingDueNanos);
+        mIssued.incrementAndGet();
+    }
+
+    @Override
+    public void onCompleted(String reqId, ActionResult result) {
+        final Long due = mDueNanos.remove(reqId);
+        if (due != null) {
+            final long latency = System.nanoTime() - due;
+            mLatency.recordNanos(latency);
+            mIntervalLatency.get().recordNanos(latency);
+            mCompleted.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onCancelled(String requestId) {
+        if (mDueNanos.remove(requestId) != null) {
+            mCancelled.incrementAndGet();
+        }
+    }
+}
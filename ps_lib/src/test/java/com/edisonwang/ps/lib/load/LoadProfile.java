@@ -0,0 +1,200 @@
+package com.edisonwang.ps.lib.load;
+
+import com.edisonwang.ps.lib.LimitedQueueInfo;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Properties;
+
+/**
+ * What the load generator sends: an open loop arrival rate and a weighted mix of workloads.
+ *
+ * Can be read from a properties file, for example:
+ * <pre>
+ * durationSeconds=60
+ * arrivalsPerSecond=200
+ * workloads=fetch,crunch
+ * workload.fetch.weight=3
+ * workload.fetch.queue=2,1,network
+ * workload.fetch.sleepMs=20
+ * workload.fetch.cancelRatio=0.1
+ * workload.crunch.queue=parallel
+ * workload.crunch.cpuMicros=2000
+ * workload.crunch.allocKb=64
+ * workload.crunch.dependencies=2
+ * </pre>
+ *
+ * @author edi
+ */
+public class LoadProfile {
+
+    public long durationMs = 10000;
+
+    /**
+     * Mean rate of the Poisson arrivals, which do not wait for earlier requests to complete.
+     */
+    public double arrivalsPerSecond = 100;
+
+    public long sampleIntervalMs = 1000;
+
+    /**
+     * How long to wait for outstanding requests once arrivals stop.
+     */
+    public long drainTimeoutMs = 30000;
+
+    public long seed = 42;
+
+    public final ArrayList<Workload> workloads = new ArrayList<>();
+
+    public static LoadProfile defaultProfile() {
+        final LoadProfile profile = new LoadProfile();
+
+        final Workload network = new Workload("network");
+        network.weight = 4;
+        network.queueInfo = new LimitedQueueInfo(4, 1, "network");
+        network.sleepMs = 30;
+        network.allocKb = 16;
+        network.cancelRatio = 0.1;
+        profile.workloads.add(network);
+
+        final Workload parse = new Workload("parse");
+        parse.weight = 3;
+        parse.queueInfo = new LimitedQueueInfo(2, 0, "parse");
+        parse.cpuMicros = 1500;
+        parse.allocKb = 64;
+        parse.chained = 1;
+        profile.workloads.add(parse);
+
+        final Workload cached = new Workload("cached");
+        cached.weight = 2;
+        cached.cpuMicros = 3000;
+        cached.cache = true;
+        cached.distinctArgs = 32;
+        profile.workloads.add(cached);
+
+        final Workload graph = new Workload("graph");
+        graph.weight = 1;
+        graph.queueInfo = new LimitedQueueInfo(1, 2, "graph");
+        graph.cpuMicros = 500;
+        graph.sleepMs = 5;
+        graph.dependencies = 2;
+        graph.chained = 2;
+        profile.workloads.add(graph);
+        return profile;
+    }
+
+    public static LoadProfile load(File file) throws IOException {
+        final Properties properties = new Properties();
+        final Reader reader = new FileReader(file);
+        try {
+            properties.load(reader);
+        } finally {
+            reader.close();
+        }
+        return fromProperties(properties);
+    }
+
+    public static LoadProfile fromProperties(Properties p) {
+        final LoadProfile profile = new LoadProfile();
+        profile.durationMs = (long) (Double.parseDouble(p.getProperty("durationSeconds", "10")) * 1000);
+        profile.arrivalsPerSecond = Double.parseDouble(p.getProperty("arrivalsPerSecond", "100"));
+        profile.sampleIntervalMs = Long.parseLong(p.getProperty("sampleIntervalMs", "1000"));
+        profile.drainTimeoutMs = Long.parseLong(p.getProperty("drainTimeoutMs", "30000"));
+        profile.seed = Long.parseLong(p.getProperty("seed", "42"));
+        final String names = p.getProperty("workloads");
+        if (names == null) {
+            throw new IllegalArgumentException("A profile needs a comma separated list of workloads.");
+        }
+        for (String name : names.split(",")) {
+            name = name.trim();
+            final String prefix = "workload." + name + ".";
+            final Workload workload = new Workload(name);
+            workload.weight = Integer.parseInt(p.getProperty(prefix + "weight", "1"));
+            workload.queueInfo = parseQueue(p.getProperty(prefix + "queue", "parallel"));
+            workload.cpuMicros = Long.parseLong(p.getProperty(prefix + "cpuMicros", "0"));
+            workload.sleepMs = Long.parseLong(p.getProperty(prefix + "sleepMs", "0"));
+            workload.allocKb = Integer.parseInt(p.getProperty(prefix + "allocKb", "0"));
+            workload.dependencies = Integer.parseInt(p.getProperty(prefix + "dependencies", "0"));
+            workload.chained = Integer.parseInt(p.getProperty(prefix + "chained", "0"));
+            workload.cancelRatio = Double.parseDouble(p.getProperty(prefix + "cancelRatio", "0"));
+            workload.cache = Boolean.parseBoolean(p.getProperty(prefix + "cache", "false"));
+            workload.distinctArgs = Integer.parseInt(p.getProperty(prefix + "distinctArgs", "1"));
+            profile.workloads.add(workload);
+        }
+        return profile;
+    }
+
+    /**
+     * @param queue "parallel" or limit,priority,tag.
+     */
+    private static LimitedQueueInfo parseQueue(String queue) {
+        if ("parallel".equals(queue.trim())) {
+            return null;
+        }
+        final String[] parts = queue.split(",");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Expected limit,priority,tag but got " + queue);
+        }
+        return new LimitedQueueInfo(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                parts[2].trim());
+    }
+
+    int totalWeight() {
+        int total = 0;
+        for (Workload workload : workloads) {
+            total += workload.weight;
+        }
+        return total;
+    }
+
+    public static class Workload {
+
+        public final String name;
+
+        /**
+         * Share of the arrivals, relative to the other workloads.
+         */
+        public int weight = 1;
+
+        /**
+         * The queue requests are sent to, null runs each on a new thread.
+         */
+        public LimitedQueueInfo queueInfo;
+
+        public long cpuMicros;
+        public long sleepMs;
+        public int allocKb;
+
+        /**
+         * Each request depends on this many requests of the same workload, run before it.
+         */
+        public int dependencies;
+
+        /**
+         * Each request is followed by this many requests of the same workload.
+         */
+        public int chained;
+
+        /**
+         * Share of the requests that are cancelled right after they are sent.
+         */
+        public double cancelRatio;
+
+        /**
+         * If true, requests may be answered from the action's cache.
+         */
+        public boolean cache;
+
+        /**
+         * Number of different arguments requests are sent with, which bounds the cache hit rate.
+         */
+        public int distinctArgs = 1;
+
+        public Workload(String name) {
+            this.name = name;
+        }
+    }
+}
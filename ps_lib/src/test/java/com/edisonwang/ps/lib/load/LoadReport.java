@@ -0,0 +1,107 @@
+package com.edisonwang.ps.lib.load;
+
+import com.edisonwang.ps.lib.LatencyHistogram;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Samples taken while a load ran, and totals for the whole run.
+ * Latencies are measured from when a request was due, so a generator that falls behind shows up in them.
+ *
+ * @author edi
+ */
+public class LoadReport {
+
+    public final ArrayList<Sample> samples = new ArrayList<>();
+    public long issued;
+    public long completed;
+    public long cancelled;
+    public long elapsedMs;
+    public LatencyHistogram.Snapshot latency;
+
+    /**
+     * @return requests that neither completed nor were cancelled.
+     */
+    public long lost() {
+        return issued - completed - cancelled;
+    }
+
+    public double throughputPerSecond() {
+        return elapsedMs == 0 ? 0 : completed * 1000d / elapsedMs;
+    }
+
+    public void writeCsv(File file) throws IOException {
+        final Writer writer = new FileWriter(file);
+        try {
+            writer.write("elapsed_ms,issued,completed,cancelled,outstanding,throughput_per_s,"
+                    + "p50_us,p90_us,p99_us,max_us,threads,heap_used_kb,heap_committed_kb\n");
+            for (Sample sample : samples) {
+                writer.write(sample.toCsv());
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%9s %8s %8s %8s %8s %10s %9s %9s %9s %6s %9s%n",
+                "elapsed", "issued", "done", "cancel", "pending", "req/s", "p50 ms", "p99 ms", "max ms", "thr", "heap MB"));
+        for (Sample sample : samples) {
+            sb.append(sample).append('\n');
+        }
+        sb.append(String.format(Locale.US, "%d issued, %d completed, %d cancelled, %d lost in %d ms, %.1f req/s, %s",
+                issued, completed, cancelled, lost(), elapsedMs, throughputPerSecond(), latency));
+        return sb.toString();
+    }
+
+    public static class Sample {
+        public final long elapsedMs;
+        public final long issued;
+        public final long completed;
+        public final long cancelled;
+        public final double throughputPerSecond;
+        public final LatencyHistogram.Snapshot latency;
+        public final int threads;
+        public final long heapUsedKb;
+        public final long heapCommittedKb;
+
+        public Sample(long elapsedMs, long issued, long completed, long cancelled, double throughputPerSecond,
+                      LatencyHistogram.Snapshot latency, int threads, long heapUsedKb, long heapCommittedKb) {
+            this.elapsedMs = elapsedMs;
+            this.issued = issued;
+            this.completed = completed;
+            this.cancelled = cancelled;
+            this.throughputPerSecond = throughputPerSecond;
+            this.latency = latency;
+            this.threads = threads;
+            this.heapUsedKb = heapUsedKb;
+            this.heapCommittedKb = heapCommittedKb;
+        }
+
+        public long outstanding() {
+            return issued - completed - cancelled;
+        }
+
+        String toCsv() {
+            return String.format(Locale.US, "%d,%d,%d,%d,%d,%.2f,%d,%d,%d,%d,%d,%d,%d", elapsedMs, issued, completed,
+                    cancelled, outstanding(), throughputPerSecond, latency.getPercentile(50), latency.getPercentile(90),
+                    latency.getPercentile(99), latency.getMax(), threads, heapUsedKb, heapCommittedKb);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%7d ms %8d %8d %8d %8d %10.1f %9.1f %9.1f %9.1f %6d %9.1f", elapsedMs,
+                    issued, completed, cancelled, outstanding(), throughputPerSecond,
+                    latency.getPercentile(50) / 1000d, latency.getPercentile(99) / 1000d, latency.getMax() / 1000d,
+                    threads, heapUsedKb / 1024d);
+        }
+    }
+}
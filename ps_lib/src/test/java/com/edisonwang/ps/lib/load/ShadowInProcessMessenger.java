@@ -0,0 +1,49 @@
+package com.edisonwang.ps.lib.load;
+
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+
+/**
+ * Robolectric's Messenger has no binder, this one hands its Handler to the Messenger built from its binder,
+ * the way a bound service in the same process works.
+ *
+ * @author edi
+ */
+@Implements(Messenger.class)
+public class ShadowInProcessMessenger {
+
+    private Handler mHandler;
+
+    public void __constructor__(Handler target) {
+        mHandler = target;
+    }
+
+    public void __constructor__(IBinder target) {
+        mHandler = ((HandlerBinder) target).mHandler;
+    }
+
+    @Implementation
+    public void send(Message message) {
+        message.setTarget(mHandler);
+        message.sendToTarget();
+    }
+
+    @Implementation
+    public IBinder getBinder() {
+        return new HandlerBinder(mHandler);
+    }
+
+    private static class HandlerBinder extends Binder {
+        private final Handler mHandler;
+
+        HandlerBinder(Handler handler) {
+            mHandler = handler;
+        }
+    }
+}
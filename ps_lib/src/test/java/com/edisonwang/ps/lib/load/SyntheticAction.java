@@ -0,0 +1,129 @@
+package com.edisonwang.ps.lib.load;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Parcel;
+
+import com.edisonwang.ps.lib.Action;
+import com.edisonwang.ps.lib.ActionKey;
+import com.edisonwang.ps.lib.ActionRequest;
+import com.edisonwang.ps.lib.ActionRequestHelper;
+import com.edisonwang.ps.lib.ActionResult;
+import com.edisonwang.ps.lib.FullAction;
+import com.edisonwang.ps.lib.RequestEnv;
+
+/**
+ * Burns CPU, sleeps and allocates as much as its request asks for.
+ *
+ * @author edi
+ */
+public class SyntheticAction extends FullAction {
+
+    public static final int CACHE_SIZE = 128;
+
+    private static final String ARG_CPU_MICROS = "cpuMicros";
+    private static final String ARG_SLEEP_MS = "sleepMs";
+    private static final String ARG_ALLOC_KB = "allocKb";
+    private static final String ARG_KEY = "key";
+
+    @Override
+    protected ActionResult process(Context context, ActionRequest request, RequestEnv env) throws Throwable {
+        final Bundle args = request.getArguments(this);
+        final long cpuNanos = args.getLong(ARG_CPU_MICROS) * 1000;
+        long spin = 0;
+        if (cpuNanos > 0) {
+            final long start = System.nanoTime();
+            while (System.nanoTime() - start < cpuNanos) {
+                spin = spin * 31 + 17;
+            }
+        }
+        final int allocKb = args.getInt(ARG_ALLOC_KB);
+        for (int i = 0; i < allocKb; i++) {
+            final byte[] garbage = new byte[1024];
+            garbage[i % 1024] = (byte) spin;
+            spin += garbage[0];
+        }
+        final long sleepMs = args.getLong(ARG_SLEEP_MS);
+        if (sleepMs > 0) {
+            Thread.sleep(sleepMs);
+        }
+        return new SyntheticResult(spin);
+    }
+
+    @Override
+    protected ActionResult onError(Context context, ActionRequest request, RequestEnv env, Throwable e) {
+        return new SyntheticResult(-1);
+    }
+
+    @Override
+    protected CachePolicy getCachePolicy() {
+        return new CachePolicy(true, CACHE_SIZE);
+    }
+
+    public enum Key implements ActionKey {
+        SYNTHETIC;
+
+        @Override
+        public Action value() {
+            return ValueHolder.VALUE;
+        }
+    }
+
+    private static class ValueHolder {
+        static final SyntheticAction VALUE = new SyntheticAction();
+    }
+
+    public static class Helper extends ActionRequestHelper {
+
+        /**
+         * @param key only requests with the same key can be answered from the action's cache.
+         */
+        public Helper(LoadProfile.Workload workload, int key) {
+            mVariableHolder.putExtra(ARG_CPU_MICROS, workload.cpuMicros);
+            mVariableHolder.putExtra(ARG_SLEEP_MS, workload.sleepMs);
+            mVariableHolder.putExtra(ARG_ALLOC_KB, workload.allocKb);
+            mVariableHolder.putExtra(ARG_KEY, key);
+            actionCacheAllowed(workload.cache);
+        }
+
+        @Override
+        protected ActionKey getActionKey() {
+            return Key.SYNTHETIC;
+        }
+    }
+
+    public static class SyntheticResult extends ActionResult {
+
+        public static final Creator<SyntheticResult> CREATOR = new Creator<SyntheticResult>() {
+            @Override
+            public SyntheticResult createFromParcel(Parcel in) {
+                return new SyntheticResult(in);
+            }
+
+            @Override
+            public SyntheticResult[] newArray(int size) {
+                return new SyntheticResult[size];
+            }
+        };
+
+        public final long value;
+
+        public SyntheticResult(long value) {
+            this.value = value;
+        }
+
+        protected SyntheticResult(Parcel in) {
+            value = in.readLong();
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeLong(value);
+        }
+    }
+}
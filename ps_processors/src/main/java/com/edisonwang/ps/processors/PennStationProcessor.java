@@ -28,11 +28,13 @@ import java.io.Writer;
 import java.lang.annotation.IncompleteAnnotationException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.Filer;
@@ -60,6 +62,19 @@ import javax.tools.Diagnostic;
 @AutoService(Processor.class)
 public class PennStationProcessor extends AbstractProcessor {
 
+    /**
+     * Pass -Apennstation.actionRegistry=false in library modules, only the app should generate the registry.
+     */
+    public static final String OPTION_ACTION_REGISTRY = "pennstation.actionRegistry";
+
+    /**
+     * Pass -Apennstation.verbose=true to print what is generated as compiler notes.
+     */
+    public static final String OPTION_VERBOSE = "pennstation.verbose";
+
+    private static final String FULL_ACTION_CLASS = "com.edisonwang.ps.lib.FullAction";
+    private static final String ACTION_REGISTRY_PACKAGE = "com.edisonwang.ps.generated";
+    private static final String ACTION_REGISTRY_CLASS = "PsActionRegistry";
     private static final Set<String> NAMES;
 
     static {
@@ -78,6 +93,8 @@ public class PennStationProcessor extends AbstractProcessor {
     private Elements elementUtils;
     private Class<?> rxFactoryClass;
     private Types typeUtils;
+    private boolean mVerbose;
+    private boolean mActionRegistryWritten;
 
     @Override
     public synchronized void init(ProcessingEnvironment processingEnv) {
@@ -86,6 +103,7 @@ public class PennStationProcessor extends AbstractProcessor {
         elementUtils = processingEnv.getElementUtils();
         typeUtils = processingEnv.getTypeUtils();
         messager = processingEnv.getMessager();
+        mVerbose = "true".equals(processingEnv.getOptions().get(OPTION_VERBOSE));
     }
 
     @Override
@@ -93,6 +111,14 @@ public class PennStationProcessor extends AbstractProcessor {
         return NAMES;
     }
 
+    @Override
+    public Set<String> getSupportedOptions() {
+        HashSet<String> options = new HashSet<>();
+        options.add(OPTION_ACTION_REGISTRY);
+        options.add(OPTION_VERBOSE);
+        return options;
+    }
+
     @Override
     public SourceVersion getSupportedSourceVersion() {
         return SourceVersion.latestSupported();
@@ -103,14 +129,14 @@ public class PennStationProcessor extends AbstractProcessor {
         if (annotations.isEmpty()) {
             return false;
         }
-        System.out.println("Processing aggregations:");
-        System.out.println(annotations + " \n");
+        note("Processing " + annotations);
         boolean r = processEventProducersAndListeners(roundEnv);
         boolean r2 = processRequestFactory(roundEnv);
         return r && r2;
     }
 
     private boolean processRequestFactory(RoundEnvironment roundEnv) {
+        ArrayList<TypeElement> actions = new ArrayList<>();
         // Iterate over all @Factory annotated elements
         for (Element element : roundEnv.getElementsAnnotatedWith(Action.class)) {
             // Check if a class has been annotated with @Factory
@@ -118,7 +144,23 @@ public class PennStationProcessor extends AbstractProcessor {
                 error(element, "You cannot annotate " + element.getSimpleName() + " with " + Action.class);
                 return true;
             }
-            TypeElement classElement = (TypeElement) element;
+            actions.add((TypeElement) element);
+        }
+
+        //Ids are handed out in name order, so every process built from the same sources agrees on them.
+        Collections.sort(actions, new Comparator<TypeElement>() {
+            @Override
+            public int compare(TypeElement lhs, TypeElement rhs) {
+                return lhs.getQualifiedName().toString().compareTo(rhs.getQualifiedName().toString());
+            }
+        });
+
+        final boolean registerActions = !mActionRegistryWritten
+                && !"false".equals(processingEnv.getOptions().get(OPTION_ACTION_REGISTRY));
+        ArrayList<String> registeredKeys = new ArrayList<>();
+        ArrayList<Element> registeredElements = new ArrayList<>();
+
+        for (TypeElement classElement : actions) {
             Action annotationElement = classElement.getAnnotation(Action.class);
 
             //Groups of Objects, named.
@@ -174,18 +216,39 @@ public class PennStationProcessor extends AbstractProcessor {
             TypeSpec.Builder groupSpec = TypeSpec.enumBuilder(enumClass);
             groupSpec.addModifiers(Modifier.PUBLIC);
             groupSpec.addSuperinterface(baseClassType);
-            groupSpec.addField(valueClassType,
-                    "value", Modifier.PRIVATE, Modifier.FINAL)
-                    .addMethod(MethodSpec.constructorBuilder()
-                            .addParameter(valueClassType, "value")
-                            .addStatement("this.$N = $N", "value", "value")
-                            .build());
+            groupSpec.addSuperinterface(ClassName.bestGuess("com.edisonwang.ps.lib.GeneratedActionKey"));
+
+            //The action is only constructed when value() is first called, not when the key is loaded.
+            groupSpec.addType(TypeSpec.classBuilder("ValueHolder")
+                    .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                    .addField(FieldSpec.builder(valueClassType, "VALUE", Modifier.STATIC, Modifier.FINAL)
+                            .initializer("new $L()", classElement) //Empty Constructor required.
+                            .build())
+                    .build());
             groupSpec.addMethod(MethodSpec.methodBuilder("value").addModifiers(Modifier.PUBLIC)
-                    .returns(valueClassType).addStatement("return this.value").build());
+                    .returns(valueClassType).addStatement("return ValueHolder.VALUE").build());
+
+            groupSpec.addMethod(MethodSpec.methodBuilder("actionId").addModifiers(Modifier.PUBLIC)
+                    .returns(int.class).addStatement("return $L", registerActions ? registeredKeys.size() : -1).build());
+            groupSpec.addMethod(MethodSpec.methodBuilder("actionType").addModifiers(Modifier.PUBLIC)
+                    .returns(ParameterizedTypeName.get(ClassName.get(Class.class),
+                            WildcardTypeName.subtypeOf(ClassName.bestGuess("com.edisonwang.ps.lib.Action"))))
+                    .addStatement("return $L.class", classElement).build());
+            groupSpec.addMethod(MethodSpec.methodBuilder("isFullAction").addModifiers(Modifier.PUBLIC)
+                    .returns(boolean.class).addStatement("return $L", isSubtypeOf(classElement, FULL_ACTION_CLASS)).build());
+            final MethodSpec.Builder rateLimit = MethodSpec.methodBuilder("rateLimit").addModifiers(Modifier.PUBLIC)
+                    .returns(ClassName.bestGuess("com.edisonwang.ps.lib.RateLimit"));
+            if (annotationElement.ratePerSecond() > 0) {
+                rateLimit.addStatement("return new com.edisonwang.ps.lib.RateLimit($LD, $L, $LL)",
+                        annotationElement.ratePerSecond(), annotationElement.rateBurst(), annotationElement.rateMaxWaitMs());
+            } else {
+                rateLimit.addStatement("return null");
+            }
+            groupSpec.addMethod(rateLimit.build());
+            groupSpec.addMethod(MethodSpec.methodBuilder("lane").addModifiers(Modifier.PUBLIC)
+                    .returns(int.class).addStatement("return $L", annotationElement.lane()).build());
 
-            groupSpec.addEnumConstant(enumName,
-                    TypeSpec.anonymousClassBuilder("new $L()", classElement) //Empty Constructor required.
-                            .build());
+            groupSpec.addEnumConstant(enumName);
 
             ActionHelperFactory factoryAnnotation = classElement.getAnnotation(ActionHelperFactory.class);
             if (factoryAnnotation != null) {
@@ -198,13 +261,48 @@ public class PennStationProcessor extends AbstractProcessor {
                 addFactoryAndFactoryMethod(variables, classElement, enumName, groupSpec, packageName + enumClass, baseClassString);
             }
 
-            writeClass(packageName + enumClass, groupSpec.build(), filer);
+            writeClass(packageName + enumClass, groupSpec.build(), filer, classElement);
 
+            if (registerActions) {
+                registeredKeys.add(packageName + enumClass + "." + enumName);
+                registeredElements.add(classElement);
+            }
+        }
+
+        if (registerActions && !registeredKeys.isEmpty()) {
+            writeActionRegistry(registeredKeys, registeredElements);
+            mActionRegistryWritten = true;
         }
 
         return true;
     }
 
+    /**
+     * Generates the ActionRegistry subclass that maps ids back to the keys, one enum at a time.
+     */
+    private void writeActionRegistry(List<String> registeredKeys, List<Element> registeredElements) {
+        ClassName actionKey = ClassName.bestGuess("com.edisonwang.ps.lib.ActionKey");
+        MethodSpec.Builder create = MethodSpec.methodBuilder("create")
+                .addModifiers(Modifier.PROTECTED)
+                .returns(actionKey)
+                .addParameter(int.class, "id")
+                .beginControlFlow("switch (id)");
+        for (int i = 0; i < registeredKeys.size(); i++) {
+            create.addStatement("case $L: return $L", i, registeredKeys.get(i));
+        }
+        create.addStatement("default: return null").endControlFlow();
+
+        TypeSpec registry = TypeSpec.classBuilder(ACTION_REGISTRY_CLASS)
+                .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+                .superclass(ClassName.bestGuess("com.edisonwang.ps.lib.ActionRegistry"))
+                .addMethod(MethodSpec.constructorBuilder().addModifiers(Modifier.PUBLIC)
+                        .addStatement("super($L)", registeredKeys.size()).build())
+                .addMethod(create.build())
+                .build();
+        writeClass(ACTION_REGISTRY_PACKAGE, ACTION_REGISTRY_CLASS, registry, filer,
+                registeredElements.toArray(new Element[registeredElements.size()]));
+    }
+
     private void addFactoryAndFactoryMethod(ActionHelper anno, TypeElement classElement,
                                             String enumName, TypeSpec.Builder groupSpec, String groupId, String keyReturnClass) {
 
@@ -295,7 +393,7 @@ public class PennStationProcessor extends AbstractProcessor {
 
         typeBuilder.addMethod(ctr.build());
 
-        writeClass(packageName, className, typeBuilder.build(), filer);
+        writeClass(packageName, className, typeBuilder.build(), filer, classElement);
 
         factoryMethod.addStatement("return new " + qualifiedName + "(" + Joiner.on(",").join(requiredNames) + ")");
 
@@ -359,6 +457,18 @@ public class PennStationProcessor extends AbstractProcessor {
                         "return new " + factoryClassMirror.toString() + "()").build());
     }
 
+    private boolean isSubtypeOf(TypeElement classElement, String superTypeName) {
+        TypeElement superType = elementUtils.getTypeElement(superTypeName);
+        return superType != null && typeUtils.isAssignable(
+                typeUtils.erasure(classElement.asType()), typeUtils.erasure(superType.asType()));
+    }
+
+    private void note(String msg) {
+        if (mVerbose) {
+            messager.printMessage(Diagnostic.Kind.NOTE, msg);
+        }
+    }
+
     private void error(Element e, String msg, Object... args) {
         messager.printMessage(
                 Diagnostic.Kind.ERROR,
@@ -367,7 +477,7 @@ public class PennStationProcessor extends AbstractProcessor {
     }
 
     private boolean processEventProducersAndListeners(RoundEnvironment roundEnv) {
-        HashMap<String, HashSet<String>> producerEvents = new HashMap<>();
+        TreeMap<String, TreeSet<String>> producerEvents = new TreeMap<>();
         for (Element element : roundEnv.getElementsAnnotatedWith(EventProducer.class)) {
             if (element.getKind() != ElementKind.CLASS) {
                 error(element, "You cannot annotate " + element.getSimpleName() + " with " + EventProducer.class);
@@ -379,18 +489,25 @@ public class PennStationProcessor extends AbstractProcessor {
         for (Element element : roundEnv.getElementsAnnotatedWith(EventListener.class)) {
             TypeElement typed = (TypeElement) element;
             EventListener annotationElement = typed.getAnnotation(EventListener.class);
-            HashSet<String> producers = getAnnotatedClassesVariable(typed, "producers", EventListener.class);
-            HashSet<String> listenedToEvents = new HashSet<>();
+            TreeSet<String> producers = getAnnotatedClassesVariable(typed, "producers", EventListener.class);
+            TreeSet<String> listenedToEvents = new TreeSet<>();
+            ArrayList<Element> originatingElements = new ArrayList<>();
+            originatingElements.add(typed);
             for (String producer : producers) {
-                HashSet<String> events = producerEvents.get(producer);
+                TreeSet<String> events = producerEvents.get(producer);
                 if (events == null) {
-                    events = getEventsFromProducer(producerEvents, elementUtils.getTypeElement(producer));
+                    //Producers compiled elsewhere already have their classes, only their names are needed.
+                    events = getEventNamesFromProducer(elementUtils.getTypeElement(producer));
                     if (events == null) {
                         error(element, "Producer " + producer + " not registered, have you annotated it? ");
+                        return true;
                     }
-                    return true;
                 }
                 listenedToEvents.addAll(events);
+                TypeElement producerElement = elementUtils.getTypeElement(producer);
+                if (producerElement != null) {
+                    originatingElements.add(producerElement);
+                }
             }
 
             String listenerClassName = typed.getSimpleName().toString() + EventListener.class.getSimpleName();
@@ -403,23 +520,26 @@ public class PennStationProcessor extends AbstractProcessor {
                         (annotationElement.restrictMainThread() ? "onEventMainThread" : "onEvent"))
                         .addModifiers(Modifier.PUBLIC, Modifier.ABSTRACT).addParameter(guessTypeName(event), "event").build());
             }
-            writeClass(packageName, listenerClassName, typeBuilder.build(), filer);
+            writeClass(packageName, listenerClassName, typeBuilder.build(), filer,
+                    originatingElements.toArray(new Element[originatingElements.size()]));
         }
         Set<String> allProducers = producerEvents.keySet();
         for (String producer : allProducers) {
             String packageName = packageFromQualifiedName(producer);
             String listenerClassName = producer.substring(producer.lastIndexOf(".") + 1) + "Listener";
-            HashSet<String> events = getEventsFromProducer(producerEvents, elementUtils.getTypeElement(producer));
+            TypeElement producerElement = elementUtils.getTypeElement(producer);
+            TreeSet<String> events = getEventsFromProducer(producerEvents, producerElement);
             if (events != null) {
                 TypeSpec.Builder typeBuilder = TypeSpec.interfaceBuilder(listenerClassName).addModifiers(Modifier.PUBLIC);
                 for (String event : events) {
                     typeBuilder.addMethod(MethodSpec.methodBuilder("onEvent").addModifiers(Modifier.PUBLIC, Modifier.ABSTRACT).addParameter(guessTypeName(event), "event").build());
                 }
-                writeClass(packageName, listenerClassName, typeBuilder.build(), filer);
+                writeClass(packageName, listenerClassName, typeBuilder.build(), filer, producerElement);
                 try {
-                    addRxRequestClassContent(producer, packageName, packageName + "." + listenerClassName, events);
+                    addRxRequestClassContent(producer, producerElement, packageName, packageName + "." + listenerClassName, events);
                 } catch (Throwable e) {
-                    e.printStackTrace();
+                    messager.printMessage(Diagnostic.Kind.WARNING,
+                            "Unable to generate the Rx observer for " + producer + ": " + e, producerElement);
                 }
             }
         }
@@ -427,7 +547,8 @@ public class PennStationProcessor extends AbstractProcessor {
         return false;
     }
 
-    private void addRxRequestClassContent(String producer, String packageName, String listenerClassName, HashSet<String> events) {
+    private void addRxRequestClassContent(String producer, TypeElement producerElement, String packageName,
+                                          String listenerClassName, Set<String> events) {
         rxFactoryClass = getRxFactoryClass();
         if (rxFactoryClass == null) {
             return;
@@ -471,7 +592,7 @@ public class PennStationProcessor extends AbstractProcessor {
         method.returns(ParameterizedTypeName.get(rxObservable, resultClass)).addStatement("return $L.create($L)", rxObservable, observableOnSubscribe.build());
         typeBuilder.addMethod(method.build());
 
-        writeClass(packageName, observerClassName, typeBuilder.build(), filer);
+        writeClass(packageName, observerClassName, typeBuilder.build(), filer, producerElement);
     }
 
     private Class<?> getRxFactoryClass() {
@@ -485,9 +606,9 @@ public class PennStationProcessor extends AbstractProcessor {
         return rxFactoryClass;
     }
 
-    private HashSet<String> getEventsFromProducer(HashMap<String, HashSet<String>> producerEvents, TypeElement typed) {
+    private TreeSet<String> getEventsFromProducer(TreeMap<String, TreeSet<String>> producerEvents, TypeElement typed) {
         String typedName = typed.getQualifiedName().toString();
-        HashSet<String> events = producerEvents.get(typedName);
+        TreeSet<String> events = producerEvents.get(typedName);
         if (events == null) {
             events = getAnnotatedClassesVariable(typed, "events", EventProducer.class);
 
@@ -501,7 +622,7 @@ public class PennStationProcessor extends AbstractProcessor {
                 try {
                     events.add(generateResultClass(typed, resultEvent));
                 } catch (IncompleteAnnotationException e) {
-                    System.err.println("Incomplete annotation found for " + typed.getQualifiedName());
+                    error(typed, "Incomplete annotation found for " + typed.getQualifiedName());
                     throw e;
                 }
             }
@@ -512,6 +633,33 @@ public class PennStationProcessor extends AbstractProcessor {
         return events;
     }
 
+    /**
+     * Same events as getEventsFromProducer, without generating anything.
+     */
+    private TreeSet<String> getEventNamesFromProducer(TypeElement typed) {
+        if (typed == null) {
+            return null;
+        }
+        EventProducer eventProducer = typed.getAnnotation(EventProducer.class);
+        if (eventProducer == null) {
+            return null;
+        }
+        TreeSet<String> events = getAnnotatedClassesVariable(typed, "events", EventProducer.class);
+        for (Event resultEvent : eventProducer.generated()) {
+            events.add(resultClassName(typed, resultEvent));
+        }
+        return events;
+    }
+
+    private String resultClassName(TypeElement typed, Event resultEvent) {
+        String postFix = resultEvent.postFix();
+        if (postFix == null || postFix.length() == 0) {
+            postFix = "Event";
+        }
+        return packageFromQualifiedName(typed.getQualifiedName().toString()) + ".events."
+                + typed.getSimpleName().toString() + postFix;
+    }
+
     private String generateResultClass(TypeElement typed, Event resultEvent) {
         String baseClassString;
         try {
@@ -544,13 +692,9 @@ public class PennStationProcessor extends AbstractProcessor {
         }
 
         try {
-            String postFix = resultEvent.postFix();
-            if (postFix == null || postFix.length() == 0) {
-                postFix = "Event";
-            }
-            String eventClassName = typed.getSimpleName().toString() + postFix;
-            String originalClassName = typed.getQualifiedName().toString();
-            final String packageName = packageFromQualifiedName(originalClassName) + ".events";
+            String qualifiedEventClassName = resultClassName(typed, resultEvent);
+            String eventClassName = qualifiedEventClassName.substring(qualifiedEventClassName.lastIndexOf(".") + 1);
+            final String packageName = packageFromQualifiedName(qualifiedEventClassName);
             TypeName self = guessTypeName(eventClassName);
 
             if (baseClassString == null) {
@@ -625,7 +769,7 @@ public class PennStationProcessor extends AbstractProcessor {
                     "CREATOR", Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
                     .initializer("$L", creator).build());
 
-            writeClass(packageName, eventClassName, typeBuilder.build(), filer);
+            writeClass(packageName, eventClassName, typeBuilder.build(), filer, typed);
 
             return packageName + "." + eventClassName;
         } catch (Throwable e) {
@@ -637,8 +781,8 @@ public class PennStationProcessor extends AbstractProcessor {
         return originalClassName.substring(0, originalClassName.lastIndexOf("."));
     }
 
-    private HashSet<String> getAnnotatedClassesVariable(TypeElement element, String name, Class clazz) {
-        HashSet<String> classes = new HashSet<>();
+    private TreeSet<String> getAnnotatedClassesVariable(TypeElement element, String name, Class clazz) {
+        TreeSet<String> classes = new TreeSet<>();
 
         AnnotationMirror am = null;
         List<? extends AnnotationMirror> mirrors = element.getAnnotationMirrors();
@@ -716,19 +860,20 @@ public class PennStationProcessor extends AbstractProcessor {
 
     public static void writeClass(String path,
                                   TypeSpec typeSpec,
-                                  Filer filer) {
+                                  Filer filer,
+                                  Element... originatingElements) {
         writeClass(
                 path,
                 filer,
-                JavaFile.builder(path.substring(0, path.lastIndexOf(".")), typeSpec).build());
+                JavaFile.builder(path.substring(0, path.lastIndexOf(".")), typeSpec).build(),
+                originatingElements);
     }
 
-    private static void writeClass(String path, Filer filer, JavaFile jf) {
+    private static void writeClass(String path, Filer filer, JavaFile jf, Element... originatingElements) {
         try {
-            Writer writer = filer.createSourceFile(path).openWriter();
+            Writer writer = filer.createSourceFile(path, originatingElements).openWriter();
             jf.writeTo(writer);
             writer.close();
-            System.out.println("Generated " + path);
         } catch (IOException e) {
             throw new IllegalArgumentException("Failed to generate class: " + path, e);
         }
@@ -737,11 +882,13 @@ public class PennStationProcessor extends AbstractProcessor {
     public static void writeClass(String packageName,
                                   String className,
                                   TypeSpec typeSpec,
-                                  Filer filer) {
+                                  Filer filer,
+                                  Element... originatingElements) {
         writeClass(
                 packageName + "." + className,
                 filer,
-                JavaFile.builder(packageName, typeSpec).build());
+                JavaFile.builder(packageName, typeSpec).build(),
+                originatingElements);
     }
 
     private static class ParcelableClassFieldParsed {
@@ -0,0 +1,225 @@
+package com.edisonwang.ps.processors;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs PennStationProcessor over a generated project of annotated actions.
+ *
+ * The timing run is skipped unless -Dps.benchmark=true (./gradlew :ps_processors:test -PpsBenchmark),
+ * -Dps.benchmark.actions changes the project size.
+ *
+ * @author edi
+ */
+public class SyntheticProjectBenchmark {
+
+    private static final String PACKAGE = "com.edisonwang.ps.synthetic";
+
+    @Test
+    public void generatedSourcesAreDeterministic() throws Exception {
+        File project = createProject(50);
+        File first = new File(project, "gen1");
+        File second = new File(project, "gen2");
+        assertTrue(processAll(project, first));
+        assertTrue(processAll(project, second));
+        List<File> firstFiles = listSources(first);
+        List<File> secondFiles = listSources(second);
+        assertEquals(firstFiles.size(), secondFiles.size());
+        for (int i = 0; i < firstFiles.size(); i++) {
+            assertEquals(relative(first, firstFiles.get(i)), relative(second, secondFiles.get(i)));
+            assertArrayEquals(Files.readAllBytes(firstFiles.get(i).toPath()),
+                    Files.readAllBytes(secondFiles.get(i).toPath()));
+        }
+    }
+
+    @Test
+    public void incrementalProcessingTime() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("ps.benchmark"));
+        final int count = Integer.getInteger("ps.benchmark.actions", 1000);
+        File project = createProject(count);
+
+        TimedProcessor processor = new TimedProcessor();
+        long start = System.nanoTime();
+        assertTrue(compile(sources(project), new File(project, "full"), null,
+                Collections.singletonList("-proc:only"), processor));
+        long full = System.nanoTime() - start;
+        long fullProcessing = processor.mNanos;
+
+        //Classes of the unchanged actions, which Gradle hands back to an aggregating processor.
+        File classes = new File(project, "classes");
+        assertTrue(compile(sources(project), classes, null, Collections.singletonList("-proc:none"), null));
+
+        File changed = new File(project, "src/" + PACKAGE.replace('.', '/') + "/" + actionName(0) + ".java");
+        writeAction(changed, 0, "changed");
+        ArrayList<String> unchanged = new ArrayList<>();
+        for (int i = 1; i < count; i++) {
+            unchanged.add(PACKAGE + "." + actionName(i));
+        }
+        unchanged.add(PACKAGE + ".SyntheticListener");
+
+        processor = new TimedProcessor();
+        start = System.nanoTime();
+        assertTrue(compile(Collections.singletonList(changed), new File(project, "incremental"), unchanged,
+                Arrays.asList("-proc:only", "-classpath", classes + File.pathSeparator + classPath()), processor));
+        long incremental = System.nanoTime() - start;
+
+        //Most of the javac time is spent resolving the ps_lib and android types the generated sources use.
+        System.out.println(String.format("%d actions: full %d ms (processor %d ms), one changed %d ms (processor %d ms)",
+                count, full / 1000000, fullProcessing / 1000000, incremental / 1000000, processor.mNanos / 1000000));
+    }
+
+    private static boolean processAll(File project, File out) {
+        return compile(sources(project), out, null, Collections.singletonList("-proc:only"), new PennStationProcessor());
+    }
+
+    private static boolean compile(List<File> sources, File out, List<String> classNames,
+                                   List<String> extraOptions, Processor processor) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+        out.mkdirs();
+        ArrayList<String> options = new ArrayList<>(Arrays.asList(
+                "-d", out.getPath(), "-s", out.getPath(), "-implicit:none", "-nowarn"));
+        if (!extraOptions.contains("-classpath")) {
+            options.add("-classpath");
+            options.add(classPath());
+        }
+        options.addAll(extraOptions);
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(sources);
+        //Generated classes reference ps_lib and android, which are not on this classpath.
+        final String generatedPath = out.toURI().getPath();
+        final int[] errors = new int[1];
+        DiagnosticListener<JavaFileObject> listener = new DiagnosticListener<JavaFileObject>() {
+            @Override
+            public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+                if (diagnostic.getKind() == Diagnostic.Kind.ERROR && (diagnostic.getSource() == null
+                        || !diagnostic.getSource().toUri().getPath().startsWith(generatedPath))) {
+                    System.err.println(diagnostic);
+                    errors[0]++;
+                }
+            }
+        };
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, listener, options, classNames, units);
+        if (processor != null) {
+            task.setProcessors(Collections.singletonList(processor));
+        }
+        task.call();
+        try {
+            fileManager.close();
+        } catch (IOException e) {
+            //Ignore.
+        }
+        return errors[0] == 0;
+    }
+
+    /**
+     * Times only what PennStationProcessor does in each round.
+     */
+    private static class TimedProcessor extends PennStationProcessor {
+        private long mNanos;
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            long start = System.nanoTime();
+            try {
+                return super.process(annotations, roundEnv);
+            } finally {
+                mNanos += System.nanoTime() - start;
+            }
+        }
+    }
+
+    private static String classPath() {
+        return System.getProperty("java.class.path");
+    }
+
+    private static File createProject(int count) throws IOException {
+        File project = Files.createTempDirectory("ps_synthetic").toFile();
+        File dir = new File(project, "src/" + PACKAGE.replace('.', '/'));
+        dir.mkdirs();
+        StringBuilder producers = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            writeAction(new File(dir, actionName(i) + ".java"), i, "value");
+            if (i < 50) {
+                producers.append(i == 0 ? "" : ", ").append(actionName(i)).append(".class");
+            }
+        }
+        Writer writer = new FileWriter(new File(dir, "SyntheticListener.java"));
+        writer.write("package " + PACKAGE + ";\n\n"
+                + "@com.edisonwang.ps.annotations.EventListener(producers = {" + producers + "})\n"
+                + "public class SyntheticListener {\n}\n");
+        writer.close();
+        return project;
+    }
+
+    private static void writeAction(File file, int index, String fieldName) throws IOException {
+        Writer writer = new FileWriter(file);
+        writer.write("package " + PACKAGE + ";\n\n"
+                + "import com.edisonwang.ps.annotations.*;\n\n"
+                + "@EventProducer(generated = {\n"
+                + "        @Event(fields = {@ParcelableField(name = \"" + fieldName + "\", kind = @Kind(clazz = int.class))}),\n"
+                + "        @Event(postFix = \"Failure\", success = false)\n"
+                + "})\n"
+                + "@Action(group = \"Synthetic\")\n"
+                + "@ActionHelper(args = {@Field(name = \"arg" + index + "\", kind = @Kind(clazz = String.class))})\n"
+                + "public class " + actionName(index) + " {\n}\n");
+        writer.close();
+    }
+
+    private static String actionName(int index) {
+        return String.format("Action%04d", index);
+    }
+
+    private static List<File> sources(File project) {
+        return listSources(new File(project, "src"));
+    }
+
+    private static List<File> listSources(File dir) {
+        ArrayList<File> files = new ArrayList<>();
+        collect(dir, files);
+        Collections.sort(files);
+        return files;
+    }
+
+    private static void collect(File dir, List<File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collect(child, files);
+            } else if (child.getName().endsWith(".java")) {
+                files.add(child);
+            }
+        }
+    }
+
+    private static String relative(File root, File file) {
+        return root.toURI().relativize(file.toURI()).getPath();
+    }
+}